@@ -21,25 +21,453 @@ package dev.mizule.squirrelid.core.util;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import org.enginehub.squirrelid.util.RateLimiter;
+import org.enginehub.squirrelid.util.RateLimiters;
+import org.jspecify.annotations.Nullable;
 
 import java.io.IOException;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The HTTP client layer shared by every repository service.
+ *
+ * <p>One {@link HttpClient} is shared so that connections are pooled and
+ * kept alive between lookups, and HTTP/2 is used where the upstream
+ * supports it. Call {@link #configure(Duration, Duration, Executor)} or
+ * {@link #setHttpClient(HttpClient)} before the first lookup to change it.</p>
+ */
 public class HttpUtil {
 
-    public static final HttpClient HTTP_CLIENT = HttpClient.newHttpClient();
+    public static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    public static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofSeconds(30);
     public static final JsonParser JSON_PARSER = new JsonParser();
 
+    /**
+     * The client that is shared by default.
+     *
+     * @deprecated this is not the shared client once it has been replaced, use {@link #getHttpClient()}
+     */
+    @Deprecated
+    public static final HttpClient HTTP_CLIENT = newHttpClient(DEFAULT_CONNECT_TIMEOUT, null);
+
+    private static volatile HttpClient httpClient = HTTP_CLIENT;
+    private static volatile Duration requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+
+    /**
+     * Create a new client with the settings used by the shared client.
+     *
+     * @param connectTimeout the connect timeout
+     * @param executor the executor to run response handling in, or {@code null} for the default one
+     * @return a new client
+     */
+    public static HttpClient newHttpClient(final Duration connectTimeout, final @Nullable Executor executor) {
+        checkNotNull(connectTimeout);
+
+        final HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(connectTimeout);
+        if (executor != null) {
+            builder.executor(executor);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Replace the shared client with a new one using the given settings.
+     *
+     * @param connectTimeout the connect timeout
+     * @param requestTimeout the timeout of every request, until the response headers are received
+     * @param executor the executor to run response handling in, or {@code null} for the default one
+     */
+    public static void configure(final Duration connectTimeout, final Duration requestTimeout, final @Nullable Executor executor) {
+        setRequestTimeout(requestTimeout);
+        setHttpClient(newHttpClient(connectTimeout, executor));
+    }
+
+    /**
+     * Get the shared client.
+     *
+     * @return the client
+     */
+    public static HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    /**
+     * Replace the shared client.
+     *
+     * @param client the client
+     */
+    public static void setHttpClient(final HttpClient client) {
+        checkNotNull(client);
+        httpClient = client;
+    }
+
+    /**
+     * Get the timeout applied to every request.
+     *
+     * @return the timeout
+     */
+    public static Duration getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    /**
+     * Set the timeout applied to every request, unless the request sets its own.
+     *
+     * @param timeout the timeout
+     */
+    public static void setRequestTimeout(final Duration timeout) {
+        checkNotNull(timeout);
+        checkArgument(!timeout.isNegative() && !timeout.isZero(), "timeout must be positive");
+        requestTimeout = timeout;
+    }
+
+    private static HttpRequest.Builder newRequest() {
+        return HttpRequest.newBuilder().timeout(requestTimeout);
+    }
+
     public static <T> HttpResponse<T> request(final Function<HttpRequest.Builder, HttpRequest> requestConsumer, final HttpResponse.BodyHandler<T> bodyHandler) throws IOException, InterruptedException {
-        return HTTP_CLIENT.send(requestConsumer.apply(HttpRequest.newBuilder()), bodyHandler);
+        final HttpRequest request = requestConsumer.apply(newRequest());
+        final RateLimiter limiter = RateLimiters.forHost(request.uri().getHost());
+        RateLimiters.acquire(limiter, request.uri().getHost());
+        return checkRateLimit(httpClient.send(request, bodyHandler), limiter);
+    }
+
+    /**
+     * Send a request without blocking.
+     *
+     * <p>The request first waits for a permit from the {@link RateLimiter} of
+     * its host. A {@code 429} response pauses that limiter for the duration
+     * given by the {@code Retry-After} header, holding back every request to
+     * the host and not just the one that failed.</p>
+     *
+     * <p>Cancelling the returned future gives up the place in the queue of
+     * the limiter, or aborts the exchange if it was already sent.</p>
+     *
+     * @param requestConsumer builds the request
+     * @param bodyHandler the body handler
+     * @param <T> the body type
+     * @return a future completed with the response
+     */
+    public static <T> CompletableFuture<HttpResponse<T>> requestAsync(final Function<HttpRequest.Builder, HttpRequest> requestConsumer, final HttpResponse.BodyHandler<T> bodyHandler) {
+        final HttpRequest request = requestConsumer.apply(newRequest());
+        final RateLimiter limiter = RateLimiters.forHost(request.uri().getHost());
+        final HttpClient client = httpClient;
+        final CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        final CompletableFuture<Void> permit = limiter.acquire();
+        cancelOnFailure(result, permit);
+
+        permit.whenComplete((ignored, throwable) -> {
+            if (throwable != null) {
+                result.completeExceptionally(unwrap(throwable));
+                return;
+            }
+            if (result.isDone()) {
+                return;
+            }
+
+            final CompletableFuture<HttpResponse<T>> sent = client.sendAsync(request, bodyHandler);
+            cancelOnFailure(result, sent);
+            sent.whenComplete((response, failure) -> {
+                if (failure != null) {
+                    result.completeExceptionally(unwrap(failure));
+                } else {
+                    result.complete(checkRateLimit(response, limiter));
+                }
+            });
+        });
+
+        return result;
+    }
+
+    private static <T> HttpResponse<T> checkRateLimit(final HttpResponse<T> response, final RateLimiter limiter) {
+        if (response.statusCode() == RateLimiters.TOO_MANY_REQUESTS) {
+            limiter.pause(RateLimiters.parseRetryAfter(response.headers().firstValue("Retry-After").orElse(null)));
+        }
+        return response;
+    }
+
+    /**
+     * Run an asynchronous operation, retrying it on failure without blocking a thread
+     * between attempts.
+     *
+     * <p>The delay doubles after every failed attempt. Each delay is jittered
+     * so that requests which failed together do not all retry at once.</p>
+     *
+     * <p>Cancelling the returned future cancels the running attempt and
+     * stops any further retries.</p>
+     *
+     * @param attempt supplies a new attempt of the operation
+     * @param maxRetries the maximum number of retries
+     * @param retryDelay the delay before the first retry in milliseconds
+     * @param onRetry called with the failure before every retry
+     * @param <T> the result type
+     * @return a future completed with the first successful result or the last failure
+     */
+    public static <T> CompletableFuture<T> retryAsync(final Supplier<CompletableFuture<T>> attempt, final int maxRetries, final long retryDelay, final Consumer<Throwable> onRetry) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        retryAsync(attempt, maxRetries, retryDelay, onRetry, result);
+        return result;
     }
 
-    public static <T> CompletableFuture<HttpResponse<T>> requestAsync(final Function<HttpRequest.Builder, HttpRequest> requestConsumer, final HttpResponse.BodyHandler<T> bodyHandler) throws IOException, InterruptedException {
-        return HTTP_CLIENT.sendAsync(requestConsumer.apply(HttpRequest.newBuilder()), bodyHandler);
+    private static <T> void retryAsync(final Supplier<CompletableFuture<T>> attempt, final int retriesLeft, final long retryDelay, final Consumer<Throwable> onRetry, final CompletableFuture<T> result) {
+        if (result.isDone()) {
+            return;
+        }
+
+        CompletableFuture<T> future;
+        try {
+            future = attempt.get();
+        } catch (final RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        cancelOnFailure(result, future);
+
+        future.whenComplete((value, throwable) -> {
+            if (throwable == null) {
+                result.complete(value);
+                return;
+            }
+
+            final Throwable cause = unwrap(throwable);
+            if (retriesLeft <= 0 || result.isDone()) {
+                result.completeExceptionally(cause);
+                return;
+            }
+
+            onRetry.accept(cause);
+            final long jitteredDelay = retryDelay / 2 + ThreadLocalRandom.current().nextLong(retryDelay + 1);
+            CompletableFuture.delayedExecutor(jitteredDelay, TimeUnit.MILLISECONDS)
+                    .execute(() -> retryAsync(attempt, retriesLeft - 1, retryDelay * 2, onRetry, result));
+        });
+    }
+
+    /**
+     * Apply an asynchronous operation to every input, with at most
+     * {@code maxInFlight} operations running at the same time.
+     *
+     * <p>The returned future fails as soon as one operation fails. No
+     * further operations are started after that, and the ones still in
+     * flight are cancelled. Cancelling the returned future also cancels
+     * every operation in flight.</p>
+     *
+     * @param inputs the inputs
+     * @param maxInFlight the maximum number of concurrent operations
+     * @param operation the operation
+     * @param <T> the input type
+     * @param <R> the result type
+     * @return a future completed with the results in the order of the inputs
+     */
+    public static <T, R> CompletableFuture<List<R>> mapConcurrently(final List<T> inputs, final int maxInFlight, final Function<T, CompletableFuture<R>> operation) {
+        if (inputs.isEmpty()) {
+            return CompletableFuture.completedFuture(List.of());
+        }
+
+        final Object[] results = new Object[inputs.size()];
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger remaining = new AtomicInteger(inputs.size());
+        final CompletableFuture<List<R>> result = new CompletableFuture<>();
+
+        for (int i = 0; i < Math.min(maxInFlight, inputs.size()); i++) {
+            runNext(inputs, operation, results, next, remaining, result);
+        }
+
+        return result;
+    }
+
+    private static <T, R> void runNext(final List<T> inputs, final Function<T, CompletableFuture<R>> operation, final Object[] results,
+                                       final AtomicInteger next, final AtomicInteger remaining, final CompletableFuture<List<R>> result) {
+        // Loop instead of recursing while operations complete synchronously
+        while (!result.isDone()) {
+            final int index = next.getAndIncrement();
+            if (index >= inputs.size()) {
+                return;
+            }
+
+            CompletableFuture<R> future;
+            try {
+                future = operation.apply(inputs.get(index));
+            } catch (final RuntimeException e) {
+                future = CompletableFuture.failedFuture(e);
+            }
+
+            if (!future.isDone()) {
+                cancelOnFailure(result, future);
+                future.whenComplete((value, throwable) -> {
+                    if (complete(index, value, throwable, results, remaining, result)) {
+                        runNext(inputs, operation, results, next, remaining, result);
+                    }
+                });
+                return;
+            }
+
+            final R value;
+            try {
+                value = future.join();
+            } catch (final CancellationException | CompletionException e) {
+                complete(index, null, e, results, remaining, result);
+                return;
+            }
+            if (!complete(index, value, null, results, remaining, result)) {
+                return;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <R> boolean complete(final int index, final R value, final Throwable throwable, final Object[] results,
+                                        final AtomicInteger remaining, final CompletableFuture<List<R>> result) {
+        if (throwable != null) {
+            result.completeExceptionally(unwrap(throwable));
+            return false;
+        }
+
+        results[index] = value;
+        if (remaining.decrementAndGet() == 0) {
+            result.complete(new ArrayList<>((List<R>) Arrays.asList(results)));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Cancel the given futures when a future fails or is cancelled.
+     *
+     * <p>{@link CompletableFuture#cancel(boolean)} does not reach the work that
+     * a future was derived from, so this is used to pass a cancellation
+     * on to the requests that are still running.</p>
+     *
+     * @param future the future to watch
+     * @param others the futures to cancel
+     */
+    public static void cancelOnFailure(final CompletableFuture<?> future, final Future<?>... others) {
+        future.whenComplete((value, throwable) -> {
+            if (throwable != null) {
+                for (final Future<?> other : others) {
+                    other.cancel(true);
+                }
+            }
+        });
+    }
+
+    /**
+     * Apply a function to the result of a future, like
+     * {@link CompletableFuture#thenApply(Function)}, except that the given
+     * future is cancelled when the returned one fails or is cancelled.
+     *
+     * @param future the future
+     * @param function the function
+     * @param <T> the result type of the future
+     * @param <R> the result type of the function
+     * @return a future completed with the result of the function
+     */
+    public static <T, R> CompletableFuture<R> transform(final CompletableFuture<T> future, final Function<? super T, ? extends R> function) {
+        final CompletableFuture<R> result = future.thenApply(function);
+        cancelOnFailure(result, future);
+        return result;
+    }
+
+    /**
+     * Wait for a future of an HTTP operation, as a blocking call would.
+     *
+     * <p>If the calling thread is interrupted, the future is cancelled and the
+     * interrupt flag is restored. Unchecked failures are rethrown as-is and
+     * checked ones, such as an {@link IOException}, are wrapped in a
+     * {@link RuntimeException}.</p>
+     *
+     * @param future the future
+     * @param <T> the result type
+     * @return the result
+     */
+    public static <T> T await(final CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = unwrap(e.getCause());
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (cause instanceof Error error) {
+                throw error;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Fail with an {@link IOException} unless the response has one of the
+     * given status codes, so that it can be retried like any other I/O failure.
+     *
+     * @param response the response
+     * @param codes the expected status codes
+     * @param <T> the body type
+     * @return the same response
+     * @throws CompletionException wrapping an {@link IOException} on any other status code
+     */
+    public static <T> HttpResponse<T> expectStatus(final HttpResponse<T> response, final int... codes) {
+        for (final int code : codes) {
+            if (response.statusCode() == code) {
+                return response;
+            }
+        }
+        throw new CompletionException(new IOException("Did not get expected response code, got " + response.statusCode() + " for " + response.uri()));
+    }
+
+    /**
+     * Fail with an {@link IOException} if the response has an error status code,
+     * so that it can be retried like any other I/O failure.
+     *
+     * @param response the response
+     * @param <T> the body type
+     * @return the same response
+     * @throws CompletionException wrapping an {@link IOException} on an error status code
+     */
+    public static <T> HttpResponse<T> checkStatus(final HttpResponse<T> response) {
+        if (response.statusCode() >= 400) {
+            throw new CompletionException(new IOException("Got response code " + response.statusCode() + " for " + response.uri()));
+        }
+        return response;
+    }
+
+    /**
+     * Strip the {@link CompletionException} wrapper that {@link CompletableFuture}
+     * puts around failures.
+     *
+     * @param throwable the throwable
+     * @return the underlying cause
+     */
+    public static Throwable unwrap(final Throwable throwable) {
+        if (throwable instanceof CompletionException && throwable.getCause() != null) {
+            return throwable.getCause();
+        }
+        return throwable;
     }
 
     public static JsonObject parseJson(final String json) {
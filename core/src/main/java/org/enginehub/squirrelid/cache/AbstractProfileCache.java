@@ -19,17 +19,34 @@
 package org.enginehub.squirrelid.cache;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import org.enginehub.squirrelid.Profile;
 import org.jspecify.annotations.NonNull;
 import org.jspecify.annotations.Nullable;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
 import java.util.UUID;
+import java.util.logging.Logger;
 
 /**
  * An abstract implementation.
  */
 abstract class AbstractProfileCache implements ProfileCache {
 
+    /**
+     * How long negative entries are kept by caches that delete them, by default.
+     */
+    static final Duration DEFAULT_MISSING_EXPIRY = Duration.ofHours(1);
+
+    /**
+     * How often caches that delete expired negative entries look for them, in milliseconds.
+     */
+    static final long MISSING_PURGE_INTERVAL = 60 * 1000;
+
     @Override
     public void put(@NonNull Profile profile) {
         putAll(ImmutableList.of(profile));
@@ -45,4 +62,73 @@ abstract class AbstractProfileCache implements ProfileCache {
         return allPresent(ImmutableList.of(name)).get(name);
     }
 
+    /**
+     * Key the found profiles by the names that were asked for, which may
+     * differ from the names of the profiles in case.
+     *
+     * @param names the names that were asked for
+     * @param found the profiles that were found
+     * @return a map of results
+     */
+    static ImmutableMap<String, Profile> byRequestedName(Iterable<String> names, Iterable<Profile> found) {
+        Map<String, Profile> byLowerName = new HashMap<>();
+        for (Profile profile : found) {
+            byLowerName.put(profile.name().toLowerCase(Locale.US), profile);
+        }
+
+        Map<String, Profile> results = new HashMap<>();
+        for (String name : names) {
+            Profile profile = byLowerName.get(name.toLowerCase(Locale.US));
+            if (profile != null) {
+                results.put(name, profile);
+            }
+        }
+        return ImmutableMap.copyOf(results);
+    }
+
+    /**
+     * Encode the name of a profile as UTF-8 for a cache that stores names
+     * as bytes, or log a warning if it is too long to store.
+     *
+     * @param profile the profile
+     * @param maxLength the maximum number of bytes
+     * @param log the logger of the cache
+     * @return the encoded name, or {@code null} if it is too long
+     */
+    static byte @Nullable [] encodeName(Profile profile, int maxLength, Logger log) {
+        byte[] name = profile.name().getBytes(StandardCharsets.UTF_8);
+        if (name.length > maxLength) {
+            log.warning("Not caching profile " + profile.uniqueId() + " because its name is too long");
+            return null;
+        }
+        return name;
+    }
+
+    /**
+     * Hash a UUID for an open-addressing hash table.
+     *
+     * @param most the most significant bits of the UUID
+     * @param least the least significant bits of the UUID
+     * @return the hash
+     */
+    static long hashUuid(long most, long least) {
+        return mix(most ^ (least * 0x9E3779B97F4A7C15L));
+    }
+
+    /**
+     * Spread the bits of a hash, so that keys that differ in only a few
+     * bits land far apart in an open-addressing hash table.
+     *
+     * @param value the hash
+     * @return the mixed hash
+     */
+    static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        value *= 0xC4CEB9FE1A85EC53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
 }
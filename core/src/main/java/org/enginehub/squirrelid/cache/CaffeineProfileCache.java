@@ -0,0 +1,269 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.google.common.collect.ImmutableMap;
+import org.enginehub.squirrelid.Profile;
+import org.jspecify.annotations.Nullable;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An in-memory cache backed by Caffeine.
+ *
+ * <p>The cache is bounded by the approximate memory used by its entries,
+ * and Caffeine decides which entries to keep by how often and how recently
+ * they were used. Each entry expires once it is older than the maximum
+ * age, counting from {@link Profile#timeCached()} rather than from when it
+ * was put into this cache.</p>
+ *
+ * <p>Profiles can be found by UUID or case-insensitively by name. UUIDs and
+ * names that were not found are kept for a separate, shorter time.</p>
+ */
+public class CaffeineProfileCache extends AbstractProfileCache {
+
+    private static final int MISSING_LIMIT = 10000;
+
+    private final Cache<UUID, Profile> profiles;
+    private final ConcurrentMap<String, UUID> names = new ConcurrentHashMap<>();
+    private final Cache<UUID, Instant> missingUuids;
+    private final Cache<String, Instant> missingNames;
+
+    /**
+     * Create a new instance.
+     *
+     * <p>The missing age should be longer than the negative cache time of
+     * the {@link org.enginehub.squirrelid.resolver.CacheForwardingService}
+     * that uses this cache.</p>
+     *
+     * @param maximumWeight the approximate number of bytes that the entries may use
+     * @param maximumAge the age after which entries expire
+     * @param missingAge the age after which UUIDs and names that were not found expire
+     */
+    public CaffeineProfileCache(long maximumWeight, Duration maximumAge, Duration missingAge) {
+        checkArgument(maximumWeight >= 0, "maximumWeight must be >= 0");
+        checkNotNull(maximumAge);
+        checkArgument(!maximumAge.isNegative(), "maximumAge must not be negative");
+        checkNotNull(missingAge);
+        checkArgument(!missingAge.isNegative(), "missingAge must not be negative");
+
+        long maximumAgeMillis = maximumAge.toMillis();
+        this.profiles = Caffeine.newBuilder()
+                .maximumWeight(maximumWeight)
+                .weigher((UUID uuid, Profile profile) -> weigh(profile))
+                .expireAfter(new ProfileExpiry(maximumAgeMillis))
+                .evictionListener((UUID uuid, Profile profile, RemovalCause cause) -> {
+                    if (uuid != null && profile != null) {
+                        names.remove(profile.name().toLowerCase(Locale.US), uuid);
+                    }
+                })
+                .recordStats()
+                .build();
+        this.missingUuids = Caffeine.newBuilder()
+                .maximumSize(MISSING_LIMIT)
+                .expireAfterWrite(missingAge)
+                .build();
+        this.missingNames = Caffeine.newBuilder()
+                .maximumSize(MISSING_LIMIT)
+                .expireAfterWrite(missingAge)
+                .build();
+    }
+
+    /**
+     * Create a new instance that keeps UUIDs and names that were not
+     * found for an hour.
+     *
+     * @param maximumWeight the approximate number of bytes that the entries may use
+     * @param maximumAge the age after which entries expire
+     */
+    public CaffeineProfileCache(long maximumWeight, Duration maximumAge) {
+        this(maximumWeight, maximumAge, DEFAULT_MISSING_EXPIRY);
+    }
+
+    /**
+     * Create a new instance that uses up to about 16 MiB, keeps entries
+     * for 30 days and keeps UUIDs and names that were not found for an hour.
+     */
+    public CaffeineProfileCache() {
+        this(16 * 1024 * 1024, Duration.ofDays(30));
+    }
+
+    /**
+     * Get the number of profiles in the cache.
+     *
+     * @return the number of profiles
+     */
+    public long size() {
+        return profiles.estimatedSize();
+    }
+
+    /**
+     * Get statistics on lookups of profiles in this cache.
+     *
+     * @return the statistics
+     */
+    public CacheStats stats() {
+        return profiles.stats();
+    }
+
+    @Override
+    public void put(Profile profile) {
+        UUID uuid = profile.uniqueId();
+        String name = profile.name().toLowerCase(Locale.US);
+
+        // The name index is updated while the entry is held, so that an
+        // eviction or another put of the same UUID cannot interleave
+        profiles.asMap().compute(uuid, (key, previous) -> {
+            if (previous != null && !previous.name().equalsIgnoreCase(name)) {
+                names.remove(previous.name().toLowerCase(Locale.US), uuid);
+            }
+            names.put(name, uuid);
+            return profile;
+        });
+
+        missingUuids.invalidate(uuid);
+        missingNames.invalidate(name);
+    }
+
+    @Override
+    public void putAll(Iterable<Profile> profiles) {
+        for (Profile profile : profiles) {
+            put(profile);
+        }
+    }
+
+    @Override
+    public @Nullable Profile getIfPresent(UUID uuid) {
+        return profiles.getIfPresent(uuid);
+    }
+
+    @Override
+    public @Nullable Profile getIfPresent(String name) {
+        String lowerName = name.toLowerCase(Locale.US);
+        UUID uuid = names.get(lowerName);
+        if (uuid == null) {
+            return null;
+        }
+
+        Profile profile = profiles.getIfPresent(uuid);
+        if (profile == null || !profile.name().equalsIgnoreCase(lowerName)) {
+            // The profile expired or was renamed, and the index entry is
+            // removed by the eviction or the put rather than here, where
+            // it could race with a put of the same name
+            return null;
+        }
+        return profile;
+    }
+
+    @Override
+    public ImmutableMap<UUID, Profile> getAllPresent(Iterable<UUID> uuids) {
+        return ImmutableMap.copyOf(profiles.getAllPresent(uuids));
+    }
+
+    @Override
+    public ImmutableMap<String, Profile> allPresent(Iterable<String> names) {
+        Map<String, Profile> results = new HashMap<>();
+        for (String name : names) {
+            Profile profile = getIfPresent(name);
+            if (profile != null) {
+                results.put(name, profile);
+            }
+        }
+        return ImmutableMap.copyOf(results);
+    }
+
+    @Override
+    public void putMissing(UUID uuid) {
+        missingUuids.put(uuid, Instant.now());
+    }
+
+    @Override
+    public void putMissing(String name) {
+        missingNames.put(name.toLowerCase(Locale.US), Instant.now());
+    }
+
+    @Override
+    public @Nullable Instant getMissingSince(UUID uuid) {
+        return missingUuids.getIfPresent(uuid);
+    }
+
+    @Override
+    public @Nullable Instant getMissingSince(String name) {
+        return missingNames.getIfPresent(name.toLowerCase(Locale.US));
+    }
+
+    /**
+     * Estimate the bytes used by an entry, counting the profile, its UUID,
+     * its name and the entries in both indexes.
+     *
+     * @param profile the profile
+     * @return the approximate number of bytes
+     */
+    private static int weigh(Profile profile) {
+        return 160 + 2 * profile.name().length();
+    }
+
+    /**
+     * Expires profiles once they are older than the maximum age.
+     */
+    private static final class ProfileExpiry implements Expiry<UUID, Profile> {
+        private final long maximumAgeMillis;
+
+        private ProfileExpiry(long maximumAgeMillis) {
+            this.maximumAgeMillis = maximumAgeMillis;
+        }
+
+        private long remaining(Profile profile) {
+            long remainingMillis = profile.timeCached() + maximumAgeMillis - System.currentTimeMillis();
+            return TimeUnit.MILLISECONDS.toNanos(Math.max(0, remainingMillis));
+        }
+
+        @Override
+        public long expireAfterCreate(UUID uuid, Profile profile, long currentTime) {
+            return remaining(profile);
+        }
+
+        @Override
+        public long expireAfterUpdate(UUID uuid, Profile profile, long currentTime, long currentDuration) {
+            return remaining(profile);
+        }
+
+        @Override
+        public long expireAfterRead(UUID uuid, Profile profile, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+
+}
@@ -0,0 +1,433 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.cache;
+
+import com.google.common.collect.ImmutableMap;
+import org.enginehub.squirrelid.Profile;
+import org.jspecify.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * An in-memory cache that stores millions of profiles compactly.
+ *
+ * <p>Profiles are not stored as objects. Instead, the two halves of each
+ * UUID and the time it was cached are kept side by side in a {@code long}
+ * array that forms an open-addressing hash table, and names are packed into one
+ * shared byte array, each prefixed with its length. A second table of
+ * {@code int}s indexes the lowercase names. An entry costs 50 to 100 bytes,
+ * depending on how full the tables are, plus its name, compared to about
+ * 270 bytes in a {@link HashMapCache}. {@link Profile} objects are only
+ * created when they are read.</p>
+ *
+ * <p><strong>Profiles are never evicted.</strong> The cache grows to hold
+ * every profile put into it and never gives memory back, so it should only
+ * be used when the number of profiles is bounded, such as for the players
+ * of one server, or behind a cache that is. It holds up to
+ * {@value #MAX_SIZE} profiles and about 2 GiB of names; profiles that do
+ * not fit are not cached.</p>
+ *
+ * <p>Names are stored as UTF-8, which takes one byte per character for the
+ * characters allowed in Minecraft names. Names over 255 bytes long are not
+ * cached.</p>
+ */
+public class CompactProfileCache extends AbstractProfileCache {
+
+    /**
+     * The maximum number of profiles, at which the tables are three quarters full.
+     */
+    public static final int MAX_SIZE = (1 << 29) / 4 * 3;
+
+    private static final Logger log = Logger.getLogger(CompactProfileCache.class.getCanonicalName());
+    private static final int MAX_NAME_LENGTH = 255;
+    // The entries array holds three longs per slot, which must fit in an array
+    private static final int MAX_CAPACITY = MAX_SIZE / 3 * 4;
+    private static final int MAX_NAMES_LENGTH = Integer.MAX_VALUE - 8;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Entries, indexed by slot: the UUID halves and time cached of each slot
+    // are next to each other, as are its name offset and lowercase name hash,
+    // so that a lookup touches few cache lines. A slot is empty when its name
+    // offset is 0.
+    private long[] entries;
+    private int[] nameRefs;
+
+    // Lowercase name index, holding the slot of the entry plus one, or 0 if empty
+    private int[] nameIndex;
+
+    private byte[] names;
+    private int namesLength = 1;
+    private int garbage;
+    private int size;
+
+    /**
+     * Create a new instance.
+     *
+     * @param expectedSize the number of profiles to make room for up front, up to {@link #MAX_SIZE}
+     */
+    public CompactProfileCache(int expectedSize) {
+        checkArgument(expectedSize >= 0, "expectedSize must be >= 0");
+        checkArgument(expectedSize <= MAX_SIZE, "expectedSize must be <= " + MAX_SIZE);
+        allocate(capacityFor(expectedSize), (int) Math.min(MAX_NAMES_LENGTH, 1 + expectedSize * 17L));
+    }
+
+    /**
+     * Create a new instance.
+     */
+    public CompactProfileCache() {
+        this(1024);
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = 16;
+        while (capacity * 3L / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private void allocate(int capacity, int namesCapacity) {
+        entries = new long[capacity * 3];
+        nameRefs = new int[capacity * 2];
+        nameIndex = new int[capacity];
+        names = new byte[Math.max(16, namesCapacity)];
+    }
+
+    /**
+     * Get the number of profiles in the cache.
+     *
+     * @return the number of profiles
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(Profile profile) {
+        lock.writeLock().lock();
+        try {
+            insert(profile);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void putAll(Iterable<Profile> profiles) {
+        lock.writeLock().lock();
+        try {
+            for (Profile profile : profiles) {
+                insert(profile);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public @Nullable Profile getIfPresent(UUID uuid) {
+        lock.readLock().lock();
+        try {
+            int slot = findSlot(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+            return nameRefs[slot * 2] != 0 ? toProfile(slot) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public @Nullable Profile getIfPresent(String name) {
+        String lowerName = name.toLowerCase(Locale.US);
+        lock.readLock().lock();
+        try {
+            int index = findName(lowerName, lowerName.hashCode());
+            return nameIndex[index] != 0 ? toProfile(nameIndex[index] - 1) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ImmutableMap<UUID, Profile> getAllPresent(Iterable<UUID> uuids) {
+        Map<UUID, Profile> results = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            for (UUID uuid : uuids) {
+                int slot = findSlot(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+                if (nameRefs[slot * 2] != 0) {
+                    results.put(uuid, toProfile(slot));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return ImmutableMap.copyOf(results);
+    }
+
+    @Override
+    public ImmutableMap<String, Profile> allPresent(Iterable<String> names) {
+        Map<String, Profile> results = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            for (String name : names) {
+                String lowerName = name.toLowerCase(Locale.US);
+                int index = findName(lowerName, lowerName.hashCode());
+                if (nameIndex[index] != 0) {
+                    results.put(name, toProfile(nameIndex[index] - 1));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return ImmutableMap.copyOf(results);
+    }
+
+    private Profile toProfile(int slot) {
+        UUID uuid = new UUID(entries[slot * 3], entries[slot * 3 + 1]);
+        return new Profile(uuid, nameAt(nameRefs[slot * 2]), entries[slot * 3 + 2]);
+    }
+
+    private String nameAt(int offset) {
+        return new String(names, offset + 1, names[offset] & 0xFF, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compare the name at the given offset to the given lowercase name
+     * without decoding it, unless either is not ASCII.
+     */
+    private boolean nameMatches(int offset, String lowerName) {
+        int length = names[offset] & 0xFF;
+        if (length == lowerName.length()) {
+            for (int i = 0; i < length; i++) {
+                int c = names[offset + 1 + i];
+                if (c < 0) {
+                    return nameAt(offset).equalsIgnoreCase(lowerName);
+                }
+                if (c >= 'A' && c <= 'Z') {
+                    c += 'a' - 'A';
+                }
+                if (c != lowerName.charAt(i)) {
+                    return lowerName.charAt(i) > 0x7F && nameAt(offset).equalsIgnoreCase(lowerName);
+                }
+            }
+            return true;
+        }
+        return nameAt(offset).equalsIgnoreCase(lowerName);
+    }
+
+    private void insert(Profile profile) {
+        byte[] name = encodeName(profile, MAX_NAME_LENGTH, log);
+        if (name == null) {
+            return;
+        }
+        String lowerName = profile.name().toLowerCase(Locale.US);
+        int nameHash = lowerName.hashCode();
+
+        long most = profile.uniqueId().getMostSignificantBits();
+        long least = profile.uniqueId().getLeastSignificantBits();
+
+        if ((size + 1) * 4L > nameIndex.length * 3L) {
+            if (nameIndex.length < MAX_CAPACITY) {
+                rehash(nameIndex.length << 1);
+            } else if (nameRefs[findSlot(most, least) * 2] == 0) {
+                log.warning("Not caching profile " + profile.uniqueId() + " because the cache is full");
+                return;
+            }
+        } else if (garbage > namesLength / 2) {
+            rehash(nameIndex.length);
+        }
+
+        if (namesLength + 1L + name.length > MAX_NAMES_LENGTH) {
+            if (garbage > 0) {
+                rehash(nameIndex.length);
+            }
+            if (namesLength + 1L + name.length > MAX_NAMES_LENGTH) {
+                log.warning("Not caching profile " + profile.uniqueId() + " because the cache is out of room for names");
+                return;
+            }
+        }
+
+        int slot = findSlot(most, least);
+
+        if (nameRefs[slot * 2] != 0) {
+            int oldOffset = nameRefs[slot * 2];
+            if (nameRefs[slot * 2 + 1] != nameHash || !nameMatches(oldOffset, lowerName)) {
+                removeName(slot);
+            }
+            garbage += 1 + (names[oldOffset] & 0xFF);
+        } else {
+            entries[slot * 3] = most;
+            entries[slot * 3 + 1] = least;
+            size++;
+        }
+
+        entries[slot * 3 + 2] = profile.timeCached();
+        nameRefs[slot * 2] = appendName(name);
+        nameRefs[slot * 2 + 1] = nameHash;
+
+        // The most recently stored profile with a name owns it
+        nameIndex[findName(lowerName, nameHash)] = slot + 1;
+    }
+
+    private int appendName(byte[] name) {
+        byte[] prefixed = new byte[1 + name.length];
+        prefixed[0] = (byte) name.length;
+        System.arraycopy(name, 0, prefixed, 1, name.length);
+        return appendName(prefixed, 0);
+    }
+
+    /**
+     * Copy the length-prefixed name at the given offset of the given array
+     * to the end of the names.
+     */
+    private int appendName(byte[] source, int sourceOffset) {
+        int length = 1 + (source[sourceOffset] & 0xFF);
+        if (namesLength + length > names.length) {
+            names = Arrays.copyOf(names, (int) Math.min(MAX_NAMES_LENGTH, Math.max(names.length * 2L, namesLength + length)));
+        }
+        int offset = namesLength;
+        System.arraycopy(source, sourceOffset, names, offset, length);
+        namesLength += length;
+        return offset;
+    }
+
+    /**
+     * Find the slot of the given UUID, or the empty slot where it would go.
+     */
+    private int findSlot(long most, long least) {
+        int mask = nameIndex.length - 1;
+        int slot = (int) hashUuid(most, least) & mask;
+        while (nameRefs[slot * 2] != 0 && (entries[slot * 3] != most || entries[slot * 3 + 1] != least)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Find the index of the given lowercase name in the name index, or the
+     * empty index where it would go.
+     */
+    private int findName(String lowerName, int nameHash) {
+        int mask = nameIndex.length - 1;
+        int index = home(nameHash, mask);
+        while (nameIndex[index] != 0) {
+            int slot = nameIndex[index] - 1;
+            if (nameRefs[slot * 2 + 1] == nameHash && nameMatches(nameRefs[slot * 2], lowerName)) {
+                break;
+            }
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    /**
+     * Remove the name of the entry in the given slot from the name index,
+     * if the entry owns it, shifting back the entries that follow.
+     */
+    private void removeName(int slot) {
+        int mask = nameIndex.length - 1;
+        int index = home(nameRefs[slot * 2 + 1], mask);
+        while (nameIndex[index] != 0 && nameIndex[index] != slot + 1) {
+            index = (index + 1) & mask;
+        }
+        if (nameIndex[index] == 0) {
+            return;
+        }
+
+        nameIndex[index] = 0;
+        int next = index;
+        while (true) {
+            next = (next + 1) & mask;
+            if (nameIndex[next] == 0) {
+                return;
+            }
+            int wanted = home(nameRefs[(nameIndex[next] - 1) * 2 + 1], mask);
+            // Move the entry back unless its home lies cyclically in (index, next]
+            boolean reachable = index <= next
+                    ? index < wanted && wanted <= next
+                    : index < wanted || wanted <= next;
+            if (!reachable) {
+                nameIndex[index] = nameIndex[next];
+                nameIndex[next] = 0;
+                index = next;
+            }
+        }
+    }
+
+    /**
+     * Rebuild the tables with the given capacity, dropping the names that
+     * are no longer used.
+     */
+    private void rehash(int capacity) {
+        long[] oldEntries = entries;
+        int[] oldNameRefs = nameRefs;
+        int[] oldNameIndex = nameIndex;
+        byte[] oldNames = names;
+
+        allocate(capacity, namesLength - garbage);
+        namesLength = 1;
+        garbage = 0;
+
+        int[] moved = new int[oldNameIndex.length];
+        for (int oldSlot = 0; oldSlot < oldNameIndex.length; oldSlot++) {
+            int oldOffset = oldNameRefs[oldSlot * 2];
+            if (oldOffset == 0) {
+                continue;
+            }
+            int slot = findSlot(oldEntries[oldSlot * 3], oldEntries[oldSlot * 3 + 1]);
+            System.arraycopy(oldEntries, oldSlot * 3, entries, slot * 3, 3);
+            nameRefs[slot * 2] = appendName(oldNames, oldOffset);
+            nameRefs[slot * 2 + 1] = oldNameRefs[oldSlot * 2 + 1];
+            moved[oldSlot] = slot;
+        }
+
+        int mask = nameIndex.length - 1;
+        for (int entry : oldNameIndex) {
+            if (entry != 0) {
+                int slot = moved[entry - 1];
+                int index = home(nameRefs[slot * 2 + 1], mask);
+                while (nameIndex[index] != 0) {
+                    index = (index + 1) & mask;
+                }
+                nameIndex[index] = slot + 1;
+            }
+        }
+    }
+
+    private static int home(int hash, int mask) {
+        return (int) mix(hash) & mask;
+    }
+
+}
@@ -20,37 +20,181 @@ package org.enginehub.squirrelid.cache;
 
 import com.google.common.collect.ImmutableMap;
 import org.enginehub.squirrelid.Profile;
+import org.enginehub.squirrelid.util.ProfileSnapshots;
+import org.jspecify.annotations.Nullable;
 
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
- * A {@code MemoryCache} stores entries in a {@link ConcurrentMap}.
+ * A {@code MemoryCache} stores entries in maps in memory.
+ *
+ * <p>Profiles can be found by UUID or case-insensitively by name. Once the
+ * cache holds the maximum number of profiles, one that has not been used
+ * recently is evicted to make room for a new one, using the CLOCK
+ * approximation of least recently used eviction. UUIDs and names that
+ * were not found are bounded and evicted the same way.</p>
+ *
+ * <p>Reads do not take any lock; writes are serialized.</p>
  */
 public class HashMapCache extends AbstractProfileCache {
 
-    // Cannot use Guava because the cache classes are still @Beta
-    // in Guava 10.0.1 and will change
-    private final ConcurrentMap<UUID, String> cache = new ConcurrentHashMap<>();
-    private final ConcurrentMap<String, UUID> cacheBitch = new ConcurrentHashMap<>();
+    private static final int LOAD_BATCH_SIZE = 1000;
+
+    private final int maximumSize;
+    private final ClockMap<UUID, Profile> cache;
+    private final ConcurrentMap<String, UUID> names = new ConcurrentHashMap<>();
+    private final ClockMap<UUID, Instant> missingUuids;
+    private final ClockMap<String, Instant> missingNames;
+
+    /**
+     * Create a new instance.
+     *
+     * @param maximumSize the maximum number of profiles to keep
+     */
+    public HashMapCache(int maximumSize) {
+        checkArgument(maximumSize >= 1, "maximumSize must be >= 1");
+        this.maximumSize = maximumSize;
+        this.cache = new ClockMap<>(maximumSize,
+                (uuid, profile) -> names.remove(profile.name().toLowerCase(Locale.US), uuid));
+        this.missingUuids = new ClockMap<>(maximumSize, (uuid, since) -> { });
+        this.missingNames = new ClockMap<>(maximumSize, (name, since) -> { });
+    }
+
+    /**
+     * Create a new instance that keeps up to 100,000 profiles.
+     */
+    public HashMapCache() {
+        this(100000);
+    }
+
+    /**
+     * Get the maximum number of profiles to keep.
+     *
+     * @return the maximum number of profiles
+     */
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Get the number of profiles in the cache.
+     *
+     * @return the number of profiles
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * Write every profile in the cache to a snapshot file.
+     *
+     * <p>Profiles are written in the order they would be evicted in, so the
+     * most recently used ones come last. Loading the snapshot into a
+     * smaller cache keeps those.</p>
+     *
+     * @param file the file to write
+     * @throws IOException thrown if the file could not be written
+     * @see #loadSnapshot(File)
+     */
+    public void saveSnapshot(File file) throws IOException {
+        ProfileSnapshots.write(file, cache.valuesInEvictionOrder());
+    }
+
+    /**
+     * Add the profiles in a snapshot file to the cache.
+     *
+     * @param file the file to read
+     * @throws IOException thrown if the file could not be read
+     * @see #saveSnapshot(File)
+     */
+    public void loadSnapshot(File file) throws IOException {
+        // Added in batches as the file is read, rather than all at once
+        List<Profile> batch = new ArrayList<>(LOAD_BATCH_SIZE);
+        ProfileSnapshots.read(file, profile -> {
+            batch.add(profile);
+            if (batch.size() == LOAD_BATCH_SIZE) {
+                putAll(batch);
+                batch.clear();
+            }
+        });
+        putAll(batch);
+    }
 
     @Override
-    public void putAll(Iterable<Profile> profiles) {
+    public synchronized void putAll(Iterable<Profile> profiles) {
         for (Profile profile : profiles) {
-            cache.put(profile.uniqueId(), profile.name());
+            UUID uuid = profile.uniqueId();
+            String name = profile.name().toLowerCase(Locale.US);
+
+            Profile previous = cache.put(uuid, profile);
+            if (previous != null && !previous.name().equalsIgnoreCase(name)) {
+                names.remove(previous.name().toLowerCase(Locale.US), uuid);
+            }
+            names.put(name, uuid);
+
+            missingUuids.remove(uuid);
+            missingNames.remove(name);
+        }
+    }
+
+    @Override
+    public void putMissing(UUID uuid) {
+        missingUuids.put(uuid, Instant.now());
+    }
+
+    @Override
+    public void putMissing(String name) {
+        missingNames.put(name.toLowerCase(Locale.US), Instant.now());
+    }
+
+    @Override
+    public @Nullable Instant getMissingSince(UUID uuid) {
+        return missingUuids.get(uuid);
+    }
+
+    @Override
+    public @Nullable Instant getMissingSince(String name) {
+        return missingNames.get(name.toLowerCase(Locale.US));
+    }
+
+    @Override
+    public @Nullable Profile getIfPresent(UUID uuid) {
+        return cache.get(uuid);
+    }
+
+    @Override
+    public @Nullable Profile getIfPresent(String name) {
+        UUID uuid = names.get(name.toLowerCase(Locale.US));
+        if (uuid == null) {
+            return null;
         }
+        Profile profile = cache.get(uuid);
+        // The index may briefly lag behind a put or an eviction
+        return profile != null && profile.name().equalsIgnoreCase(name) ? profile : null;
     }
 
     @Override
     public ImmutableMap<UUID, Profile> getAllPresent(Iterable<UUID> uuids) {
         Map<UUID, Profile> results = new HashMap<>();
         for (UUID uuid : uuids) {
-            String name = cache.get(uuid);
-            if (name != null) {
-                results.put(uuid, new Profile(uuid, name, System.currentTimeMillis()));
+            Profile profile = cache.get(uuid);
+            if (profile != null) {
+                results.put(uuid, profile);
             }
         }
         return ImmutableMap.copyOf(results);
@@ -60,12 +204,135 @@ public class HashMapCache extends AbstractProfileCache {
     public ImmutableMap<String, Profile> allPresent(Iterable<String> names) {
         Map<String, Profile> results = new HashMap<>();
         for (String name : names) {
-            UUID uuid = cacheBitch.get(name);
-            if (uuid != null) {
-                results.put(name, new Profile(uuid, name, System.currentTimeMillis()));
+            Profile profile = getIfPresent(name);
+            if (profile != null) {
+                results.put(name, profile);
             }
         }
         return ImmutableMap.copyOf(results);
     }
 
+    /**
+     * A bounded map that evicts with the CLOCK algorithm.
+     *
+     * <p>Entries sit in a ring of slots. A read only marks its entry as
+     * referenced, without locking. When the map is full, a hand sweeps the
+     * ring, clearing the mark of referenced entries and evicting the first
+     * entry that is not marked.</p>
+     *
+     * @param <K> the key type
+     * @param <V> the value type
+     */
+    private static final class ClockMap<K, V> {
+        private final ConcurrentMap<K, Node<K, V>> map = new ConcurrentHashMap<>();
+        private final Node<?, ?>[] ring;
+        private final Deque<Integer> freeSlots = new ArrayDeque<>();
+        private final BiConsumer<K, V> evictionListener;
+        private int used;
+        private int hand;
+
+        private ClockMap(int maximumSize, BiConsumer<K, V> evictionListener) {
+            this.ring = new Node<?, ?>[maximumSize];
+            this.evictionListener = evictionListener;
+        }
+
+        private int size() {
+            return map.size();
+        }
+
+        /**
+         * Get the values in the order the hand would evict them: those not
+         * used since the hand last passed first, then the others.
+         *
+         * @return the values
+         */
+        @SuppressWarnings("unchecked")
+        private synchronized List<V> valuesInEvictionOrder() {
+            List<V> values = new ArrayList<>(map.size());
+            List<V> referenced = new ArrayList<>();
+            for (int i = 0; i < used; i++) {
+                Node<K, V> node = (Node<K, V>) ring[(hand + i) % used];
+                if (node != null) {
+                    (node.referenced ? referenced : values).add(node.value);
+                }
+            }
+            values.addAll(referenced);
+            return values;
+        }
+
+        private @Nullable V get(K key) {
+            Node<K, V> node = map.get(key);
+            if (node == null) {
+                return null;
+            }
+            if (!node.referenced) {
+                node.referenced = true;
+            }
+            return node.value;
+        }
+
+        private synchronized @Nullable V put(K key, V value) {
+            Node<K, V> previous = map.get(key);
+            int slot;
+            if (previous != null) {
+                slot = previous.slot;
+            } else if (!freeSlots.isEmpty()) {
+                slot = freeSlots.pop();
+            } else if (used < ring.length) {
+                slot = used++;
+            } else {
+                slot = evict();
+            }
+
+            Node<K, V> node = new Node<>(key, value, slot);
+            node.referenced = previous != null;
+            ring[slot] = node;
+            map.put(key, node);
+            return previous != null ? previous.value : null;
+        }
+
+        private synchronized void remove(K key) {
+            Node<K, V> node = map.remove(key);
+            if (node != null) {
+                ring[node.slot] = null;
+                freeSlots.push(node.slot);
+            }
+        }
+
+        /**
+         * Evict an entry from the full ring.
+         *
+         * @return the slot that was freed
+         */
+        @SuppressWarnings("unchecked")
+        private int evict() {
+            while (true) {
+                Node<K, V> node = (Node<K, V>) ring[hand];
+                int slot = hand;
+                hand = (hand + 1) % ring.length;
+                if (node.referenced) {
+                    node.referenced = false;
+                } else {
+                    map.remove(node.key);
+                    ring[slot] = null;
+                    evictionListener.accept(node.key, node.value);
+                    return slot;
+                }
+            }
+        }
+    }
+
+    private static final class Node<K, V> {
+        private final K key;
+        private final V value;
+        private final int slot;
+        private volatile boolean referenced;
+
+        private Node(K key, V value, int slot) {
+            this.key = key;
+            this.value = value;
+            this.slot = slot;
+        }
+    }
+
 }
@@ -0,0 +1,441 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.cache;
+
+import com.google.common.collect.ImmutableMap;
+import org.enginehub.squirrelid.Profile;
+import org.jspecify.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An implementation of a UUID cache using a memory-mapped file that
+ * profiles are appended to.
+ *
+ * <p>Each profile is stored as a record of a fixed size holding its UUID,
+ * the time it was cached and its name. A newer record for the same UUID
+ * supersedes an older one, which stays in the file until
+ * {@link #compact()} is called. Names are stored as UTF-8 and names
+ * over {@value #MAX_NAME_LENGTH} bytes long are not cached.</p>
+ *
+ * <p>The file is mapped as a single buffer, which limits it to 2 GiB, or
+ * {@value #MAX_RECORDS} records including superseded ones. Once it is full,
+ * profiles are not cached until the file is compacted.</p>
+ *
+ * <p>When the file is opened, its records are scanned once to build hash
+ * indexes by UUID and by lowercase name in memory. Lookups read the mapped
+ * file directly and never block, while writes are made one at a time.</p>
+ */
+public class MappedFileCache extends AbstractProfileCache implements AutoCloseable {
+
+    private static final Logger log = Logger.getLogger(MappedFileCache.class.getCanonicalName());
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private static final int MAGIC = 0x53514944; // "SQID"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 64;
+    private static final int MAX_NAME_LENGTH = RECORD_SIZE - 26;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_RECORDS = (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE;
+
+    // Record layout
+    private static final int MOST_BITS = 0;
+    private static final int LEAST_BITS = 8;
+    private static final int TIME_CACHED = 16;
+    private static final int COMMITTED = 24;
+    private static final int NAME_LENGTH = 25;
+    private static final int NAME = 26;
+
+    private final Path path;
+    private FileChannel channel;
+    private volatile State state;
+    private int count;
+
+    /**
+     * Create a new instance.
+     *
+     * @param file the path to the file to use, which is created if it does not exist
+     * @throws IOException if the file could not be opened or is not a cache file
+     */
+    public MappedFileCache(File file) throws IOException {
+        checkNotNull(file);
+        this.path = file.toPath();
+        open();
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long size = channel.size();
+            if (size == 0) {
+                MappedByteBuffer buffer = map(INITIAL_CAPACITY);
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(8, RECORD_SIZE);
+                count = 0;
+                state = new State(buffer, INITIAL_CAPACITY);
+                return;
+            }
+
+            long records = (size - HEADER_SIZE) / RECORD_SIZE;
+            if (records > MAX_RECORDS) {
+                throw new IOException(path + " is too large to map");
+            }
+            int capacity = (int) Math.max(INITIAL_CAPACITY, records);
+            MappedByteBuffer buffer = map(capacity);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(8) != RECORD_SIZE) {
+                throw new IOException(path + " is not a profile cache file");
+            }
+
+            // Records after the last committed one were never completely written
+            count = 0;
+            while (count < capacity && buffer.get(offset(count) + COMMITTED) != 0) {
+                count++;
+            }
+            state = index(buffer, capacity, count);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private MappedByteBuffer map(int capacity) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+    }
+
+    /**
+     * Get the offset of a record, which cannot overflow as long as the
+     * record lies within the {@value #MAX_RECORDS} records of the mapping.
+     */
+    private static int offset(int record) {
+        return HEADER_SIZE + record * RECORD_SIZE;
+    }
+
+    /**
+     * Build the indexes over the given records.
+     */
+    private static State index(MappedByteBuffer buffer, int capacity, int count) {
+        State state = new State(buffer, capacity);
+        for (int record = 0; record < count; record++) {
+            state.add(record);
+        }
+        return state;
+    }
+
+    /**
+     * Get the number of records in the file, including superseded ones.
+     *
+     * @return the number of records
+     */
+    public synchronized int getRecordCount() {
+        return count;
+    }
+
+    @Override
+    public synchronized void putAll(Iterable<Profile> profiles) {
+        try {
+            for (Profile profile : profiles) {
+                append(profile);
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to write to " + path, e);
+        }
+    }
+
+    private void append(Profile profile) throws IOException {
+        byte[] name = encodeName(profile, MAX_NAME_LENGTH, log);
+        if (name == null) {
+            return;
+        }
+
+        State current = state;
+        if (count == current.capacity) {
+            if (count == MAX_RECORDS) {
+                throw new IOException(path + " is full with " + count + " records and needs to be compacted");
+            }
+            int capacity = (int) Math.min(MAX_RECORDS, current.capacity * 2L);
+            current = index(map(capacity), capacity, count);
+            state = current;
+        }
+
+        MappedByteBuffer buffer = current.buffer;
+        int offset = offset(count);
+        buffer.putLong(offset + MOST_BITS, profile.uniqueId().getMostSignificantBits());
+        buffer.putLong(offset + LEAST_BITS, profile.uniqueId().getLeastSignificantBits());
+        buffer.putLong(offset + TIME_CACHED, profile.timeCached());
+        buffer.put(offset + NAME_LENGTH, (byte) name.length);
+        buffer.put(offset + NAME, name);
+        buffer.put(offset + COMMITTED, (byte) 1);
+
+        current.add(count);
+        count++;
+    }
+
+    /**
+     * Write changes to the file to the storage device.
+     */
+    public void flush() {
+        state.buffer.force();
+    }
+
+    /**
+     * Rewrite the file without superseded records.
+     *
+     * <p>The records are written to a new file, which then replaces the
+     * old one. Readers keep using the old mapping until the new file has
+     * been opened.</p>
+     *
+     * @throws IOException if the file could not be rewritten, in which case the old file is kept
+     */
+    public synchronized void compact() throws IOException {
+        State current = state;
+        Path temp = path.resolveSibling(path.getFileName() + ".compact");
+
+        int live = 0;
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            int capacity = INITIAL_CAPACITY;
+            while (capacity < current.size) {
+                capacity = (int) Math.min(MAX_RECORDS, capacity * 2L);
+            }
+            MappedByteBuffer target = out.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+            target.put(0, current.buffer, 0, HEADER_SIZE);
+
+            for (int record = 0; record < count; record++) {
+                if (current.isLatest(record)) {
+                    target.put(offset(live), current.buffer, offset(record), RECORD_SIZE);
+                    live++;
+                }
+            }
+            target.force();
+        } catch (IOException | RuntimeException e) {
+            deleteQuietly(temp, e);
+            throw e;
+        }
+
+        // Some platforms do not allow replacing a file with an open channel
+        channel.close();
+        try {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            deleteQuietly(temp, e);
+            throw e;
+        } finally {
+            // Opens the new file, or the old one again if it could not be replaced
+            open();
+        }
+        log.fine("Compacted " + path + " from " + current.size + " to " + live + " records");
+    }
+
+    private static void deleteQuietly(Path path, Exception cause) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+        }
+    }
+
+    @Override
+    public @Nullable Profile getIfPresent(UUID uuid) {
+        State current = state;
+        int record = current.find(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        return record >= 0 ? current.read(record) : null;
+    }
+
+    @Override
+    public @Nullable Profile getIfPresent(String name) {
+        State current = state;
+        int record = current.find(name.toLowerCase(Locale.US));
+        return record >= 0 ? current.read(record) : null;
+    }
+
+    @Override
+    public ImmutableMap<UUID, Profile> getAllPresent(Iterable<UUID> uuids) {
+        State current = state;
+        Map<UUID, Profile> results = new HashMap<>();
+        for (UUID uuid : uuids) {
+            int record = current.find(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+            if (record >= 0) {
+                results.put(uuid, current.read(record));
+            }
+        }
+        return ImmutableMap.copyOf(results);
+    }
+
+    @Override
+    public ImmutableMap<String, Profile> allPresent(Iterable<String> names) {
+        State current = state;
+        Map<String, Profile> results = new HashMap<>();
+        for (String name : names) {
+            int record = current.find(name.toLowerCase(Locale.US));
+            if (record >= 0) {
+                results.put(name, current.read(record));
+            }
+        }
+        return ImmutableMap.copyOf(results);
+    }
+
+    /**
+     * Close the file.
+     *
+     * @throws IOException if the file could not be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    /**
+     * A mapping of the file together with indexes over its records.
+     *
+     * <p>The indexes are open-addressing hash tables that hold record
+     * numbers plus one, with 0 marking an empty slot. A slot only ever
+     * changes from empty to a record, or from a record to a newer record
+     * with the same key, and it is written with release semantics after
+     * the record itself, so readers can probe without locking. Every record
+     * that the indexes refer to lies within the mapping.</p>
+     */
+    private static final class State {
+        private final MappedByteBuffer buffer;
+        private final int capacity;
+        private final int[] byUuid;
+        private final int[] byName;
+        private final int mask;
+        private int size;
+
+        private State(MappedByteBuffer buffer, int capacity) {
+            this.buffer = buffer;
+            this.capacity = capacity;
+            // At least twice as many slots as records, so that probes stay short
+            int slots = Integer.highestOneBit(capacity * 4 - 1);
+            this.byUuid = new int[slots];
+            this.byName = new int[slots];
+            this.mask = slots - 1;
+        }
+
+        /**
+         * Index the given record, which supersedes any earlier record with
+         * the same UUID or name. Only called by the writer.
+         */
+        private void add(int record) {
+            int offset = offset(record);
+            long most = buffer.getLong(offset + MOST_BITS);
+            long least = buffer.getLong(offset + LEAST_BITS);
+
+            int slot = uuidHome(most, least);
+            int existing;
+            while ((existing = (int) SLOTS.getAcquire(byUuid, slot)) != 0 && !hasUuid(existing - 1, most, least)) {
+                slot = (slot + 1) & mask;
+            }
+            if (existing == 0) {
+                size++;
+            }
+            SLOTS.setRelease(byUuid, slot, record + 1);
+
+            String lowerName = readName(record).toLowerCase(Locale.US);
+            slot = nameHome(lowerName);
+            while ((existing = (int) SLOTS.getAcquire(byName, slot)) != 0 && !hasName(existing - 1, lowerName)) {
+                slot = (slot + 1) & mask;
+            }
+            SLOTS.setRelease(byName, slot, record + 1);
+        }
+
+        private int find(long most, long least) {
+            int slot = uuidHome(most, least);
+            int entry;
+            while ((entry = (int) SLOTS.getAcquire(byUuid, slot)) != 0) {
+                if (hasUuid(entry - 1, most, least)) {
+                    return entry - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private int find(String lowerName) {
+            int slot = nameHome(lowerName);
+            int entry;
+            while ((entry = (int) SLOTS.getAcquire(byName, slot)) != 0) {
+                int record = entry - 1;
+                if (hasName(record, lowerName)) {
+                    // The profile may have been renamed since
+                    return isLatest(record) ? record : -1;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private boolean isLatest(int record) {
+            int offset = offset(record);
+            return find(buffer.getLong(offset + MOST_BITS), buffer.getLong(offset + LEAST_BITS)) == record;
+        }
+
+        private boolean hasUuid(int record, long most, long least) {
+            int offset = offset(record);
+            return buffer.getLong(offset + MOST_BITS) == most && buffer.getLong(offset + LEAST_BITS) == least;
+        }
+
+        private boolean hasName(int record, String lowerName) {
+            return readName(record).equalsIgnoreCase(lowerName);
+        }
+
+        private String readName(int record) {
+            int offset = offset(record);
+            byte[] name = new byte[buffer.get(offset + NAME_LENGTH)];
+            buffer.get(offset + NAME, name);
+            return new String(name, StandardCharsets.UTF_8);
+        }
+
+        private Profile read(int record) {
+            int offset = offset(record);
+            UUID uuid = new UUID(buffer.getLong(offset + MOST_BITS), buffer.getLong(offset + LEAST_BITS));
+            return new Profile(uuid, readName(record), buffer.getLong(offset + TIME_CACHED));
+        }
+
+        private int uuidHome(long most, long least) {
+            return (int) hashUuid(most, least) & mask;
+        }
+
+        private int nameHome(String lowerName) {
+            return (int) mix(lowerName.hashCode()) & mask;
+        }
+    }
+
+}
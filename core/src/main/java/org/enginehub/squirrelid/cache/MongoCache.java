@@ -24,8 +24,13 @@ import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Collation;
+import com.mongodb.client.model.CollationStrength;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
 import com.mongodb.client.model.ReplaceOptions;
+import org.bson.Document;
 import org.bson.UuidRepresentation;
 import org.bson.codecs.configuration.CodecProvider;
 import org.bson.codecs.configuration.CodecRegistry;
@@ -34,21 +39,38 @@ import org.enginehub.squirrelid.Profile;
 import org.jspecify.annotations.NonNull;
 import org.jspecify.annotations.Nullable;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.mongodb.MongoClientSettings.getDefaultCodecRegistry;
 import static org.bson.codecs.configuration.CodecRegistries.fromProviders;
 import static org.bson.codecs.configuration.CodecRegistries.fromRegistries;
 
+/**
+ * An implementation of a UUID cache using a MongoDB database.
+ *
+ * <p>Negative entries are deleted by MongoDB once the
+ * {@linkplain #setMissingExpiry(Duration) missing expiry} has passed,
+ * through a TTL index.</p>
+ */
 public class MongoCache extends AbstractProfileCache {
 
     private final String databaseName;
     private final MongoCollection<Profile> collection;
+    private final MongoCollection<Document> missingCollection;
     private final MongoDatabase database;
     private final MongoClient client;
+    private volatile Duration missingExpiry = DEFAULT_MISSING_EXPIRY;
 
     public MongoCache(final @Nullable MongoClient mongoClient, final @NonNull String databaseName) {
         checkNotNull(databaseName, "databaseName cannot be null.");
@@ -65,6 +87,34 @@ public class MongoCache extends AbstractProfileCache {
         this.database = this.client.getDatabase(this.databaseName).withCodecRegistry(pojoCodecRegistry);
 
         this.collection = this.database.getCollection("profiles", Profile.class);
+        // Keyed by UUID or lowercase name, which can never be mistaken for one another
+        this.missingCollection = this.database.getCollection("missing");
+        // Every entry carries its own expiry time, so changing the expiry never needs a new index
+        this.missingCollection.createIndex(Indexes.ascending("expireAt"), new IndexOptions().expireAfter(0L, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Get how long negative entries are kept before they are deleted.
+     *
+     * @return the expiry
+     */
+    public Duration getMissingExpiry() {
+        return missingExpiry;
+    }
+
+    /**
+     * Set how long negative entries are kept before they are deleted.
+     *
+     * <p>This should be longer than the negative cache time of the
+     * {@link org.enginehub.squirrelid.resolver.CacheForwardingService}
+     * that uses this cache, or entries are looked up again early.</p>
+     *
+     * @param missingExpiry the expiry
+     */
+    public void setMissingExpiry(Duration missingExpiry) {
+        checkNotNull(missingExpiry);
+        checkArgument(!missingExpiry.isNegative() && !missingExpiry.isZero(), "missingExpiry must be positive");
+        this.missingExpiry = missingExpiry;
     }
 
     @Override
@@ -75,9 +125,47 @@ public class MongoCache extends AbstractProfileCache {
             return;
         }
 
+        final List<String> found = new ArrayList<>();
         for (final Profile profile : profiles) {
             this.collection.replaceOne(Filters.eq("uniqueId", profile.uniqueId()), profile, new ReplaceOptions().upsert(true));
+            found.add(profile.uniqueId().toString());
+            found.add(profile.name().toLowerCase(Locale.US));
         }
+        this.missingCollection.deleteMany(Filters.in("_id", found));
+    }
+
+    @Override
+    public void putMissing(UUID uuid) {
+        putMissingId(uuid.toString());
+    }
+
+    @Override
+    public void putMissing(String name) {
+        putMissingId(name.toLowerCase(Locale.US));
+    }
+
+    @Override
+    public @Nullable Instant getMissingSince(UUID uuid) {
+        return getMissingSinceId(uuid.toString());
+    }
+
+    @Override
+    public @Nullable Instant getMissingSince(String name) {
+        return getMissingSinceId(name.toLowerCase(Locale.US));
+    }
+
+    private void putMissingId(String id) {
+        final long now = System.currentTimeMillis();
+        this.missingCollection.replaceOne(Filters.eq("_id", id),
+                new Document("_id", id)
+                        .append("time", now)
+                        .append("expireAt", new Date(now + this.missingExpiry.toMillis())),
+                new ReplaceOptions().upsert(true));
+    }
+
+    private @Nullable Instant getMissingSinceId(String id) {
+        final Document found = this.missingCollection.find(Filters.eq("_id", id)).first();
+        return found != null ? Instant.ofEpochMilli(found.getLong("time")) : null;
     }
 
     @Override
@@ -90,11 +178,8 @@ public class MongoCache extends AbstractProfileCache {
 
         final ImmutableMap.Builder<UUID, Profile> mapBuilder = ImmutableMap.builder();
 
-        for (final UUID uuid : ids) {
-            final var first = this.collection.find(Filters.eq("uniqueId", uuid)).first();
-            if (first != null) {
-                mapBuilder.put(first.uniqueId(), first);
-            }
+        for (final Profile found : this.collection.find(Filters.in("uniqueId", ids))) {
+            mapBuilder.put(found.uniqueId(), found);
         }
 
         return mapBuilder.build();
@@ -108,13 +193,10 @@ public class MongoCache extends AbstractProfileCache {
             return ImmutableMap.of();
         }
 
-        final var foundings = this.collection.find(Filters.eq("name", it));
+        // Match names case-insensitively
+        final var foundings = this.collection.find(Filters.in("name", names))
+                .collation(Collation.builder().locale("en").collationStrength(CollationStrength.SECONDARY).build());
 
-        final ImmutableMap.Builder<String, Profile> mapBuilder = ImmutableMap.builder();
-        for (var found : foundings) {
-            mapBuilder.put(found.name(), found);
-        }
-
-        return mapBuilder.build();
+        return byRequestedName(names, foundings);
     }
 }
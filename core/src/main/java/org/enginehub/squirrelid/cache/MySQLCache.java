@@ -20,16 +20,24 @@ package org.enginehub.squirrelid.cache;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
 import org.enginehub.squirrelid.Profile;
 import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
 import java.util.logging.Level;
@@ -47,15 +55,22 @@ import static com.google.common.base.Preconditions.checkNotNull;
  *
  * <p>The implementation performs all requests in a single thread, so calls may block for a short
  * period of time.</p>
+ *
+ * <p>Negative entries older than the {@linkplain #setMissingExpiry(Duration) missing expiry} are
+ * deleted from time to time while new ones are written.</p>
  */
 public class MySQLCache extends AbstractProfileCache {
 
     public static final String TABLE_NAME = "uuid_cache";
     private static final Logger log = Logger.getLogger(MySQLCache.class.getCanonicalName());
+    private static final int MAX_MISSING_ID_LENGTH = 255;
     private final String tableName;
     private final String queryString;
+    private final String missingTableName;
     private DataSource dataSource;
     private Connection connection;
+    private volatile Duration missingExpiry = DEFAULT_MISSING_EXPIRY;
+    private long lastPurge;
 
     private MySQLCache(@NonNull Object o, @NonNull String tableName) throws SQLException {
         checkNotNull(o);
@@ -68,7 +83,8 @@ public class MySQLCache extends AbstractProfileCache {
             this.dataSource = ((DataSource) o);
         }
         this.tableName = tableName;
-        this.queryString = "REPLACE INTO `" + tableName + "` (uuid, name) VALUES (?, ?)";
+        this.queryString = "REPLACE INTO `" + tableName + "` (uuid, name, time) VALUES (?, ?, ?)";
+        this.missingTableName = tableName + "_missing";
         createTable();
     }
 
@@ -132,6 +148,30 @@ public class MySQLCache extends AbstractProfileCache {
         return new MySQLCache(connection, tableName);
     }
 
+    /**
+     * Get how long negative entries are kept before they are deleted.
+     *
+     * @return the expiry
+     */
+    public Duration getMissingExpiry() {
+        return missingExpiry;
+    }
+
+    /**
+     * Set how long negative entries are kept before they are deleted.
+     *
+     * <p>This should be longer than the negative cache time of the
+     * {@link org.enginehub.squirrelid.resolver.CacheForwardingService}
+     * that uses this cache, or entries are looked up again early.</p>
+     *
+     * @param missingExpiry the expiry
+     */
+    public void setMissingExpiry(Duration missingExpiry) {
+        checkNotNull(missingExpiry);
+        checkArgument(!missingExpiry.isNegative() && !missingExpiry.isZero(), "missingExpiry must be positive");
+        this.missingExpiry = missingExpiry;
+    }
+
     @Override
     public void putAll(Iterable<Profile> profiles) {
         try {
@@ -154,7 +194,13 @@ public class MySQLCache extends AbstractProfileCache {
 
     @Override
     public ImmutableMap<String, Profile> allPresent(Iterable<String> names) {
-        return ImmutableMap.of(); // bitches
+        try {
+            return executeGetByName(names);
+        } catch (SQLException e) {
+            log.log(Level.WARNING, "Failed to execute queries", e);
+        }
+
+        return ImmutableMap.of();
     }
 
     /**
@@ -170,7 +216,21 @@ public class MySQLCache extends AbstractProfileCache {
             stmt.executeUpdate(
                 "CREATE TABLE IF NOT EXISTS `" + this.tableName + "` ("
                     + "`uuid` CHAR(36) PRIMARY KEY NOT NULL, "
-                    + "`name` VARCHAR(16) NOT NULL UNIQUE KEY)");
+                    + "`name` VARCHAR(16) NOT NULL UNIQUE KEY, "
+                    + "`time` BIGINT NOT NULL)");
+            try {
+                // Profiles cached by older versions count as cached now
+                stmt.executeUpdate(
+                    "ALTER TABLE `" + this.tableName + "` ADD COLUMN `time` BIGINT NOT NULL DEFAULT " + System.currentTimeMillis());
+            } catch (SQLException ignored) {
+                // Column may already exist
+            }
+            // Holds both UUIDs and lowercase names, which can never be mistaken for one another
+            stmt.executeUpdate(
+                "CREATE TABLE IF NOT EXISTS `" + this.missingTableName + "` ("
+                    + "`id` VARCHAR(" + MAX_MISSING_ID_LENGTH + ") PRIMARY KEY NOT NULL, "
+                    + "`time` BIGINT NOT NULL, "
+                    + "INDEX (`time`))");
         } catch (SQLException e) {
             throw new SQLException("Failed to create table.", e);
         } finally {
@@ -178,15 +238,99 @@ public class MySQLCache extends AbstractProfileCache {
         }
     }
 
+    @Override
+    public void putMissing(UUID uuid) {
+        putMissingId(uuid.toString());
+    }
+
+    @Override
+    public void putMissing(String name) {
+        putMissingId(name.toLowerCase(Locale.US));
+    }
+
+    @Override
+    public @Nullable Instant getMissingSince(UUID uuid) {
+        return getMissingSinceId(uuid.toString());
+    }
+
+    @Override
+    public @Nullable Instant getMissingSince(String name) {
+        return getMissingSinceId(name.toLowerCase(Locale.US));
+    }
+
+    private void putMissingId(String id) {
+        if (id.length() > MAX_MISSING_ID_LENGTH) {
+            // Not a name that could ever be found
+            return;
+        }
+        try {
+            executePutMissing(id, System.currentTimeMillis());
+        } catch (SQLException e) {
+            log.log(Level.WARNING, "Failed to execute queries", e);
+        }
+    }
+
+    private @Nullable Instant getMissingSinceId(String id) {
+        try {
+            return executeGetMissing(id);
+        } catch (SQLException e) {
+            log.log(Level.WARNING, "Failed to execute queries", e);
+        }
+
+        return null;
+    }
+
     protected synchronized void executePut(Iterable<Profile> profiles) throws SQLException {
         Connection conn = getConnection();
-        try (PreparedStatement stmt = conn.prepareStatement(this.queryString)) {
+        try (PreparedStatement stmt = conn.prepareStatement(this.queryString);
+             PreparedStatement clearStmt = conn.prepareStatement(
+                 "DELETE FROM `" + this.missingTableName + "` WHERE id IN (?, ?)")) {
             for (Profile profile : profiles) {
                 stmt.setString(1, profile.uniqueId().toString());
                 stmt.setString(2, profile.name());
+                stmt.setLong(3, profile.timeCached());
                 stmt.addBatch();
+
+                clearStmt.setString(1, profile.uniqueId().toString());
+                clearStmt.setString(2, profile.name().toLowerCase(Locale.US));
+                clearStmt.addBatch();
             }
             stmt.executeBatch();
+            clearStmt.executeBatch();
+        } finally {
+            close(conn);
+        }
+    }
+
+    protected synchronized void executePutMissing(String id, long time) throws SQLException {
+        Connection conn = getConnection();
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "REPLACE INTO `" + this.missingTableName + "` (id, time) VALUES (?, ?)")) {
+            stmt.setString(1, id);
+            stmt.setLong(2, time);
+            stmt.executeUpdate();
+
+            if (time - lastPurge >= MISSING_PURGE_INTERVAL) {
+                lastPurge = time;
+                try (PreparedStatement purgeStmt = conn.prepareStatement(
+                        "DELETE FROM `" + this.missingTableName + "` WHERE time < ?")) {
+                    purgeStmt.setLong(1, time - missingExpiry.toMillis());
+                    purgeStmt.executeUpdate();
+                }
+            }
+        } finally {
+            close(conn);
+        }
+    }
+
+    protected synchronized @Nullable Instant executeGetMissing(String id) throws SQLException {
+        Connection conn = getConnection();
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "SELECT time FROM `" + this.missingTableName + "` WHERE id = ?")) {
+            stmt.setString(1, id);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? Instant.ofEpochMilli(rs.getLong("time")) : null;
+            }
         } finally {
             close(conn);
         }
@@ -201,7 +345,7 @@ public class MySQLCache extends AbstractProfileCache {
 
         StringBuilder builder = new StringBuilder();
         // SELECT ... WHERE ... IN ('abc', 'def', 'ghi');
-        builder.append("SELECT name, uuid FROM `").append(this.tableName).append("` WHERE uuid IN ('");
+        builder.append("SELECT name, uuid, time FROM `").append(this.tableName).append("` WHERE uuid IN ('");
         Joiner.on("', '").skipNulls().appendTo(builder, ids);
         builder.append("');");
 
@@ -213,7 +357,7 @@ public class MySQLCache extends AbstractProfileCache {
 
                 while (rs.next()) {
                     UUID uuid = UUID.fromString(rs.getString("uuid"));
-                    map.put(uuid, new Profile(uuid, rs.getString("name"), System.currentTimeMillis()));
+                    map.put(uuid, new Profile(uuid, rs.getString("name"), rs.getLong("time")));
                 }
 
                 return ImmutableMap.copyOf(map);
@@ -223,6 +367,36 @@ public class MySQLCache extends AbstractProfileCache {
         }
     }
 
+    protected ImmutableMap<String, Profile> executeGetByName(Iterable<String> names) throws SQLException {
+        List<Profile> found = new ArrayList<>();
+
+        // Names are compared case-insensitively by the default collation
+        for (List<String> partition : Iterables.partition(names, 500)) {
+            String query = "SELECT name, uuid, time FROM `" + this.tableName + "` WHERE name IN ("
+                + String.join(", ", Collections.nCopies(partition.size(), "?")) + ")";
+
+            synchronized (this) {
+                Connection conn = getConnection();
+                try (PreparedStatement stmt = conn.prepareStatement(query)) {
+                    for (int i = 0; i < partition.size(); i++) {
+                        stmt.setString(i + 1, checkNotNull(partition.get(i), "Unexpected null name"));
+                    }
+
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            UUID uuid = UUID.fromString(rs.getString("uuid"));
+                            found.add(new Profile(uuid, rs.getString("name"), rs.getLong("time")));
+                        }
+                    }
+                } finally {
+                    close(conn);
+                }
+            }
+        }
+
+        return byRequestedName(names, found);
+    }
+
     private Connection getConnection() throws SQLException {
         if (this.connection != null) {
             return this.connection;
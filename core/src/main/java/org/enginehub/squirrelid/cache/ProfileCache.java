@@ -23,6 +23,7 @@ import org.enginehub.squirrelid.Profile;
 import org.jspecify.annotations.NonNull;
 import org.jspecify.annotations.Nullable;
 
+import java.time.Instant;
 import java.util.UUID;
 
 /**
@@ -94,4 +95,59 @@ public interface ProfileCache {
      */
     ImmutableMap<String, Profile> allPresent(Iterable<String> names);
 
+    /**
+     * Remember that no profile exists for the given UUID.
+     *
+     * <p>The entry is removed once a profile with the UUID is stored. Caches
+     * that do not support negative entries ignore this call.</p>
+     *
+     * <p>If the operation fails, an error will be logged but no exception
+     * will be thrown.</p>
+     *
+     * @param uuid the UUID
+     */
+    default void putMissing(UUID uuid) {
+    }
+
+    /**
+     * Remember that no profile exists for the given name.
+     *
+     * <p>The entry is removed once a profile with the name (compared
+     * case-insensitively) is stored. Caches that do not support negative
+     * entries ignore this call.</p>
+     *
+     * <p>If the operation fails, an error will be logged but no exception
+     * will be thrown.</p>
+     *
+     * @param name the name
+     */
+    default void putMissing(String name) {
+    }
+
+    /**
+     * Query the cache for when the given UUID was last found not to exist.
+     *
+     * <p>If the operation fails, an error will be logged but no exception
+     * will be thrown.</p>
+     *
+     * @param uuid the UUID
+     * @return the time, or {@code null} if there is no such entry
+     */
+    default @Nullable Instant getMissingSince(UUID uuid) {
+        return null;
+    }
+
+    /**
+     * Query the cache for when the given name was last found not to exist.
+     *
+     * <p>If the operation fails, an error will be logged but no exception
+     * will be thrown.</p>
+     *
+     * @param name the name
+     * @return the time, or {@code null} if there is no such entry
+     */
+    default @Nullable Instant getMissingSince(String name) {
+        return null;
+    }
+
 }
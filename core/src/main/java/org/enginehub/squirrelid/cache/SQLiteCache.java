@@ -19,8 +19,10 @@
 package org.enginehub.squirrelid.cache;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
 import org.enginehub.squirrelid.Profile;
 import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
@@ -30,35 +32,66 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Properties;
 import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * An implementation of a UUID cache using a SQLite database.
  *
- * <p>The implementation performs all requests in a single thread, so
- * calls may block for a short period of time.</p>
+ * <p>Writes are made one at a time on a single connection, so calls may
+ * block for a short period of time. Reads are spread over a small pool of
+ * read-only connections, and thanks to the write-ahead log, they do not
+ * wait for writes.</p>
+ *
+ * <p>Negative entries older than the
+ * {@linkplain #setMissingExpiry(Duration) missing expiry} are deleted
+ * from time to time while new ones are written.</p>
  */
-public class SQLiteCache extends AbstractProfileCache {
+public class SQLiteCache extends AbstractProfileCache implements AutoCloseable {
 
     private static final Logger log = Logger.getLogger(SQLiteCache.class.getCanonicalName());
+    private static final int SQLITE_OPEN_READONLY = 1;
+    // Stays well below the limit on the number of parameters of a statement
+    private static final int MAX_PARAMETERS = 512;
+
     private final Connection connection;
     private final PreparedStatement updateStatement;
+    private final PreparedStatement putMissingStatement;
+    private final PreparedStatement clearMissingStatement;
+    private final PreparedStatement purgeMissingStatement;
+    // Idle read-only connections, guarded by itself
+    private final Deque<Reader> readers;
+    private volatile boolean closed;
+    private volatile Duration missingExpiry = DEFAULT_MISSING_EXPIRY;
+    private long lastPurge;
 
     /**
      * Create a new instance.
      *
      * @param file the path to a SQLite file to use
+     * @param readerCount the number of read-only connections to open
      * @throws IOException if the database failed
      */
-    public SQLiteCache(File file) throws IOException {
+    public SQLiteCache(File file, int readerCount) throws IOException {
         checkNotNull(file);
+        checkArgument(readerCount >= 1, "readerCount must be >= 1");
 
+        readers = new ArrayDeque<>(readerCount);
         try {
             Class.forName("org.sqlite.JDBC");
             connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
@@ -68,26 +101,95 @@ public class SQLiteCache extends AbstractProfileCache {
             throw new IOException("Failed to connect to cache file", e);
         }
 
+        boolean opened = false;
         try {
-            createTable();
-        } catch (SQLException e) {
-            throw new IOException("Failed to create tables", e);
-        }
+            try {
+                configure();
+            } catch (SQLException e) {
+                throw new IOException("Failed to configure the database", e);
+            }
 
-        try {
-            updateStatement = connection.prepareStatement("INSERT OR REPLACE INTO uuid_cache (uuid, name) VALUES (?, ?)");
-        } catch (SQLException e) {
-            throw new IOException("Failed to prepare statements", e);
+            try {
+                createTable();
+            } catch (SQLException e) {
+                throw new IOException("Failed to create tables", e);
+            }
+
+            try {
+                updateStatement = connection.prepareStatement("INSERT OR REPLACE INTO uuid_cache (uuid, name, time) VALUES (?, ?, ?)");
+                putMissingStatement = connection.prepareStatement("INSERT OR REPLACE INTO uuid_cache_missing (id, time) VALUES (?, ?)");
+                clearMissingStatement = connection.prepareStatement("DELETE FROM uuid_cache_missing WHERE id IN (?, ?)");
+                purgeMissingStatement = connection.prepareStatement("DELETE FROM uuid_cache_missing WHERE time < ?");
+            } catch (SQLException e) {
+                throw new IOException("Failed to prepare statements", e);
+            }
+
+            Properties properties = new Properties();
+            properties.setProperty("open_mode", String.valueOf(SQLITE_OPEN_READONLY));
+            try {
+                for (int i = 0; i < readerCount; i++) {
+                    readers.push(new Reader(DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath(), properties)));
+                }
+            } catch (SQLException e) {
+                throw new IOException("Failed to open read-only connections to cache file", e);
+            }
+            opened = true;
+        } finally {
+            if (!opened) {
+                // Do not leak the connections that were opened so far
+                close();
+            }
         }
     }
 
+    /**
+     * Create a new instance with a read-only connection for each
+     * processor, up to 4.
+     *
+     * @param file the path to a SQLite file to use
+     * @throws IOException if the database failed
+     */
+    public SQLiteCache(File file) throws IOException {
+        this(file, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Get how long negative entries are kept before they are deleted.
+     *
+     * @return the expiry
+     */
+    public Duration getMissingExpiry() {
+        return missingExpiry;
+    }
+
+    /**
+     * Set how long negative entries are kept before they are deleted.
+     *
+     * <p>This should be longer than the negative cache time of the
+     * {@link org.enginehub.squirrelid.resolver.CacheForwardingService}
+     * that uses this cache, or entries are looked up again early.</p>
+     *
+     * @param missingExpiry the expiry
+     */
+    public void setMissingExpiry(Duration missingExpiry) {
+        checkNotNull(missingExpiry);
+        checkArgument(!missingExpiry.isNegative() && !missingExpiry.isZero(), "missingExpiry must be positive");
+        this.missingExpiry = missingExpiry;
+    }
+
     @Override
     public ImmutableMap<String, Profile> allPresent(Iterable<String> names) {
-        return ImmutableMap.of(); // bitches
+        try {
+            return executeGetByName(names);
+        } catch (SQLException e) {
+            log.log(Level.WARNING, "Failed to execute queries", e);
+        }
+
+        return ImmutableMap.of();
     }
 
     /**
-     * Get the connection.
+     * Get the connection that writes are made on.
      *
      * @return a connection
      * @throws SQLException thrown on error
@@ -96,6 +198,25 @@ public class SQLiteCache extends AbstractProfileCache {
         return connection;
     }
 
+    /**
+     * Configure the connection for fast writes.
+     *
+     * <p>With a write-ahead log, readers do not block writers and writers
+     * do not block readers, and with {@code synchronous=NORMAL}, commits
+     * do not wait for the disk, at the risk of losing the last few commits
+     * if the machine crashes.</p>
+     *
+     * @throws SQLException thrown on error
+     */
+    private void configure() throws SQLException {
+        try (Statement stmt = getConnection().createStatement()) {
+            stmt.execute("PRAGMA journal_mode=WAL");
+            stmt.execute("PRAGMA synchronous=NORMAL");
+            // Negative sizes are in KiB
+            stmt.execute("PRAGMA cache_size=-8192");
+        }
+    }
+
     /**
      * Create the necessary tables and indices if they do not exist yet.
      *
@@ -107,13 +228,29 @@ public class SQLiteCache extends AbstractProfileCache {
         stmt.executeUpdate(
             "CREATE TABLE IF NOT EXISTS uuid_cache (\n"
                 + "  uuid CHAR(36) PRIMARY KEY NOT NULL,\n"
-                + "  name CHAR(32) NOT NULL)");
+                + "  name CHAR(32) NOT NULL,\n"
+                + "  time BIGINT NOT NULL)");
+
+        try {
+            // Profiles cached by older versions count as cached now
+            stmt.executeUpdate("ALTER TABLE uuid_cache ADD COLUMN time BIGINT NOT NULL DEFAULT " + System.currentTimeMillis());
+        } catch (SQLException ignored) {
+            // Column may already exist
+        }
 
         try {
             stmt.executeUpdate("CREATE INDEX name_index ON uuid_cache (name)");
         } catch (SQLException ignored) {
             // Index may already exist
         }
+        stmt.executeUpdate("CREATE INDEX IF NOT EXISTS name_nocase_index ON uuid_cache (name COLLATE NOCASE)");
+
+        // Holds both UUIDs and lowercase names, which can never be mistaken for one another
+        stmt.executeUpdate(
+            "CREATE TABLE IF NOT EXISTS uuid_cache_missing (\n"
+                + "  id VARCHAR(36) PRIMARY KEY NOT NULL,\n"
+                + "  time BIGINT NOT NULL)");
+        stmt.executeUpdate("CREATE INDEX IF NOT EXISTS missing_time_index ON uuid_cache_missing (time)");
         stmt.close();
     }
 
@@ -137,49 +274,278 @@ public class SQLiteCache extends AbstractProfileCache {
         return ImmutableMap.of();
     }
 
+    @Override
+    public void putMissing(UUID uuid) {
+        putMissingId(uuid.toString());
+    }
+
+    @Override
+    public void putMissing(String name) {
+        putMissingId(name.toLowerCase(Locale.US));
+    }
+
+    @Override
+    public @Nullable Instant getMissingSince(UUID uuid) {
+        return getMissingSinceId(uuid.toString());
+    }
+
+    @Override
+    public @Nullable Instant getMissingSince(String name) {
+        return getMissingSinceId(name.toLowerCase(Locale.US));
+    }
+
+    private void putMissingId(String id) {
+        try {
+            executePutMissing(id, System.currentTimeMillis());
+        } catch (SQLException e) {
+            log.log(Level.WARNING, "Failed to execute queries", e);
+        }
+    }
+
+    private @Nullable Instant getMissingSinceId(String id) {
+        try {
+            return executeGetMissing(id);
+        } catch (SQLException e) {
+            log.log(Level.WARNING, "Failed to execute queries", e);
+        }
+
+        return null;
+    }
+
     protected synchronized void executePut(Iterable<Profile> profiles) throws SQLException {
-        for (Profile profile : profiles) {
-            updateStatement.setString(1, profile.uniqueId().toString());
-            updateStatement.setString(2, profile.name());
-            updateStatement.executeUpdate();
+        checkOpen();
+        Connection conn = getConnection();
+        conn.setAutoCommit(false);
+        try {
+            for (Profile profile : profiles) {
+                updateStatement.setString(1, profile.uniqueId().toString());
+                updateStatement.setString(2, profile.name());
+                updateStatement.setLong(3, profile.timeCached());
+                updateStatement.addBatch();
+
+                clearMissingStatement.setString(1, profile.uniqueId().toString());
+                clearMissingStatement.setString(2, profile.name().toLowerCase(Locale.US));
+                clearMissingStatement.addBatch();
+            }
+
+            updateStatement.executeBatch();
+            clearMissingStatement.executeBatch();
+            conn.commit();
+        } catch (SQLException | RuntimeException e) {
+            updateStatement.clearBatch();
+            clearMissingStatement.clearBatch();
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
         }
     }
 
-    protected ImmutableMap<UUID, Profile> executeGet(Iterable<UUID> uuids) throws SQLException {
-        StringBuilder builder = new StringBuilder();
-        builder.append("SELECT name, uuid FROM uuid_cache WHERE uuid IN (");
+    protected synchronized void executePutMissing(String id, long time) throws SQLException {
+        checkOpen();
+        putMissingStatement.setString(1, id);
+        putMissingStatement.setLong(2, time);
+        putMissingStatement.executeUpdate();
 
-        boolean first = true;
-        for (UUID uuid : uuids) {
-            checkNotNull(uuid, "Unexpected null UUID");
+        if (time - lastPurge >= MISSING_PURGE_INTERVAL) {
+            lastPurge = time;
+            purgeMissingStatement.setLong(1, time - missingExpiry.toMillis());
+            purgeMissingStatement.executeUpdate();
+        }
+    }
 
-            if (!first) {
-                builder.append(", ");
+    protected @Nullable Instant executeGetMissing(String id) throws SQLException {
+        return read(reader -> {
+            PreparedStatement stmt = reader.getMissingStatement;
+            stmt.setString(1, id);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? Instant.ofEpochMilli(rs.getLong("time")) : null;
             }
-            builder.append("'").append(uuid).append("'");
-            first = false;
+        });
+    }
+
+    protected ImmutableMap<UUID, Profile> executeGet(Iterable<UUID> uuids) throws SQLException {
+        Map<UUID, Profile> map = new HashMap<>();
+
+        for (List<UUID> partition : Iterables.partition(uuids, MAX_PARAMETERS)) {
+            read(reader -> {
+                int parameters = parameterCount(partition.size());
+                PreparedStatement stmt = reader.statement(reader.byUuid,
+                        "SELECT name, uuid, time FROM uuid_cache WHERE uuid IN (", parameters);
+                for (int i = 0; i < parameters; i++) {
+                    UUID uuid = partition.get(Math.min(i, partition.size() - 1));
+                    stmt.setString(i + 1, checkNotNull(uuid, "Unexpected null UUID").toString());
+                }
+
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        UUID uniqueId = UUID.fromString(rs.getString("uuid"));
+                        map.put(uniqueId, new Profile(uniqueId, rs.getString("name"), rs.getLong("time")));
+                    }
+                }
+                return null;
+            });
         }
 
-        // It was an empty collection
-        if (first) {
-            return ImmutableMap.of();
+        return ImmutableMap.copyOf(map);
+    }
+
+    protected ImmutableMap<String, Profile> executeGetByName(Iterable<String> names) throws SQLException {
+        List<Profile> found = new ArrayList<>();
+
+        for (List<String> partition : Iterables.partition(names, MAX_PARAMETERS)) {
+            read(reader -> {
+                int parameters = parameterCount(partition.size());
+                PreparedStatement stmt = reader.statement(reader.byName,
+                        "SELECT name, uuid, time FROM uuid_cache WHERE name COLLATE NOCASE IN (", parameters);
+                for (int i = 0; i < parameters; i++) {
+                    String name = partition.get(Math.min(i, partition.size() - 1));
+                    stmt.setString(i + 1, checkNotNull(name, "Unexpected null name"));
+                }
+
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        UUID uniqueId = UUID.fromString(rs.getString("uuid"));
+                        found.add(new Profile(uniqueId, rs.getString("name"), rs.getLong("time")));
+                    }
+                }
+                return null;
+            });
         }
 
-        builder.append(")");
+        return byRequestedName(names, found);
+    }
 
-        synchronized (this) {
-            Connection conn = getConnection();
-            try (Statement stmt = conn.createStatement()) {
-                ResultSet rs = stmt.executeQuery(builder.toString());
-                Map<UUID, Profile> map = new HashMap<>();
+    /**
+     * Get the number of parameters to use for a list of values.
+     *
+     * <p>The number is rounded up to a power of two, so that only a few
+     * statements are ever prepared. The last value is repeated to fill
+     * the list.</p>
+     *
+     * @param size the number of values
+     * @return the number of parameters
+     */
+    private static int parameterCount(int size) {
+        return size <= 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+    }
 
-                while (rs.next()) {
-                    UUID uniqueId = UUID.fromString(rs.getString("uuid"));
-                    map.put(uniqueId, new Profile(uniqueId, rs.getString("name"), System.currentTimeMillis()));
+    /**
+     * Run a task with a read-only connection, waiting for one to be free.
+     *
+     * @param task the task
+     * @param <T> the type of result
+     * @return the result
+     * @throws SQLException thrown on error
+     */
+    private <T> T read(ReadTask<T> task) throws SQLException {
+        Reader reader;
+        synchronized (readers) {
+            try {
+                while (readers.isEmpty() && !closed) {
+                    readers.wait();
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a connection", e);
+            }
+            checkOpen();
+            reader = readers.pop();
+        }
+
+        try {
+            return task.run(reader);
+        } finally {
+            synchronized (readers) {
+                if (closed) {
+                    // Checked out while the cache was closed
+                    reader.close();
+                } else {
+                    readers.push(reader);
+                    readers.notify();
+                }
+            }
+        }
+    }
+
+    private void checkOpen() throws SQLException {
+        if (closed) {
+            throw new SQLException("The cache has been closed");
+        }
+    }
+
+    /**
+     * Close the connections.
+     *
+     * <p>Reads and writes made afterwards fail right away, and so do reads
+     * still waiting for a connection. Reads in progress finish first, and
+     * their connections are closed once they are done.</p>
+     */
+    @Override
+    public synchronized void close() {
+        synchronized (readers) {
+            closed = true;
+            Reader reader;
+            while ((reader = readers.poll()) != null) {
+                reader.close();
+            }
+            readers.notifyAll();
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            log.log(Level.WARNING, "Failed to close the connection", e);
+        }
+    }
+
+    private interface ReadTask<T> {
+        T run(Reader reader) throws SQLException;
+    }
+
+    /**
+     * A read-only connection together with the statements prepared on it.
+     */
+    private static final class Reader {
+        private final Connection connection;
+        private final PreparedStatement getMissingStatement;
+        private final Map<Integer, PreparedStatement> byUuid = new HashMap<>();
+        private final Map<Integer, PreparedStatement> byName = new HashMap<>();
+
+        private Reader(Connection connection) throws SQLException {
+            this.connection = connection;
+            try {
+                this.getMissingStatement = connection.prepareStatement("SELECT time FROM uuid_cache_missing WHERE id = ?");
+            } catch (SQLException e) {
+                connection.close();
+                throw e;
+            }
+        }
+
+        private void close() {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                log.log(Level.WARNING, "Failed to close a read-only connection", e);
+            }
+        }
 
-                return ImmutableMap.copyOf(map);
+        /**
+         * Get a statement ending in a list of the given number of parameters.
+         *
+         * @param statements the statements prepared so far
+         * @param prefix the statement up to the list of parameters
+         * @param parameters the number of parameters
+         * @return a statement
+         * @throws SQLException thrown on error
+         */
+        private PreparedStatement statement(Map<Integer, PreparedStatement> statements, String prefix, int parameters)
+                throws SQLException {
+            PreparedStatement stmt = statements.get(parameters);
+            if (stmt == null) {
+                stmt = connection.prepareStatement(prefix + String.join(", ", Collections.nCopies(parameters, "?")) + ")");
+                statements.put(parameters, stmt);
             }
+            return stmt;
         }
     }
 
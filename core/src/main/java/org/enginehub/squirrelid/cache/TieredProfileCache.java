@@ -0,0 +1,322 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.cache;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.enginehub.squirrelid.Profile;
+import org.jspecify.annotations.Nullable;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Puts a fast cache, such as a {@link CaffeineProfileCache}, in front of
+ * a slower one, such as a {@link SQLiteCache}.
+ *
+ * <p>Lookups are answered from the first tier where possible. Whatever it
+ * lacks is fetched from the second tier in one bulk query and copied into
+ * the first tier. Profiles are written to both tiers: by default, writes
+ * to the second tier happen before {@code put} returns, but with
+ * {@link #setWriteBehindExecutor(Executor)} they are queued and written in
+ * batches in the background instead.</p>
+ *
+ * <p>No more than {@linkplain #setMaxPending(int) a maximum number} of
+ * profiles are queued: once the second tier falls that far behind, callers
+ * of {@code put} write the queue themselves. Queued profiles are written
+ * when the cache is {@linkplain #close() closed}.</p>
+ */
+public class TieredProfileCache extends AbstractProfileCache implements AutoCloseable {
+
+    private static final Logger log = Logger.getLogger(TieredProfileCache.class.getCanonicalName());
+
+    private final ProfileCache first;
+    private final ProfileCache second;
+    private final Queue<Profile> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // Held while writing to the second tier, so that batches arrive in order
+    private final Object writeLock = new Object();
+    @Nullable
+    private volatile Executor writeBehindExecutor;
+    private volatile int maxPending = 10000;
+    private volatile boolean closed;
+
+    /**
+     * Create a new instance.
+     *
+     * @param first the fast cache that is consulted first
+     * @param second the slower cache behind it
+     */
+    public TieredProfileCache(ProfileCache first, ProfileCache second) {
+        checkNotNull(first);
+        checkNotNull(second);
+        this.first = first;
+        this.second = second;
+    }
+
+    /**
+     * Get the fast cache that is consulted first.
+     *
+     * @return the first tier
+     */
+    public ProfileCache getFirst() {
+        return first;
+    }
+
+    /**
+     * Get the slower cache behind the first tier.
+     *
+     * @return the second tier
+     */
+    public ProfileCache getSecond() {
+        return second;
+    }
+
+    /**
+     * Get the executor that writes to the second tier in the background.
+     *
+     * @return the executor, or {@code null} if writes are not deferred
+     */
+    public @Nullable Executor getWriteBehindExecutor() {
+        return writeBehindExecutor;
+    }
+
+    /**
+     * Set the executor that writes to the second tier in the background.
+     *
+     * <p>If {@code null}, the default, profiles are written to the second
+     * tier before {@code put} returns.</p>
+     *
+     * @param writeBehindExecutor the executor, or {@code null} to write immediately
+     */
+    public void setWriteBehindExecutor(@Nullable Executor writeBehindExecutor) {
+        this.writeBehindExecutor = writeBehindExecutor;
+    }
+
+    /**
+     * Get the maximum number of profiles queued for the second tier.
+     *
+     * @return the maximum number of queued profiles
+     */
+    public int getMaxPending() {
+        return maxPending;
+    }
+
+    /**
+     * Set the maximum number of profiles queued for the second tier.
+     *
+     * @param maxPending the maximum number of queued profiles
+     */
+    public void setMaxPending(int maxPending) {
+        checkArgument(maxPending >= 1, "maxPending must be >= 1");
+        this.maxPending = maxPending;
+    }
+
+    @Override
+    public void putAll(Iterable<Profile> profiles) {
+        ImmutableList<Profile> list = ImmutableList.copyOf(profiles);
+        if (list.isEmpty()) {
+            return;
+        }
+
+        first.putAll(list);
+
+        Executor executor = writeBehindExecutor;
+        if (executor == null || closed) {
+            synchronized (writeLock) {
+                // Anything still queued is older, so it goes first
+                writePending();
+                second.putAll(list);
+            }
+            return;
+        }
+
+        pending.addAll(list);
+        if (pendingCount.addAndGet(list.size()) > maxPending) {
+            // The second tier is falling behind, so slow down the callers
+            flush();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(() -> {
+                    flushScheduled.set(false);
+                    flush();
+                });
+            } catch (RejectedExecutionException e) {
+                flushScheduled.set(false);
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Write every profile that is still queued for the second tier now.
+     */
+    public void flush() {
+        synchronized (writeLock) {
+            writePending();
+        }
+    }
+
+    private void writePending() {
+        List<Profile> batch = new ArrayList<>();
+        Profile profile;
+        while ((profile = pending.poll()) != null) {
+            batch.add(profile);
+        }
+        pendingCount.addAndGet(-batch.size());
+
+        if (!batch.isEmpty()) {
+            try {
+                second.putAll(batch);
+            } catch (RuntimeException e) {
+                log.log(Level.WARNING, "Failed to write " + batch.size() + " profiles to the second tier", e);
+            }
+        }
+    }
+
+    @Override
+    public @Nullable Profile getIfPresent(UUID uuid) {
+        Profile profile = first.getIfPresent(uuid);
+        if (profile == null) {
+            profile = second.getIfPresent(uuid);
+            if (profile != null) {
+                first.put(profile);
+            }
+        }
+        return profile;
+    }
+
+    @Override
+    public @Nullable Profile getIfPresent(String name) {
+        Profile profile = first.getIfPresent(name);
+        if (profile == null) {
+            profile = second.getIfPresent(name);
+            if (profile != null) {
+                first.put(profile);
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * Write the profiles that are still queued for the second tier, and
+     * write later profiles to it immediately.
+     *
+     * <p>Neither tier is closed.</p>
+     */
+    @Override
+    public void close() {
+        closed = true;
+        flush();
+    }
+
+    @Override
+    public ImmutableMap<UUID, Profile> getAllPresent(Iterable<UUID> iterable) {
+        // Read twice, so copy it in case it can only be read once
+        List<UUID> uuids = ImmutableList.copyOf(iterable);
+        ImmutableMap<UUID, Profile> found = first.getAllPresent(uuids);
+
+        List<UUID> misses = new ArrayList<>();
+        for (UUID uuid : uuids) {
+            if (!found.containsKey(uuid)) {
+                misses.add(uuid);
+            }
+        }
+        if (misses.isEmpty()) {
+            return found;
+        }
+
+        ImmutableMap<UUID, Profile> promoted = second.getAllPresent(misses);
+        if (promoted.isEmpty()) {
+            return found;
+        }
+        first.putAll(promoted.values());
+
+        Map<UUID, Profile> results = new HashMap<>(found);
+        results.putAll(promoted);
+        return ImmutableMap.copyOf(results);
+    }
+
+    @Override
+    public ImmutableMap<String, Profile> allPresent(Iterable<String> iterable) {
+        List<String> names = ImmutableList.copyOf(iterable);
+        ImmutableMap<String, Profile> found = first.allPresent(names);
+
+        List<String> misses = new ArrayList<>();
+        for (String name : names) {
+            if (!found.containsKey(name)) {
+                misses.add(name);
+            }
+        }
+        if (misses.isEmpty()) {
+            return found;
+        }
+
+        ImmutableMap<String, Profile> promoted = second.allPresent(misses);
+        if (promoted.isEmpty()) {
+            return found;
+        }
+        first.putAll(ImmutableList.copyOf(promoted.values()));
+
+        Map<String, Profile> results = new HashMap<>(found);
+        results.putAll(promoted);
+        return ImmutableMap.copyOf(results);
+    }
+
+    @Override
+    public void putMissing(UUID uuid) {
+        first.putMissing(uuid);
+        second.putMissing(uuid);
+    }
+
+    @Override
+    public void putMissing(String name) {
+        first.putMissing(name);
+        second.putMissing(name);
+    }
+
+    @Override
+    public @Nullable Instant getMissingSince(UUID uuid) {
+        Instant since = first.getMissingSince(uuid);
+        return since != null ? since : second.getMissingSince(uuid);
+    }
+
+    @Override
+    public @Nullable Instant getMissingSince(String name) {
+        Instant since = first.getMissingSince(name);
+        return since != null ? since : second.getMissingSince(name);
+    }
+
+}
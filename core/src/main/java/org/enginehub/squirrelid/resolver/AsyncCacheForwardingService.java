@@ -0,0 +1,175 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.resolver;
+
+import com.google.common.collect.ImmutableList;
+import org.enginehub.squirrelid.Profile;
+import org.enginehub.squirrelid.cache.ProfileCache;
+import org.jspecify.annotations.Nullable;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Resolves UUIDs using another asynchronous resolver and stores results to a cache.
+ *
+ * <p>Concurrent cache misses for the same UUID or name (compared
+ * case-insensitively) share a single lookup on the resolver.</p>
+ *
+ * @see CacheForwardingService
+ */
+public class AsyncCacheForwardingService implements AsyncProfileService {
+
+    private final AsyncProfileService resolver;
+    private final ProfileCache cache;
+    private final ConcurrentMap<UUID, CompletableFuture<@Nullable Profile>> uuidLookups = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CompletableFuture<@Nullable Profile>> nameLookups = new ConcurrentHashMap<>();
+
+    private final Duration maxCacheTime;
+
+    /**
+     * Create a new instance.
+     *
+     * @param resolver     the resolver to use
+     * @param cache        the cache to use
+     * @param maxCacheTime the time after which cached profiles are looked up again
+     */
+    public AsyncCacheForwardingService(AsyncProfileService resolver, ProfileCache cache, Duration maxCacheTime) {
+        checkNotNull(resolver);
+        checkNotNull(cache);
+        checkNotNull(maxCacheTime);
+
+        this.resolver = resolver;
+        this.cache = cache;
+        this.maxCacheTime = maxCacheTime;
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param resolver the resolver to use
+     * @param cache    the cache to use
+     */
+    public AsyncCacheForwardingService(AsyncProfileService resolver, ProfileCache cache) {
+        this(resolver, cache, Duration.ofHours(6));
+    }
+
+    @Override
+    public int getIdealRequestLimit() {
+        return resolver.getIdealRequestLimit();
+    }
+
+    @Override
+    public CompletableFuture<@Nullable Profile> findByNameAsync(String name) {
+        Profile profile = cache.getIfPresent(name);
+
+        if (profile != null && isProfileValid(profile)) {
+            return CompletableFuture.completedFuture(profile);
+        }
+
+        return coalesce(nameLookups, name.toLowerCase(Locale.US), () -> resolver.findByNameAsync(name));
+    }
+
+    @Override
+    public CompletableFuture<ImmutableList<Profile>> findAllByNameAsync(Iterable<String> names) {
+        return resolver.findAllByNameAsync(names).thenApply(this::storeAll);
+    }
+
+    @Override
+    public CompletableFuture<@Nullable Profile> findByUuidAsync(UUID uuid) {
+        Profile profile = cache.getIfPresent(uuid);
+
+        if (profile != null && isProfileValid(profile)) {
+            return CompletableFuture.completedFuture(profile);
+        }
+
+        return coalesce(uuidLookups, uuid, () -> resolver.findByUuidAsync(uuid));
+    }
+
+    @Override
+    public CompletableFuture<ImmutableList<Profile>> findAllByUuidAsync(Iterable<UUID> uuids) {
+        return resolver.findAllByUuidAsync(uuids).thenApply(this::storeAll);
+    }
+
+    /**
+     * Start a lookup on the resolver, or share a lookup for the same key
+     * that is already in flight.
+     *
+     * @param lookups the lookups currently in flight
+     * @param key the key being looked up
+     * @param lookup starts the lookup on the resolver
+     * @param <K> the key type
+     * @return a future completed with the profile, otherwise {@code null}
+     */
+    private <K> CompletableFuture<@Nullable Profile> coalesce(ConcurrentMap<K, CompletableFuture<@Nullable Profile>> lookups, K key,
+                                                             Supplier<CompletableFuture<@Nullable Profile>> lookup) {
+        CompletableFuture<@Nullable Profile> future = new CompletableFuture<>();
+        CompletableFuture<@Nullable Profile> existing = lookups.putIfAbsent(key, future);
+
+        if (existing != null) {
+            // Hand out a copy so one caller cancelling cannot affect the others
+            return existing.copy();
+        }
+
+        CompletableFuture<@Nullable Profile> result;
+        try {
+            result = lookup.get();
+        } catch (RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+
+        result.thenApply(this::store).whenComplete((profile, throwable) -> {
+            lookups.remove(key, future);
+            if (throwable != null) {
+                future.completeExceptionally(throwable);
+            } else {
+                future.complete(profile);
+            }
+        });
+        return future.copy();
+    }
+
+    private @Nullable Profile store(@Nullable Profile profile) {
+        if (profile != null) {
+            cache.put(profile);
+        }
+        return profile;
+    }
+
+    private ImmutableList<Profile> storeAll(ImmutableList<Profile> profiles) {
+        cache.putAll(profiles);
+        return profiles;
+    }
+
+    private boolean isProfileValid(Profile profile) {
+        Instant cachedTime = Instant.ofEpochMilli(profile.timeCached());
+        Instant expirationTime = cachedTime.plus(this.maxCacheTime);
+
+        return expirationTime.isAfter(Instant.now());
+    }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.resolver;
+
+import com.google.common.collect.ImmutableList;
+import org.enginehub.squirrelid.Profile;
+import org.jspecify.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Combines several {@code AsyncProfileService}s together and checks them from
+ * first to last, stopping when there are no more services left to query or
+ * all profiles were found.
+ *
+ * @see CombinedProfileService
+ */
+public class AsyncCombinedProfileService implements AsyncProfileService {
+
+    private final List<AsyncProfileService> services;
+
+    /**
+     * Create a new instance.
+     *
+     * @param services a list of services
+     */
+    public AsyncCombinedProfileService(List<AsyncProfileService> services) {
+        checkNotNull(services);
+        this.services = ImmutableList.copyOf(services);
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param services an array of services
+     */
+    public AsyncCombinedProfileService(AsyncProfileService... services) {
+        checkNotNull(services);
+        this.services = ImmutableList.copyOf(services);
+    }
+
+    @Override
+    public int getIdealRequestLimit() {
+        int ideal = Integer.MAX_VALUE;
+        for (AsyncProfileService service : services) {
+            ideal = Math.min(service.getIdealRequestLimit(), ideal);
+        }
+        return ideal;
+    }
+
+    @Override
+    public CompletableFuture<@Nullable Profile> findByNameAsync(String name) {
+        return findByNameAsync(name, 0);
+    }
+
+    private CompletableFuture<@Nullable Profile> findByNameAsync(String name, int index) {
+        if (index >= services.size()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return services.get(index).findByNameAsync(name)
+                .thenCompose(profile -> profile != null
+                        ? CompletableFuture.completedFuture(profile)
+                        : findByNameAsync(name, index + 1));
+    }
+
+    @Override
+    public CompletableFuture<ImmutableList<Profile>> findAllByNameAsync(Iterable<String> names) {
+        Set<String> missing = new LinkedHashSet<>();
+        for (String name : names) {
+            missing.add(name.toLowerCase(Locale.US));
+        }
+        return findAllByNameAsync(missing, new ArrayList<>(), 0);
+    }
+
+    private CompletableFuture<ImmutableList<Profile>> findAllByNameAsync(Set<String> missing, List<Profile> totalResults, int index) {
+        if (missing.isEmpty() || index >= services.size()) {
+            return CompletableFuture.completedFuture(ImmutableList.copyOf(totalResults));
+        }
+        return services.get(index).findAllByNameAsync(ImmutableList.copyOf(missing))
+                .thenCompose(results -> {
+                    for (Profile profile : results) {
+                        missing.remove(profile.name().toLowerCase(Locale.US));
+                        totalResults.add(profile);
+                    }
+                    return findAllByNameAsync(missing, totalResults, index + 1);
+                });
+    }
+
+    @Override
+    public CompletableFuture<@Nullable Profile> findByUuidAsync(UUID uuid) {
+        return findByUuidAsync(uuid, 0);
+    }
+
+    private CompletableFuture<@Nullable Profile> findByUuidAsync(UUID uuid, int index) {
+        if (index >= services.size()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return services.get(index).findByUuidAsync(uuid)
+                .thenCompose(profile -> profile != null
+                        ? CompletableFuture.completedFuture(profile)
+                        : findByUuidAsync(uuid, index + 1));
+    }
+
+    @Override
+    public CompletableFuture<ImmutableList<Profile>> findAllByUuidAsync(Iterable<UUID> uuids) {
+        Set<UUID> missing = new LinkedHashSet<>();
+        for (UUID uuid : uuids) {
+            missing.add(uuid);
+        }
+        return findAllByUuidAsync(missing, new ArrayList<>(), 0);
+    }
+
+    private CompletableFuture<ImmutableList<Profile>> findAllByUuidAsync(Set<UUID> missing, List<Profile> totalResults, int index) {
+        if (missing.isEmpty() || index >= services.size()) {
+            return CompletableFuture.completedFuture(ImmutableList.copyOf(totalResults));
+        }
+        return services.get(index).findAllByUuidAsync(ImmutableList.copyOf(missing))
+                .thenCompose(results -> {
+                    for (Profile profile : results) {
+                        missing.remove(profile.uniqueId());
+                        totalResults.add(profile);
+                    }
+                    return findAllByUuidAsync(missing, totalResults, index + 1);
+                });
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.resolver;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import org.enginehub.squirrelid.Profile;
+import org.jspecify.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Splits bulk lookups into partitions and resolves them concurrently using
+ * another asynchronous resolver.
+ *
+ * <p>Unlike {@link ParallelProfileService}, no threads are held while the
+ * partitions are being resolved.</p>
+ */
+public class AsyncParallelProfileService implements AsyncProfileService {
+
+    private final AsyncProfileService resolver;
+    private int profilesPerJob = 100;
+
+    /**
+     * Create a new parallel resolver.
+     *
+     * @param resolver the resolver to use
+     */
+    public AsyncParallelProfileService(AsyncProfileService resolver) {
+        checkNotNull(resolver);
+        this.resolver = resolver;
+    }
+
+    /**
+     * Get the upper bound number of profiles to find per job.
+     *
+     * @return a number of profiles
+     */
+    public int getProfilesPerJob() {
+        return profilesPerJob;
+    }
+
+    /**
+     * Set the upper bound number of profiles to find per job.
+     *
+     * @param profilesPerJob a number of profiles
+     */
+    public void setProfilesPerJob(int profilesPerJob) {
+        checkArgument(profilesPerJob >= 1, "profilesPerJob must be >= 1");
+        this.profilesPerJob = profilesPerJob;
+    }
+
+    @Override
+    public int getIdealRequestLimit() {
+        return resolver.getIdealRequestLimit();
+    }
+
+    /**
+     * Get the number or profiles to execute per job.
+     *
+     * @return the number of profiles per job
+     */
+    protected int getEffectiveProfilesPerJob() {
+        return Math.min(profilesPerJob, resolver.getIdealRequestLimit());
+    }
+
+    @Override
+    public CompletableFuture<@Nullable Profile> findByNameAsync(String name) {
+        return resolver.findByNameAsync(name);
+    }
+
+    @Override
+    public CompletableFuture<ImmutableList<Profile>> findAllByNameAsync(Iterable<String> names) {
+        List<CompletableFuture<ImmutableList<Profile>>> futures = new ArrayList<>();
+        for (List<String> partition : Iterables.partition(names, getEffectiveProfilesPerJob())) {
+            futures.add(resolver.findAllByNameAsync(partition));
+        }
+        return AsyncProfiles.concat(futures);
+    }
+
+    @Override
+    public CompletableFuture<@Nullable Profile> findByUuidAsync(UUID uuid) {
+        return resolver.findByUuidAsync(uuid);
+    }
+
+    @Override
+    public CompletableFuture<ImmutableList<Profile>> findAllByUuidAsync(Iterable<UUID> uuids) {
+        List<CompletableFuture<ImmutableList<Profile>>> futures = new ArrayList<>();
+        for (List<UUID> partition : Iterables.partition(uuids, getEffectiveProfilesPerJob())) {
+            futures.add(resolver.findAllByUuidAsync(partition));
+        }
+        return AsyncProfiles.concat(futures);
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.resolver;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableList.Builder;
+import dev.mizule.squirrelid.core.util.HttpUtil;
+import org.enginehub.squirrelid.Profile;
+import org.jspecify.annotations.Nullable;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Helpers for combining the futures returned by {@link AsyncProfileService}s.
+ */
+final class AsyncProfiles {
+
+    private AsyncProfiles() {
+    }
+
+    /**
+     * Wait for all the given futures and concatenate their results.
+     *
+     * @param futures a list of futures
+     * @return a future completed with every profile, or the first failure,
+     *     which cancels the given futures if it is cancelled
+     */
+    static CompletableFuture<ImmutableList<Profile>> concat(List<? extends CompletableFuture<? extends Iterable<Profile>>> futures) {
+        return allOf(futures, ignored -> {
+            Builder<Profile> builder = ImmutableList.builder();
+            for (CompletableFuture<? extends Iterable<Profile>> future : futures) {
+                builder.addAll(future.join());
+            }
+            return builder.build();
+        });
+    }
+
+    private static <T> CompletableFuture<T> allOf(List<? extends CompletableFuture<?>> futures, Function<@Nullable Void, T> function) {
+        CompletableFuture<?>[] array = futures.toArray(new CompletableFuture<?>[0]);
+        CompletableFuture<T> result = CompletableFuture.allOf(array).thenApply(function);
+        HttpUtil.cancelOnFailure(result, array);
+        return result;
+    }
+
+    /**
+     * Get the non-null profiles of a list.
+     *
+     * @param profiles a list of profiles, which may contain {@code null}
+     * @return the profiles that were found
+     */
+    static ImmutableList<Profile> found(List<? extends @Nullable Profile> profiles) {
+        Builder<Profile> builder = ImmutableList.builder();
+        for (Profile profile : profiles) {
+            if (profile != null) {
+                builder.add(profile);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Get the first profile of a list.
+     *
+     * @param profiles a list of profiles
+     * @return the first profile, otherwise {@code null}
+     */
+    static @Nullable Profile first(List<Profile> profiles) {
+        return profiles.isEmpty() ? null : profiles.get(0);
+    }
+
+}
@@ -0,0 +1,203 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.resolver;
+
+import com.google.common.collect.ImmutableList;
+import org.enginehub.squirrelid.Profile;
+import org.jspecify.annotations.Nullable;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Merges concurrent {@link #findByName(String)} calls into bulk
+ * {@link ProfileService#findAllByName(Iterable)} requests on another resolver.
+ *
+ * <p>The first caller of a batch waits for up to the configured window for
+ * other callers to join, or until the batch holds
+ * {@link #getIdealRequestLimit()} names, and then sends the whole batch
+ * on its own thread. Results are handed back to each waiting caller.
+ * No background threads are used.</p>
+ *
+ * <p>Every other method is forwarded to the resolver as-is.</p>
+ */
+public class BatchingProfileService implements ProfileService {
+
+    private final ProfileService resolver;
+    private final long windowNanos;
+    private final Object lock = new Object();
+    private Batch current = new Batch();
+
+    /**
+     * Create a new instance.
+     *
+     * @param resolver the resolver to use
+     * @param window the time to wait for more names before sending a batch
+     */
+    public BatchingProfileService(ProfileService resolver, Duration window) {
+        checkNotNull(resolver);
+        checkNotNull(window);
+        checkArgument(!window.isNegative(), "window must not be negative");
+
+        this.resolver = resolver;
+        this.windowNanos = window.toNanos();
+    }
+
+    /**
+     * Create a new instance with a window of 10 milliseconds.
+     *
+     * @param resolver the resolver to use
+     */
+    public BatchingProfileService(ProfileService resolver) {
+        this(resolver, Duration.ofMillis(10));
+    }
+
+    @Override
+    public int getIdealRequestLimit() {
+        return resolver.getIdealRequestLimit();
+    }
+
+    @Nullable @Override
+    public Profile findByName(String name) {
+        String key = name.toLowerCase(Locale.US);
+        Batch batch;
+        CompletableFuture<@Nullable Profile> future;
+        boolean leader;
+        boolean full;
+
+        synchronized (lock) {
+            batch = current;
+            leader = batch.entries.isEmpty();
+            future = batch.entries.computeIfAbsent(key, k -> new CompletableFuture<>());
+            full = batch.entries.size() >= getIdealRequestLimit();
+            if (full) {
+                current = new Batch();
+                lock.notifyAll();
+            }
+        }
+
+        if (full) {
+            send(batch);
+        } else if (leader && awaitBatch(batch)) {
+            send(batch);
+        }
+
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Wait for the window of the given batch to end.
+     *
+     * @param batch the batch
+     * @return true if the caller took the batch and must send it
+     */
+    private boolean awaitBatch(Batch batch) {
+        long deadline = System.nanoTime() + windowNanos;
+
+        synchronized (lock) {
+            try {
+                long remaining;
+                while (current == batch && (remaining = deadline - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                }
+            } catch (InterruptedException e) {
+                // Send what we have right away
+                Thread.currentThread().interrupt();
+            }
+
+            if (current == batch) {
+                current = new Batch();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private void send(Batch batch) {
+        Map<String, CompletableFuture<@Nullable Profile>> entries = batch.entries;
+
+        try {
+            for (Profile profile : resolver.findAllByName(ImmutableList.copyOf(entries.keySet()))) {
+                CompletableFuture<@Nullable Profile> future = entries.remove(profile.name().toLowerCase(Locale.US));
+                if (future != null) {
+                    future.complete(profile);
+                }
+            }
+
+            for (CompletableFuture<@Nullable Profile> future : entries.values()) {
+                future.complete(null);
+            }
+        } catch (RuntimeException | Error e) {
+            for (CompletableFuture<@Nullable Profile> future : entries.values()) {
+                future.completeExceptionally(e);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public ImmutableList<Profile> findAllByName(Iterable<String> names) {
+        return resolver.findAllByName(names);
+    }
+
+    @Override
+    public void findAllByName(Iterable<String> names, Predicate<Profile> consumer) {
+        resolver.findAllByName(names, consumer);
+    }
+
+    @Nullable @Override
+    public Profile findByUuid(UUID uuid) {
+        return resolver.findByUuid(uuid);
+    }
+
+    @Override
+    public ImmutableList<Profile> findAllByUuid(Iterable<UUID> uuids) {
+        return resolver.findAllByUuid(uuids);
+    }
+
+    @Override
+    public void findAllByUuid(Iterable<UUID> uuids, Predicate<Profile> consumer) {
+        resolver.findAllByUuid(uuids, consumer);
+    }
+
+    /**
+     * Names waiting to be sent together.
+     */
+    private static final class Batch {
+        private final Map<String, CompletableFuture<@Nullable Profile>> entries = new LinkedHashMap<>();
+    }
+
+}
@@ -19,27 +19,81 @@
 package org.enginehub.squirrelid.resolver;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.enginehub.squirrelid.Profile;
 import org.enginehub.squirrelid.cache.ProfileCache;
+import org.jspecify.annotations.Nullable;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import javax.annotation.Nullable;
-
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * Resolves UUIDs using another resolver and stores results to a cache.
+ *
+ * <p>Concurrent cache misses for the same UUID or name (compared
+ * case-insensitively) share a single lookup on the resolver. Bulk lookups
+ * query the cache once for all keys and only send the keys that are not
+ * cached, or whose cached profile has expired, to the resolver.</p>
+ *
+ * <p>UUIDs and names that the resolver could not find are remembered by
+ * the cache too, if it supports that, and are not looked up again until
+ * the {@linkplain #setNegativeCacheTime(Duration) negative cache time}
+ * has passed.</p>
+ *
+ * <p>With a {@linkplain #setSoftCacheTime(Duration) soft cache time}, a
+ * cached profile older than that is still returned right away, but is
+ * also refreshed from the resolver in the background. Callers only wait
+ * for the resolver once a profile is older than the maximum cache time.</p>
+ *
+ * <p>Callers that cannot wait long can use {@link #lookupByUuid(UUID, Duration)}
+ * and {@link #lookupByName(String, Duration)}, which fall back to an expired
+ * cached profile if the resolver fails or does not answer in time.</p>
  */
 public class CacheForwardingService implements ProfileService {
 
+    private static final Logger log = Logger.getLogger(CacheForwardingService.class.getCanonicalName());
+
     private final ProfileService resolver;
     private final ProfileCache cache;
+    private final ConcurrentMap<UUID, CompletableFuture<@Nullable Profile>> uuidLookups = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CompletableFuture<@Nullable Profile>> nameLookups = new ConcurrentHashMap<>();
 
     private final Duration maxCacheTime;
+    private Duration negativeCacheTime = Duration.ofMinutes(10);
+    @Nullable
+    private Duration softCacheTime;
+    @Nullable
+    private Executor refreshExecutor;
+    private boolean staleIfError;
+    private final LongAdder staleServed = new LongAdder();
 
     /**
      * Create a new instance.
@@ -66,6 +120,95 @@ public class CacheForwardingService implements ProfileService {
         this(resolver, cache, Duration.ofHours(6));
     }
 
+    /**
+     * Get the time for which UUIDs and names that could not be found are
+     * not looked up again.
+     *
+     * @return the negative cache time
+     */
+    public Duration getNegativeCacheTime() {
+        return negativeCacheTime;
+    }
+
+    /**
+     * Set the time for which UUIDs and names that could not be found are
+     * not looked up again.
+     *
+     * @param negativeCacheTime the negative cache time, or {@link Duration#ZERO} to always look them up
+     */
+    public void setNegativeCacheTime(Duration negativeCacheTime) {
+        checkNotNull(negativeCacheTime);
+        checkArgument(!negativeCacheTime.isNegative(), "negativeCacheTime must not be negative");
+        this.negativeCacheTime = negativeCacheTime;
+    }
+
+    /**
+     * Get the age after which cached profiles are refreshed in the background.
+     *
+     * @return the soft cache time, or {@code null} if profiles are not refreshed ahead of time
+     */
+    @Nullable
+    public Duration getSoftCacheTime() {
+        return softCacheTime;
+    }
+
+    /**
+     * Set the age after which cached profiles are refreshed in the background.
+     *
+     * <p>This should be shorter than the maximum cache time, past which
+     * callers wait for the resolver instead.</p>
+     *
+     * @param softCacheTime the soft cache time, or {@code null} to not refresh profiles ahead of time
+     */
+    public void setSoftCacheTime(@Nullable Duration softCacheTime) {
+        checkArgument(softCacheTime == null || !softCacheTime.isNegative(), "softCacheTime must not be negative");
+        this.softCacheTime = softCacheTime;
+    }
+
+    /**
+     * Set the executor that background refreshes are run in.
+     *
+     * <p>By default, each refresh runs on a new virtual thread, or in a
+     * shared cached pool of daemon threads if virtual threads are not
+     * available.</p>
+     *
+     * @param refreshExecutor the executor
+     */
+    public void setRefreshExecutor(Executor refreshExecutor) {
+        checkNotNull(refreshExecutor);
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    /**
+     * Get whether {@link #findByName(String)} and {@link #findByUuid(UUID)}
+     * return the expired cached profile when the resolver fails.
+     *
+     * @return true if expired profiles are returned on error
+     */
+    public boolean isStaleIfError() {
+        return staleIfError;
+    }
+
+    /**
+     * Set whether {@link #findByName(String)} and {@link #findByUuid(UUID)}
+     * return the expired cached profile when the resolver fails.
+     *
+     * @param staleIfError true to return expired profiles on error
+     */
+    public void setStaleIfError(boolean staleIfError) {
+        this.staleIfError = staleIfError;
+    }
+
+    /**
+     * Get the number of times that an expired cached profile was returned
+     * because the resolver failed or took too long.
+     *
+     * @return the count
+     */
+    public long getStaleServedCount() {
+        return staleServed.sum();
+    }
+
     @Override
     public int getIdealRequestLimit() {
         return resolver.getIdealRequestLimit();
@@ -78,35 +221,157 @@ public class CacheForwardingService implements ProfileService {
 
         if (profile != null && isProfileValid(profile)) {
             // Cache is valid, return the profile
+            if (isProfileStale(profile)) {
+                refresh(nameLookups, name.toLowerCase(Locale.US), () -> resolver.findByName(name),
+                        () -> cache.putMissing(name));
+            }
             return profile;
         }
 
+        if (isMissing(cache.getMissingSince(name))) {
+            // Recently found not to exist
+            return null;
+        }
+
         // Cache is invalid or profile is not in the cache, fetch from resolver
-        Profile resolverProfile = resolver.findByName(name);
+        try {
+            return coalesce(nameLookups, name.toLowerCase(Locale.US), () -> resolver.findByName(name),
+                    () -> cache.putMissing(name));
+        } catch (RuntimeException e) {
+            if (staleIfError && profile != null) {
+                return serveStale(profile, e).profile();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Find the profile for the given name, waiting no longer than the
+     * given budget for the resolver.
+     *
+     * <p>If the resolver takes longer or fails, the expired cached profile
+     * is returned instead, if there is one. The lookup keeps going in the
+     * background either way, and its result is cached.</p>
+     *
+     * @param name the name
+     * @param budget the longest time to wait for the resolver
+     * @return the result, which tells whether the profile had expired
+     * @throws RuntimeException thrown if the resolver failed or took too long and nothing was cached
+     */
+    public LookupResult lookupByName(String name, Duration budget) {
+        checkNotNull(budget);
 
-        if (resolverProfile != null) {
-            // Update the cache with the new profile
-            cache.put(resolverProfile);
+        Profile profile = cache.getIfPresent(name);
+
+        if (profile != null && isProfileValid(profile)) {
+            if (isProfileStale(profile)) {
+                refresh(nameLookups, name.toLowerCase(Locale.US), () -> resolver.findByName(name),
+                        () -> cache.putMissing(name));
+            }
+            return new LookupResult(profile, false);
         }
 
-        return resolverProfile;
+        if (isMissing(cache.getMissingSince(name))) {
+            return new LookupResult(null, false);
+        }
+
+        return await(lookupAsync(nameLookups, name.toLowerCase(Locale.US), () -> resolver.findByName(name),
+                () -> cache.putMissing(name)), budget, profile);
     }
 
     @Override
     public ImmutableList<Profile> findAllByName(Iterable<String> names) {
-        ImmutableList<Profile> profiles = resolver.findAllByName(names);
-        for (Profile profile : profiles) {
-            cache.put(profile);
+        List<String> missing = new ArrayList<>();
+        ImmutableList.Builder<Profile> builder = ImmutableList.builder();
+        builder.addAll(getValidByName(names, missing));
+
+        if (!missing.isEmpty()) {
+            ImmutableList<Profile> profiles = resolver.findAllByName(missing);
+            cache.putAll(profiles);
+            putMissingNames(missing, profiles);
+            builder.addAll(profiles);
         }
-        return profiles;
+
+        return builder.build();
     }
 
     @Override
     public void findAllByName(Iterable<String> names, final Predicate<Profile> consumer) {
-        resolver.findAllByName(names, input -> {
-            cache.put(input);
-            return consumer.test(input);
-        });
+        List<String> missing = new ArrayList<>();
+        for (Profile profile : getValidByName(names, missing)) {
+            consumer.test(profile);
+        }
+
+        if (!missing.isEmpty()) {
+            List<Profile> found = Collections.synchronizedList(new ArrayList<>());
+            AtomicBoolean stopped = new AtomicBoolean();
+            try {
+                resolver.findAllByName(missing, input -> {
+                    found.add(input);
+                    if (consumer.test(input)) {
+                        return true;
+                    }
+                    stopped.set(true);
+                    return false;
+                });
+            } finally {
+                cache.putAll(ImmutableList.copyOf(found));
+            }
+            if (!stopped.get()) {
+                // The resolver went through every name
+                putMissingNames(missing, ImmutableList.copyOf(found));
+            }
+        }
+    }
+
+    /**
+     * Remember the requested names that the resolver did not return.
+     *
+     * @param requested the names sent to the resolver
+     * @param found the profiles that it returned
+     */
+    private void putMissingNames(List<String> requested, List<Profile> found) {
+        Set<String> foundNames = new HashSet<>();
+        for (Profile profile : found) {
+            foundNames.add(profile.name().toLowerCase(Locale.US));
+        }
+        for (String name : requested) {
+            if (!foundNames.contains(name.toLowerCase(Locale.US))) {
+                cache.putMissing(name);
+            }
+        }
+    }
+
+    /**
+     * Get the valid cached profiles for the given names in one query.
+     *
+     * <p>Names that were recently found not to exist are left out of
+     * both.</p>
+     *
+     * @param names the names
+     * @param missing a list that names without a valid cached profile are added to
+     * @return the valid cached profiles
+     */
+    private List<Profile> getValidByName(Iterable<String> names, List<String> missing) {
+        Set<String> seen = new HashSet<>();
+        List<String> unique = new ArrayList<>();
+        for (String name : names) {
+            if (seen.add(name.toLowerCase(Locale.US))) {
+                unique.add(name);
+            }
+        }
+
+        Map<String, Profile> cached = cache.allPresent(unique);
+        List<Profile> valid = new ArrayList<>();
+        for (String name : unique) {
+            Profile profile = cached.get(name);
+            if (profile != null && isProfileValid(profile)) {
+                valid.add(profile);
+            } else if (!isMissing(cache.getMissingSince(name))) {
+                missing.add(name);
+            }
+        }
+        return valid;
     }
 
     @Nullable @Override
@@ -116,18 +381,229 @@ public class CacheForwardingService implements ProfileService {
 
         if (profile != null && isProfileValid(profile)) {
             // Cache is valid, return the profile
+            if (isProfileStale(profile)) {
+                refresh(uuidLookups, uuid, () -> resolver.findByUuid(uuid), () -> cache.putMissing(uuid));
+            }
             return profile;
         }
 
+        if (isMissing(cache.getMissingSince(uuid))) {
+            // Recently found not to exist
+            return null;
+        }
+
         // Cache is invalid or profile is not in the cache, fetch from resolver
-        Profile resolverProfile = resolver.findByUuid(uuid);
+        try {
+            return coalesce(uuidLookups, uuid, () -> resolver.findByUuid(uuid), () -> cache.putMissing(uuid));
+        } catch (RuntimeException e) {
+            if (staleIfError && profile != null) {
+                return serveStale(profile, e).profile();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Find the profile for the given UUID, waiting no longer than the
+     * given budget for the resolver.
+     *
+     * <p>If the resolver takes longer or fails, the expired cached profile
+     * is returned instead, if there is one. The lookup keeps going in the
+     * background either way, and its result is cached.</p>
+     *
+     * @param uuid the UUID
+     * @param budget the longest time to wait for the resolver
+     * @return the result, which tells whether the profile had expired
+     * @throws RuntimeException thrown if the resolver failed or took too long and nothing was cached
+     */
+    public LookupResult lookupByUuid(UUID uuid, Duration budget) {
+        checkNotNull(budget);
+
+        Profile profile = cache.getIfPresent(uuid);
+
+        if (profile != null && isProfileValid(profile)) {
+            if (isProfileStale(profile)) {
+                refresh(uuidLookups, uuid, () -> resolver.findByUuid(uuid), () -> cache.putMissing(uuid));
+            }
+            return new LookupResult(profile, false);
+        }
 
-        if (resolverProfile != null) {
-            // Update the cache with the new profile
-            cache.put(resolverProfile);
+        if (isMissing(cache.getMissingSince(uuid))) {
+            return new LookupResult(null, false);
         }
 
-        return resolverProfile;
+        return await(lookupAsync(uuidLookups, uuid, () -> resolver.findByUuid(uuid), () -> cache.putMissing(uuid)),
+                budget, profile);
+    }
+
+    /**
+     * Start a lookup on the resolver in the background, unless one for the
+     * same key is already in flight.
+     *
+     * @param lookups the lookups currently in flight
+     * @param key the key being looked up
+     * @param lookup performs the lookup on the resolver
+     * @param onMissing called if the resolver found nothing
+     * @param <K> the key type
+     */
+    private <K> void refresh(ConcurrentMap<K, CompletableFuture<@Nullable Profile>> lookups, K key,
+                             Supplier<@Nullable Profile> lookup, Runnable onMissing) {
+        if (lookups.containsKey(key)) {
+            return;
+        }
+
+        lookupAsync(lookups, key, lookup, onMissing).whenComplete((profile, throwable) -> {
+            if (throwable != null) {
+                log.log(Level.WARNING, "Failed to refresh profile " + key, throwable);
+            }
+        });
+    }
+
+    /**
+     * Start a lookup on the resolver in the background, or get the lookup
+     * for the same key that is already in flight.
+     *
+     * @param lookups the lookups currently in flight
+     * @param key the key being looked up
+     * @param lookup performs the lookup on the resolver
+     * @param onMissing called if the resolver found nothing
+     * @param <K> the key type
+     * @return a future completed with the profile, otherwise {@code null}
+     */
+    private <K> CompletableFuture<@Nullable Profile> lookupAsync(ConcurrentMap<K, CompletableFuture<@Nullable Profile>> lookups, K key,
+                                                                Supplier<@Nullable Profile> lookup, Runnable onMissing) {
+        CompletableFuture<@Nullable Profile> future = new CompletableFuture<>();
+        CompletableFuture<@Nullable Profile> existing = lookups.putIfAbsent(key, future);
+
+        if (existing != null) {
+            return existing;
+        }
+
+        Executor executor = refreshExecutor != null ? refreshExecutor : DefaultRefreshExecutor.INSTANCE;
+        try {
+            executor.execute(() -> {
+                try {
+                    lookup(lookups, key, future, lookup, onMissing);
+                } catch (RuntimeException | Error ignored) {
+                    // Passed on through the future
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            lookups.remove(key, future);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Perform a lookup on the resolver, or wait for the result of a lookup
+     * for the same key that is already in flight.
+     *
+     * @param lookups the lookups currently in flight
+     * @param key the key being looked up
+     * @param lookup performs the lookup on the resolver
+     * @param onMissing called if the resolver found nothing
+     * @param <K> the key type
+     * @return the profile, otherwise {@code null}
+     */
+    private <K> @Nullable Profile coalesce(ConcurrentMap<K, CompletableFuture<@Nullable Profile>> lookups, K key,
+                                           Supplier<@Nullable Profile> lookup, Runnable onMissing) {
+        CompletableFuture<@Nullable Profile> future = new CompletableFuture<>();
+        CompletableFuture<@Nullable Profile> existing = lookups.putIfAbsent(key, future);
+
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                }
+                throw e;
+            }
+        }
+
+        return lookup(lookups, key, future, lookup, onMissing);
+    }
+
+    /**
+     * Perform a lookup on the resolver that has been registered as in flight.
+     *
+     * @param lookups the lookups currently in flight
+     * @param key the key being looked up
+     * @param future the future of the lookup, which is completed with the result
+     * @param lookup performs the lookup on the resolver
+     * @param onMissing called if the resolver found nothing
+     * @param <K> the key type
+     * @return the profile, otherwise {@code null}
+     */
+    private <K> @Nullable Profile lookup(ConcurrentMap<K, CompletableFuture<@Nullable Profile>> lookups, K key,
+                                         CompletableFuture<@Nullable Profile> future,
+                                         Supplier<@Nullable Profile> lookup, Runnable onMissing) {
+        try {
+            Profile resolverProfile = lookup.get();
+
+            if (resolverProfile != null) {
+                // Update the cache with the new profile
+                cache.put(resolverProfile);
+            } else if (!negativeCacheTime.isZero()) {
+                onMissing.run();
+            }
+
+            future.complete(resolverProfile);
+            return resolverProfile;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            lookups.remove(key, future);
+        }
+    }
+
+    /**
+     * Wait for a lookup for up to the given budget, and fall back to the
+     * expired cached profile if it takes longer or fails.
+     *
+     * @param future the lookup
+     * @param budget the time to wait
+     * @param stale the expired cached profile, if there is one
+     * @return the result
+     */
+    private LookupResult await(CompletableFuture<@Nullable Profile> future, Duration budget, @Nullable Profile stale) {
+        try {
+            return new LookupResult(future.get(budget.toNanos(), TimeUnit.NANOSECONDS), false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (stale == null) {
+                throw new RuntimeException("Interrupted while waiting for the resolver", e);
+            }
+            return serveStale(stale, e);
+        } catch (TimeoutException e) {
+            if (stale == null) {
+                throw new RuntimeException("The resolver did not answer within " + budget, e);
+            }
+            return serveStale(stale, e);
+        } catch (ExecutionException e) {
+            if (stale == null) {
+                throw e.getCause() instanceof RuntimeException cause ? cause : new RuntimeException(e.getCause());
+            }
+            return serveStale(stale, e.getCause());
+        }
+    }
+
+    private LookupResult serveStale(Profile stale, Throwable cause) {
+        staleServed.increment();
+        log.log(Level.FINE, "Serving expired profile " + stale.uniqueId(), cause);
+        return new LookupResult(stale, true);
+    }
+
+    private boolean isMissing(@Nullable Instant missingSince) {
+        return missingSince != null && missingSince.plus(negativeCacheTime).isAfter(Instant.now());
+    }
+
+    private boolean isProfileStale(Profile profile) {
+        Duration softCacheTime = this.softCacheTime;
+        return softCacheTime != null
+                && Instant.ofEpochMilli(profile.timeCached()).plus(softCacheTime).isBefore(Instant.now());
     }
 
     private boolean isProfileValid(Profile profile) {
@@ -139,18 +615,106 @@ public class CacheForwardingService implements ProfileService {
 
     @Override
     public ImmutableList<Profile> findAllByUuid(Iterable<UUID> uuids) {
-        ImmutableList<Profile> profiles = resolver.findAllByUuid(uuids);
-        for (Profile profile : profiles) {
-            cache.put(profile);
+        List<UUID> missing = new ArrayList<>();
+        ImmutableList.Builder<Profile> builder = ImmutableList.builder();
+        builder.addAll(getValidByUuid(uuids, missing));
+
+        if (!missing.isEmpty()) {
+            ImmutableList<Profile> profiles = resolver.findAllByUuid(missing);
+            cache.putAll(profiles);
+            putMissingUuids(missing, profiles);
+            builder.addAll(profiles);
         }
-        return profiles;
+
+        return builder.build();
     }
 
     @Override
     public void findAllByUuid(Iterable<UUID> uuids, Predicate<Profile> consumer) {
-        resolver.findAllByUuid(uuids, input -> {
-            cache.put(input);
-            return consumer.test(input);
-        });
+        List<UUID> missing = new ArrayList<>();
+        for (Profile profile : getValidByUuid(uuids, missing)) {
+            consumer.test(profile);
+        }
+
+        if (!missing.isEmpty()) {
+            List<Profile> found = Collections.synchronizedList(new ArrayList<>());
+            AtomicBoolean stopped = new AtomicBoolean();
+            try {
+                resolver.findAllByUuid(missing, input -> {
+                    found.add(input);
+                    if (consumer.test(input)) {
+                        return true;
+                    }
+                    stopped.set(true);
+                    return false;
+                });
+            } finally {
+                cache.putAll(ImmutableList.copyOf(found));
+            }
+            if (!stopped.get()) {
+                // The resolver went through every UUID
+                putMissingUuids(missing, ImmutableList.copyOf(found));
+            }
+        }
+    }
+
+    /**
+     * Remember the requested UUIDs that the resolver did not return.
+     *
+     * @param requested the UUIDs sent to the resolver
+     * @param found the profiles that it returned
+     */
+    private void putMissingUuids(List<UUID> requested, List<Profile> found) {
+        Set<UUID> foundUuids = new HashSet<>();
+        for (Profile profile : found) {
+            foundUuids.add(profile.uniqueId());
+        }
+        for (UUID uuid : requested) {
+            if (!foundUuids.contains(uuid)) {
+                cache.putMissing(uuid);
+            }
+        }
     }
+
+    /**
+     * Get the valid cached profiles for the given UUIDs in one query.
+     *
+     * <p>UUIDs that were recently found not to exist are left out of
+     * both.</p>
+     *
+     * @param uuids the UUIDs
+     * @param missing a list that UUIDs without a valid cached profile are added to
+     * @return the valid cached profiles
+     */
+    private List<Profile> getValidByUuid(Iterable<UUID> uuids, List<UUID> missing) {
+        Set<UUID> unique = new LinkedHashSet<>();
+        for (UUID uuid : uuids) {
+            unique.add(uuid);
+        }
+
+        Map<UUID, Profile> cached = cache.getAllPresent(unique);
+        List<Profile> valid = new ArrayList<>();
+        for (UUID uuid : unique) {
+            Profile profile = cached.get(uuid);
+            if (profile != null && isProfileValid(profile)) {
+                valid.add(profile);
+            } else if (!isMissing(cache.getMissingSince(uuid))) {
+                missing.add(uuid);
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Holds the executor for background refreshes, which is only created
+     * once it is first needed.
+     *
+     * <p>It is never shut down, so its threads must not keep the JVM
+     * from exiting. Virtual threads are always daemon threads.</p>
+     */
+    private static final class DefaultRefreshExecutor {
+        private static final ExecutorService INSTANCE = ParallelProfileService.newVirtualThreadExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("squirrelid-refresh-%d").build());
+    }
+
 }
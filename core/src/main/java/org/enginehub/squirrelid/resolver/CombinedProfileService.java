@@ -20,26 +20,61 @@ package org.enginehub.squirrelid.resolver;
 
 import com.google.common.collect.ImmutableList;
 import org.enginehub.squirrelid.Profile;
+import org.enginehub.squirrelid.util.CircuitBreaker;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * Combines several {@code ProfileService}s together and checks them from
  * first to last, stopping when there are no more services left to query or
  * all profiles were found.
+ *
+ * <p>Instances created with {@link #withCircuitBreakers(List, Supplier)}
+ * guard every service with its own {@link CircuitBreaker}. Services whose
+ * circuit is open are skipped right away, and a service that fails is
+ * skipped over rather than failing the whole lookup. An error is only
+ * thrown if no service could be queried successfully.</p>
  */
 public class CombinedProfileService implements ProfileService {
 
+    private static final Logger log = Logger.getLogger(CombinedProfileService.class.getCanonicalName());
+
     private final List<ProfileService> services;
+    @Nullable
+    private final List<CircuitBreaker> breakers;
+    @Nullable
+    private ExecutorService speculativeExecutor;
+    private long speculativeDelay = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private CombinedProfileService(List<ProfileService> services, @Nullable List<CircuitBreaker> breakers) {
+        this.services = services;
+        this.breakers = breakers;
+    }
 
     /**
      * Create a new instance.
@@ -47,8 +82,7 @@ public class CombinedProfileService implements ProfileService {
      * @param services a list of services
      */
     public CombinedProfileService(List<ProfileService> services) {
-        checkNotNull(services);
-        this.services = ImmutableList.copyOf(services);
+        this(ImmutableList.copyOf(checkNotNull(services)), null);
     }
 
     /**
@@ -57,8 +91,88 @@ public class CombinedProfileService implements ProfileService {
      * @param services an array of services
      */
     public CombinedProfileService(ProfileService... services) {
+        this(ImmutableList.copyOf(checkNotNull(services)), null);
+    }
+
+    /**
+     * Create a new instance that guards every service with a circuit breaker.
+     *
+     * @param services a list of services
+     * @param breakerFactory creates the circuit breaker of each service
+     * @return a new instance
+     */
+    public static CombinedProfileService withCircuitBreakers(List<ProfileService> services,
+                                                             Supplier<CircuitBreaker> breakerFactory) {
         checkNotNull(services);
-        this.services = ImmutableList.copyOf(services);
+        checkNotNull(breakerFactory);
+
+        ImmutableList.Builder<CircuitBreaker> breakers = ImmutableList.builder();
+        for (int i = 0; i < services.size(); i++) {
+            breakers.add(checkNotNull(breakerFactory.get()));
+        }
+        return new CombinedProfileService(ImmutableList.copyOf(services), breakers.build());
+    }
+
+    /**
+     * Get the circuit breaker of the service at the given index.
+     *
+     * @param index the index of the service
+     * @return the circuit breaker, or {@code null} if circuit breakers are not used
+     */
+    @Nullable
+    public CircuitBreaker getCircuitBreaker(int index) {
+        return breakers != null ? breakers.get(index) : null;
+    }
+
+    /**
+     * Get the executor that services are queried in when speculative
+     * execution is enabled.
+     *
+     * @return the executor, or {@code null} if speculative execution is disabled
+     */
+    @Nullable
+    public ExecutorService getSpeculativeExecutor() {
+        return speculativeExecutor;
+    }
+
+    /**
+     * Set the executor to query services in for bulk lookups, which
+     * enables speculative execution.
+     *
+     * <p>When a service has not finished a bulk lookup within the
+     * {@linkplain #setSpeculativeDelay(Duration) speculative delay}, the
+     * next service is started for the profiles that are still missing
+     * instead of waiting. Each profile is still returned only once.</p>
+     *
+     * <p>The consumer of a bulk lookup is then called from the threads of
+     * the executor, but never by two threads at the same time.</p>
+     *
+     * @param speculativeExecutor the executor, or {@code null} to query services one after another
+     */
+    public void setSpeculativeExecutor(@Nullable ExecutorService speculativeExecutor) {
+        this.speculativeExecutor = speculativeExecutor;
+    }
+
+    /**
+     * Get the time to wait for a service before the next one is started
+     * when speculative execution is enabled.
+     *
+     * @return the delay
+     */
+    public Duration getSpeculativeDelay() {
+        return Duration.ofNanos(speculativeDelay);
+    }
+
+    /**
+     * Set the time to wait for a service before the next one is started
+     * when speculative execution is enabled.
+     *
+     * @param speculativeDelay the delay
+     */
+    public void setSpeculativeDelay(Duration speculativeDelay) {
+        checkNotNull(speculativeDelay);
+        checkArgument(!speculativeDelay.isNegative(), "speculativeDelay must not be negative");
+        this.speculativeDelay = speculativeDelay.toNanos();
     }
 
     @Override
@@ -72,30 +186,44 @@ public class CombinedProfileService implements ProfileService {
 
     @Nullable @Override
     public Profile findByName(String name) {
-        for (ProfileService service : services) {
-            Profile profile = service.findByName(name);
+        Attempts attempts = new Attempts();
+        for (int i = 0; i < services.size(); i++) {
+            ProfileService service = services.get(i);
+            Profile profile = attempts.call(i, () -> service.findByName(name));
             if (profile != null) {
                 return profile;
             }
         }
+        attempts.check();
         return null;
     }
 
     @Override
     public ImmutableList<Profile> findAllByName(Iterable<String> names) {
-        List<String> missing = new ArrayList<>();
+        if (speculativeExecutor != null) {
+            List<Profile> totalResults = Collections.synchronizedList(new ArrayList<>());
+            findAllByName(names, totalResults::add);
+            return ImmutableList.copyOf(totalResults);
+        }
+
+        Set<String> missing = new LinkedHashSet<>();
         List<Profile> totalResults = new ArrayList<>();
 
         for (String name : names) {
             missing.add(name.toLowerCase(Locale.US));
         }
 
-        for (ProfileService service : services) {
-            ImmutableList<Profile> results = service.findAllByName(missing);
+        Attempts attempts = new Attempts();
+        for (int i = 0; i < services.size(); i++) {
+            ProfileService service = services.get(i);
+            ImmutableList<String> query = ImmutableList.copyOf(missing);
+            ImmutableList<Profile> results = attempts.call(i, () -> service.findAllByName(query));
+            if (results == null) {
+                continue;
+            }
 
             for (Profile profile : results) {
-                String nameLower = profile.name().toLowerCase(Locale.US);
-                missing.remove(nameLower);
+                missing.remove(profile.name().toLowerCase(Locale.US));
                 totalResults.add(profile);
             }
 
@@ -103,58 +231,64 @@ public class CombinedProfileService implements ProfileService {
                 break;
             }
         }
+        attempts.check();
 
         return ImmutableList.copyOf(totalResults);
     }
 
     @Override
     public void findAllByName(Iterable<String> names, final Predicate<Profile> consumer) {
-        final List<String> missing = Collections.synchronizedList(new ArrayList<>());
-
-        Predicate<Profile> forwardingConsumer = profile -> {
-            missing.remove(profile.name().toLowerCase(Locale.US));
-            return consumer.test(profile);
-        };
-
+        Set<String> missing = ConcurrentHashMap.newKeySet();
         for (String name : names) {
             missing.add(name.toLowerCase(Locale.US));
         }
 
-        for (ProfileService service : services) {
-            service.findAllByName(new ArrayList<>(missing), forwardingConsumer);
-
-            if (missing.isEmpty()) {
-                break;
-            }
+        try (ForwardingConsumer<String> forwardingConsumer =
+                     new ForwardingConsumer<>(consumer, missing, profile -> profile.name().toLowerCase(Locale.US))) {
+            queryTiers(missing, (service, query) -> service.findAllByName(query, forwardingConsumer));
         }
     }
 
     @Nullable @Override
     public Profile findByUuid(UUID uuid) {
-        for (ProfileService service : services) {
-            Profile profile = service.findByUuid(uuid);
+        Attempts attempts = new Attempts();
+        for (int i = 0; i < services.size(); i++) {
+            ProfileService service = services.get(i);
+            Profile profile = attempts.call(i, () -> service.findByUuid(uuid));
             if (profile != null) {
                 return profile;
             }
         }
+        attempts.check();
         return null;
     }
 
     @Override
     public ImmutableList<Profile> findAllByUuid(Iterable<UUID> uuids) {
-        List<UUID> missing = new ArrayList<>();
+        if (speculativeExecutor != null) {
+            List<Profile> totalResults = Collections.synchronizedList(new ArrayList<>());
+            findAllByUuid(uuids, totalResults::add);
+            return ImmutableList.copyOf(totalResults);
+        }
+
+        Set<UUID> missing = new LinkedHashSet<>();
         List<Profile> totalResults = new ArrayList<>();
 
         for (UUID uuid : uuids) {
             missing.add(uuid);
         }
 
-        for (ProfileService service : services) {
-            ImmutableList<Profile> results = service.findAllByUuid(missing);
+        Attempts attempts = new Attempts();
+        for (int i = 0; i < services.size(); i++) {
+            ProfileService service = services.get(i);
+            ImmutableList<UUID> query = ImmutableList.copyOf(missing);
+            ImmutableList<Profile> results = attempts.call(i, () -> service.findAllByUuid(query));
+            if (results == null) {
+                continue;
+            }
 
             for (Profile profile : results) {
-                UUID foundUuid = profile.uniqueId();
-                missing.remove(foundUuid);
+                missing.remove(profile.uniqueId());
                 totalResults.add(profile);
             }
 
@@ -162,28 +296,211 @@ public class CombinedProfileService implements ProfileService {
                 break;
             }
         }
+        attempts.check();
 
         return ImmutableList.copyOf(totalResults);
     }
 
     @Override
     public void findAllByUuid(Iterable<UUID> uuids, Predicate<Profile> consumer) {
-        final List<UUID> missing = Collections.synchronizedList(new ArrayList<>());
+        Set<UUID> missing = ConcurrentHashMap.newKeySet();
+        for (UUID uuid : uuids) {
+            missing.add(uuid);
+        }
+
+        try (ForwardingConsumer<UUID> forwardingConsumer = new ForwardingConsumer<>(consumer, missing, Profile::uniqueId)) {
+            queryTiers(missing, (service, query) -> service.findAllByUuid(query, forwardingConsumer));
+        }
+    }
+
+    /**
+     * Query every service in turn for the keys that are still missing,
+     * until there are none left.
+     *
+     * <p>With a speculative executor, a service that has not finished
+     * within the speculative delay no longer holds up the next one, which
+     * is then started for the keys that are missing at that point.</p>
+     *
+     * @param missing the missing keys, which the query removes keys from as they are found
+     * @param query queries one service for a list of keys
+     * @param <K> the type of key
+     */
+    private <K> void queryTiers(Set<K> missing, BiConsumer<ProfileService, List<K>> query) {
+        Attempts attempts = new Attempts();
+        ExecutorService executor = speculativeExecutor;
+
+        if (executor == null) {
+            for (int i = 0; i < services.size(); i++) {
+                ProfileService service = services.get(i);
+                ImmutableList<K> keys = ImmutableList.copyOf(missing);
+                attempts.call(i, () -> {
+                    query.accept(service, keys);
+                    return true;
+                });
+
+                if (missing.isEmpty()) {
+                    break;
+                }
+            }
+            attempts.check();
+            return;
+        }
 
-        Predicate<Profile> forwardingConsumer = profile -> {
-            missing.remove(profile.uniqueId());
+        CompletionService<Boolean> completion = new ExecutorCompletionService<>(executor);
+        List<Future<?>> running = new ArrayList<>();
+        int pending = 0;
+        try {
+            for (int i = 0; i < services.size() && !missing.isEmpty(); i++) {
+                int index = i;
+                ProfileService service = services.get(i);
+                ImmutableList<K> keys = ImmutableList.copyOf(missing);
+                Future<?> future = completion.submit(() -> attempts.call(index, () -> {
+                    query.accept(service, keys);
+                    return true;
+                }));
+                running.add(future);
+                pending++;
+
+                if (i < services.size() - 1) {
+                    long deadline = System.nanoTime() + speculativeDelay;
+                    while (!future.isDone() && !missing.isEmpty()) {
+                        Future<?> done = completion.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                        if (done == null) {
+                            // Start the next tier while this one is still going
+                            break;
+                        }
+                        pending--;
+                        done.get();
+                    }
+                }
+            }
+
+            // Services still going once everything was found are cancelled below
+            while (pending > 0 && !missing.isEmpty()) {
+                completion.take().get();
+                pending--;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the operation", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException cause
+                    ? cause : new RuntimeException("Error occurred during the operation", e.getCause());
+        } finally {
+            attempts.cancel();
+            for (Future<?> future : running) {
+                future.cancel(true);
+            }
+        }
+        if (!missing.isEmpty()) {
+            attempts.check();
+        }
+    }
+
+    /**
+     * Passes on the first profile found for every missing key to a
+     * consumer, one call at a time, until closed.
+     *
+     * <p>With speculative execution, several services call this at the
+     * same time, but the consumer is never called concurrently.</p>
+     *
+     * @param <K> the type of key
+     */
+    private static final class ForwardingConsumer<K> implements Predicate<Profile>, AutoCloseable {
+        private final Predicate<Profile> consumer;
+        private final Set<K> missing;
+        private final Function<Profile, K> key;
+        private boolean closed;
+
+        private ForwardingConsumer(Predicate<Profile> consumer, Set<K> missing, Function<Profile, K> key) {
+            this.consumer = consumer;
+            this.missing = missing;
+            this.key = key;
+        }
+
+        @Override
+        public synchronized boolean test(Profile profile) {
+            // Only the first profile found for a key is passed on, as tiers may overlap
+            if (closed || !missing.remove(key.apply(profile))) {
+                return true;
+            }
             return consumer.test(profile);
-        };
+        }
 
-        for (UUID uuid : uuids) {
-            missing.add(uuid);
+        @Override
+        public synchronized void close() {
+            closed = true;
         }
+    }
 
-        for (ProfileService service : services) {
-            service.findAllByUuid(new ArrayList<>(missing), forwardingConsumer);
+    /**
+     * Keeps track of the services queried during one lookup.
+     */
+    private final class Attempts {
+        private volatile boolean answered;
+        private volatile boolean cancelled;
+        @Nullable
+        private volatile RuntimeException lastError;
+
+        /**
+         * Mark the calls still running as no longer needed, so that they
+         * are not counted as failures once they are interrupted.
+         */
+        void cancel() {
+            cancelled = true;
+        }
 
-            if (missing.isEmpty()) {
-                break;
+        /**
+         * Query the service at the given index, going through its circuit
+         * breaker if circuit breakers are used.
+         *
+         * @param index the index of the service
+         * @param call the query
+         * @param <T> the type of result
+         * @return the result, or {@code null} if the service was skipped or failed
+         */
+        @Nullable
+        <T> T call(int index, Supplier<T> call) {
+            if (breakers == null) {
+                answered = true;
+                return call.get();
+            }
+
+            CircuitBreaker breaker = breakers.get(index);
+            if (!breaker.tryAcquire()) {
+                return null;
+            }
+
+            long start = System.nanoTime();
+            try {
+                T result = call.get();
+                breaker.onSuccess(System.nanoTime() - start);
+                answered = true;
+                return result;
+            } catch (RuntimeException e) {
+                if (cancelled || Thread.currentThread().isInterrupted()) {
+                    // Interrupted rather than failed, such as after losing the race to another tier
+                    breaker.onCancelled();
+                    throw e;
+                }
+                breaker.onError(System.nanoTime() - start);
+                log.log(Level.WARNING, "Profile service #" + index + " failed, trying the next one", e);
+                lastError = e;
+                return null;
+            } catch (Error e) {
+                // Report it anyway, or a half-open breaker would never get its trial call back
+                breaker.onError(System.nanoTime() - start);
+                throw e;
+            }
+        }
+
+        /**
+         * Throw if circuit breakers are used and no service could be
+         * queried at all.
+         */
+        void check() {
+            if (breakers != null && !breakers.isEmpty() && !answered) {
+                throw new RuntimeException("No profile service could be queried", lastError);
             }
         }
     }
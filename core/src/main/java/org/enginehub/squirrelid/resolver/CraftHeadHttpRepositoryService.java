@@ -21,40 +21,43 @@ package org.enginehub.squirrelid.resolver;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableList.Builder;
 import com.google.common.collect.Iterables;
-import com.google.gson.JsonObject;
 import dev.mizule.squirrelid.core.util.HttpUtil;
 import org.enginehub.squirrelid.Profile;
 import org.enginehub.squirrelid.util.HttpRequests;
-import org.enginehub.squirrelid.util.UUIDs;
+import org.enginehub.squirrelid.util.ProfileJsonReader;
+import org.jspecify.annotations.Nullable;
 
-import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
 import java.net.http.HttpClient;
-import java.net.http.HttpResponse;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.annotation.Nullable;
-
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
- * Resolves names in bulk to UUIDs using Mojang's profile HTTP API.
+ * Resolves names in bulk to UUIDs using the CraftHead profile HTTP API.
+ *
+ * <p>Requests go through the shared client of {@link HttpUtil}.</p>
  */
-public class CraftHeadHttpRepositoryService implements ProfileService {
+public class CraftHeadHttpRepositoryService implements ProfileService, AsyncProfileService {
 
     public static final String MINECRAFT_AGENT = "powercasgamer/squirrelid";
 
-    public static final HttpClient HTTP_CLIENT = HttpClient.newHttpClient();
+    /**
+     * The client that is shared by default.
+     *
+     * @deprecated requests go through {@link HttpUtil#getHttpClient()}
+     */
+    @Deprecated
+    public static final HttpClient HTTP_CLIENT = HttpUtil.HTTP_CLIENT;
 
     private static final Logger log = Logger.getLogger(CraftHeadHttpRepositoryService.class.getCanonicalName());
     private static final int MAX_NAMES_PER_REQUEST = 100;
@@ -63,6 +66,7 @@ public class CraftHeadHttpRepositoryService implements ProfileService {
     private final Function<UUID, URL> nameHistoryUrlCreator;
     private int maxRetries = 5;
     private long retryDelay = 50;
+    private int maxConcurrentRequests = 16;
 
     /**
      * Create a new resolver.
@@ -86,33 +90,6 @@ public class CraftHeadHttpRepositoryService implements ProfileService {
         };
     }
 
-    @Nullable @SuppressWarnings("unchecked")
-    private static Profile decodeProfileResult(Object entry) {
-        try {
-            if (entry instanceof Map) {
-                Map<Object, Object> mapEntry = (Map<Object, Object>) entry;
-                Object rawUuid = mapEntry.get("id");
-                Object rawName = mapEntry.get("name");
-
-                if (rawUuid != null && rawName != null) {
-                    UUID uuid = UUID.fromString(UUIDs.addDashes(String.valueOf(rawUuid)));
-                    String name = String.valueOf(rawName);
-                    return new Profile(uuid, name, System.currentTimeMillis());
-                }
-            } else if (entry instanceof JsonObject jsonObject) {
-                String rawName = jsonObject.get("name").getAsString();
-                UUID uuid = UUID.fromString(UUIDs.addDashes(String.valueOf(jsonObject.get("id").getAsString())));
-                if (rawName != null) {
-                    return new Profile(uuid, rawName, System.currentTimeMillis());
-                }
-            }
-        } catch (ClassCastException | IllegalArgumentException e) {
-            log.log(Level.WARNING, "Got invalid value from UUID lookup service", e);
-        }
-
-        return null;
-    }
-
     /**
      * Create a resolver for Minecraft.
      *
@@ -161,6 +138,27 @@ public class CraftHeadHttpRepositoryService implements ProfileService {
         this.retryDelay = retryDelay;
     }
 
+    /**
+     * Get the maximum number of HTTP requests that one bulk lookup keeps
+     * in flight at the same time.
+     *
+     * @return the maximum number of concurrent requests
+     */
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    /**
+     * Set the maximum number of HTTP requests that one bulk lookup keeps
+     * in flight at the same time.
+     *
+     * @param maxConcurrentRequests the maximum number of concurrent requests
+     */
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        checkArgument(maxConcurrentRequests >= 1, "maxConcurrentRequests must be >= 1");
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
     @Override
     public int getIdealRequestLimit() {
         return MAX_NAMES_PER_REQUEST;
@@ -216,102 +214,97 @@ public class CraftHeadHttpRepositoryService implements ProfileService {
         }
     }
 
+    @Override
+    public CompletableFuture<@Nullable Profile> findByNameAsync(String name) {
+        return queryAsync(profilesURL.resolve(name));
+    }
+
+    @Override
+    public CompletableFuture<ImmutableList<Profile>> findAllByNameAsync(Iterable<String> names) {
+        return queryByNameAsync(names);
+    }
+
+    @Override
+    public CompletableFuture<@Nullable Profile> findByUuidAsync(UUID uuid) {
+        return queryAsync(profilesURL.resolve(uuid.toString()));
+    }
+
+    @Override
+    public CompletableFuture<ImmutableList<Profile>> findAllByUuidAsync(Iterable<UUID> uuids) {
+        return queryByUuidAsync(uuids);
+    }
+
+    /**
+     * Perform a non-blocking query for profiles by name.
+     *
+     * <p>One request is sent per name, with up to
+     * {@link #getMaxConcurrentRequests()} requests in flight at once.</p>
+     *
+     * @param names an iterable of names
+     * @return a future completed with a list of results
+     */
+    protected CompletableFuture<ImmutableList<Profile>> queryByNameAsync(Iterable<String> names) {
+        return HttpUtil.transform(HttpUtil.mapConcurrently(ImmutableList.copyOf(names), maxConcurrentRequests, this::findByNameAsync),
+                AsyncProfiles::found);
+    }
+
+    /**
+     * Perform a non-blocking query for profiles by uuid.
+     *
+     * <p>One request is sent per UUID, with up to
+     * {@link #getMaxConcurrentRequests()} requests in flight at once.</p>
+     *
+     * @param uuids an iterable of uuids
+     * @return a future completed with a list of results
+     */
+    protected CompletableFuture<ImmutableList<Profile>> queryByUuidAsync(Iterable<UUID> uuids) {
+        return HttpUtil.transform(HttpUtil.mapConcurrently(ImmutableList.copyOf(uuids), maxConcurrentRequests, this::findByUuidAsync),
+                AsyncProfiles::found);
+    }
+
+    /**
+     * Perform a non-blocking query for a single profile.
+     *
+     * <p>A {@code 404} response means that the profile does not exist, and
+     * any other error is retried.</p>
+     *
+     * @param uri the profile URI
+     * @return a future completed with the profile, otherwise {@code null}
+     */
+    protected CompletableFuture<@Nullable Profile> queryAsync(URI uri) {
+        return HttpUtil.retryAsync(
+                () -> HttpUtil.transform(HttpUtil.requestAsync(builder -> builder.uri(uri).build(), ProfileJsonReader.profileHandler()),
+                        response -> response.statusCode() == 404 ? null : HttpUtil.checkStatus(response).body()),
+                maxRetries, retryDelay,
+                e -> log.log(Level.WARNING, "Failed to query profile service -- retrying...", e));
+    }
+
     /**
      * Perform a query for profiles by name without partitioning the queries.
      *
+     * <p>Every name is requested concurrently and retried on its own.</p>
+     *
      * @param names an iterable of names
      * @return a list of results
 //     * @throws IOException          thrown on I/O error
 //     * @throws InterruptedException thrown on interruption
      */
     protected ImmutableList<Profile> queryByName(Iterable<String> names) {
-        List<Profile> profiles = new ArrayList<>();
-
-        List<Object> results = new ArrayList<>();
-
-        int retriesLeft = maxRetries;
-        long retryDelay = this.retryDelay;
-
-        for (final String name : names) {
-            try {
-                results.add(HttpUtil.requestAsync(builder -> builder.uri(profilesURL.resolve(name)).build(), HttpResponse.BodyHandlers.ofString())
-                        .thenApply(HttpResponse::body)
-                        .thenApply(HttpUtil::parseJson)
-                        .join());
-            } catch (IOException | InterruptedException e) {
-                if (retriesLeft == 0) {
-                    throw new RuntimeException(e);
-                }
-
-                log.log(Level.WARNING, "Failed to query profile service -- retrying...", e);
-                try {
-                    Thread.sleep(retryDelay);
-                } catch (InterruptedException ex) {
-                    throw new RuntimeException(ex);
-                }
-            }
-            retryDelay *= 2;
-            retriesLeft--;
-        }
-
-        for (final Object result : results) {
-            Profile profile = decodeProfileResult(result);
-            if (profile != null) {
-                profiles.add(profile);
-            }
-        }
-
-        return ImmutableList.copyOf(profiles);
+        return HttpUtil.await(queryByNameAsync(names));
     }
 
     /**
      * Perform a query for profiles by uuid.
      *
+     * <p>Every UUID is requested concurrently and retried on its own.</p>
+     *
      * @param uuids an iterable of uuids
      * @return a list of results
 //     * @throws IOException          thrown on I/O error
 //     * @throws InterruptedException thrown on interruption
      */
     protected ImmutableList<Profile> queryByUuid(Iterable<UUID> uuids) {
-        List<Profile> profiles = new ArrayList<>();
-
-        List<Object> results = new ArrayList<>();
-
-        int retriesLeft = maxRetries;
-        long retryDelay = this.retryDelay;
-
-        for (UUID uuid : uuids) {
-            try {
-                final Object obj = HttpUtil.requestAsync(builder -> builder.uri(profilesURL.resolve(uuid.toString())).build(), HttpResponse.BodyHandlers.ofString())
-                        .thenApply(HttpResponse::body)
-                        .thenApply(HttpUtil::parseJson)
-                        .join();
-                results.add(obj);
-
-                Profile profile = decodeProfileResult(obj);
-                if (profile != null) {
-                    profiles.add(profile);
-                }
-
-                break;
-            } catch (IOException | InterruptedException e) {
-                if (retriesLeft == 0) {
-                    throw new RuntimeException(e);
-                }
-
-                log.log(Level.WARNING, "Failed to query name history service -- retrying...", e);
-                try {
-                    Thread.sleep(retryDelay);
-                } catch (InterruptedException ex) {
-                    throw new RuntimeException(ex);
-                }
-            }
-
-            retryDelay *= 2;
-            retriesLeft--;
-        }
-
-        return ImmutableList.copyOf(profiles);
+        return HttpUtil.await(queryByUuidAsync(uuids));
     }
 
 }
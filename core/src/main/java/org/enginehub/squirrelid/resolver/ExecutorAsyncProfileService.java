@@ -0,0 +1,82 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.resolver;
+
+import com.google.common.collect.ImmutableList;
+import org.enginehub.squirrelid.Profile;
+import org.jspecify.annotations.Nullable;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Adapts a blocking {@link ProfileService} to {@link AsyncProfileService} by
+ * running every lookup on an {@link Executor}.
+ *
+ * <p>This is only meant for services that have no native non-blocking
+ * implementation, such as {@link HashMapService}.</p>
+ */
+public class ExecutorAsyncProfileService implements AsyncProfileService {
+
+    private final ProfileService service;
+    private final Executor executor;
+
+    /**
+     * Create a new instance.
+     *
+     * @param service the blocking service
+     * @param executor the executor to run lookups in
+     */
+    public ExecutorAsyncProfileService(ProfileService service, Executor executor) {
+        checkNotNull(service);
+        checkNotNull(executor);
+
+        this.service = service;
+        this.executor = executor;
+    }
+
+    @Override
+    public int getIdealRequestLimit() {
+        return service.getIdealRequestLimit();
+    }
+
+    @Override
+    public CompletableFuture<@Nullable Profile> findByNameAsync(String name) {
+        return CompletableFuture.supplyAsync(() -> service.findByName(name), executor);
+    }
+
+    @Override
+    public CompletableFuture<ImmutableList<Profile>> findAllByNameAsync(Iterable<String> names) {
+        return CompletableFuture.supplyAsync(() -> service.findAllByName(names), executor);
+    }
+
+    @Override
+    public CompletableFuture<@Nullable Profile> findByUuidAsync(UUID uuid) {
+        return CompletableFuture.supplyAsync(() -> service.findByUuid(uuid), executor);
+    }
+
+    @Override
+    public CompletableFuture<ImmutableList<Profile>> findAllByUuidAsync(Iterable<UUID> uuids) {
+        return CompletableFuture.supplyAsync(() -> service.findAllByUuid(uuids), executor);
+    }
+
+}
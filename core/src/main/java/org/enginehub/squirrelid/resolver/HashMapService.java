@@ -19,8 +19,13 @@
 package org.enginehub.squirrelid.resolver;
 
 import org.enginehub.squirrelid.Profile;
+import org.enginehub.squirrelid.util.ProfileSnapshots;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
@@ -76,6 +81,33 @@ public final class HashMapService extends SingleRequestService {
         }
     }
 
+    /**
+     * Write every entry to a snapshot file.
+     *
+     * @param file the file to write
+     * @throws IOException thrown if the file could not be written
+     * @see #loadSnapshot(File)
+     */
+    public void saveSnapshot(File file) throws IOException {
+        long now = System.currentTimeMillis();
+        List<Profile> profiles = new ArrayList<>(idToNameMap.size());
+        for (Map.Entry<UUID, String> entry : idToNameMap.entrySet()) {
+            profiles.add(new Profile(entry.getKey(), entry.getValue(), now));
+        }
+        ProfileSnapshots.write(file, profiles);
+    }
+
+    /**
+     * Add the entries in a snapshot file to the internal map.
+     *
+     * @param file the file to read
+     * @throws IOException thrown if the file could not be read
+     * @see #saveSnapshot(File)
+     */
+    public void loadSnapshot(File file) throws IOException {
+        ProfileSnapshots.read(file, this::put);
+    }
+
     @Override
     public int getIdealRequestLimit() {
         return Integer.MAX_VALUE;
@@ -21,42 +21,47 @@ package org.enginehub.squirrelid.resolver;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableList.Builder;
 import com.google.common.collect.Iterables;
+import com.google.gson.JsonArray;
+import dev.mizule.squirrelid.core.util.HttpUtil;
 import org.enginehub.squirrelid.Profile;
 import org.enginehub.squirrelid.util.HttpRequests;
+import org.enginehub.squirrelid.util.ProfileJsonReader;
 import org.enginehub.squirrelid.util.UUIDs;
+import org.jspecify.annotations.Nullable;
 
-import java.io.IOException;
-import java.net.URL;
+import java.net.URI;
+import java.net.http.HttpRequest;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.annotation.Nullable;
-
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * Resolves names in bulk to UUIDs using Mojang's profile HTTP API.
- * i brokey - powercas_gamer
+ *
+ * <p>Requests go through the shared client of {@link HttpUtil}, so
+ * connections to Mojang are kept alive and reused between lookups.</p>
  */
 @Deprecated
-public class HttpRepositoryService implements ProfileService {
+public class HttpRepositoryService implements ProfileService, AsyncProfileService {
 
     public static final String MINECRAFT_AGENT = "minecraft";
 
     private static final Logger log = Logger.getLogger(HttpRepositoryService.class.getCanonicalName());
     private static final int MAX_NAMES_PER_REQUEST = 100;
 
-    private final URL profilesURL;
-    private final Function<UUID, URL> nameHistoryUrlCreator;
+    private final URI profilesURI;
+    private final Function<UUID, URI> nameHistoryUriCreator;
     private int maxRetries = 5;
     private long retryDelay = 50;
+    private int maxConcurrentRequests = 16;
 
     /**
      * Create a new resolver.
@@ -70,30 +75,9 @@ public class HttpRepositoryService implements ProfileService {
      */
     public HttpRepositoryService(String agent) {
         checkNotNull(agent);
-        profilesURL = HttpRequests.url("https://api.mojang.com/profiles/" + agent);
-        nameHistoryUrlCreator = (uuid)
-            -> HttpRequests.url("https://sessionserver.mojang.com/session/minecraft/profile/" + UUIDs.stripDashes(uuid.toString()));
-    }
-
-    @Nullable @SuppressWarnings("unchecked")
-    private static Profile decodeProfileResult(Object entry) {
-        try {
-            if (entry instanceof Map) {
-                Map<Object, Object> mapEntry = (Map<Object, Object>) entry;
-                Object rawUuid = mapEntry.get("id");
-                Object rawName = mapEntry.get("name");
-
-                if (rawUuid != null && rawName != null) {
-                    UUID uuid = UUID.fromString(UUIDs.addDashes(String.valueOf(rawUuid)));
-                    String name = String.valueOf(rawName);
-                    return new Profile(uuid, name, System.currentTimeMillis());
-                }
-            }
-        } catch (ClassCastException | IllegalArgumentException e) {
-            log.log(Level.WARNING, "Got invalid value from UUID lookup service", e);
-        }
-
-        return null;
+        profilesURI = HttpRequests.uri("https://api.mojang.com/profiles/" + agent);
+        nameHistoryUriCreator = (uuid)
+            -> HttpRequests.uri("https://sessionserver.mojang.com/session/minecraft/profile/" + UUIDs.stripDashes(uuid.toString()));
     }
 
     /**
@@ -144,6 +128,27 @@ public class HttpRepositoryService implements ProfileService {
         this.retryDelay = retryDelay;
     }
 
+    /**
+     * Get the maximum number of HTTP requests that one bulk lookup by UUID
+     * keeps in flight at the same time.
+     *
+     * @return the maximum number of concurrent requests
+     */
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    /**
+     * Set the maximum number of HTTP requests that one bulk lookup by UUID
+     * keeps in flight at the same time.
+     *
+     * @param maxConcurrentRequests the maximum number of concurrent requests
+     */
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        checkArgument(maxConcurrentRequests >= 1, "maxConcurrentRequests must be >= 1");
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
     @Override
     public int getIdealRequestLimit() {
         return MAX_NAMES_PER_REQUEST;
@@ -199,6 +204,31 @@ public class HttpRepositoryService implements ProfileService {
         }
     }
 
+    @Override
+    public CompletableFuture<@Nullable Profile> findByNameAsync(String name) {
+        return HttpUtil.transform(findAllByNameAsync(ImmutableList.of(name)), AsyncProfiles::first);
+    }
+
+    @Override
+    public CompletableFuture<ImmutableList<Profile>> findAllByNameAsync(Iterable<String> names) {
+        List<CompletableFuture<ImmutableList<Profile>>> futures = new ArrayList<>();
+        for (List<String> partition : Iterables.partition(names, MAX_NAMES_PER_REQUEST)) {
+            futures.add(queryByNameAsync(partition));
+        }
+        return AsyncProfiles.concat(futures);
+    }
+
+    @Override
+    public CompletableFuture<@Nullable Profile> findByUuidAsync(UUID uuid) {
+        return queryByUuidAsync(uuid);
+    }
+
+    @Override
+    public CompletableFuture<ImmutableList<Profile>> findAllByUuidAsync(Iterable<UUID> uuids) {
+        return HttpUtil.transform(HttpUtil.mapConcurrently(ImmutableList.copyOf(uuids), maxConcurrentRequests, this::queryByUuidAsync),
+                AsyncProfiles::found);
+    }
+
     /**
      * Perform a query for profiles by name without partitioning the queries.
      *
@@ -208,49 +238,47 @@ public class HttpRepositoryService implements ProfileService {
 //     * @throws InterruptedException thrown on interruption
      */
     protected ImmutableList<Profile> queryByName(Iterable<String> names) {
-        List<Profile> profiles = new ArrayList<>();
-
-        Object result;
-
-        int retriesLeft = maxRetries;
-        long retryDelay = this.retryDelay;
-
-        while (true) {
-            try {
-                result = HttpRequests
-                    .post(profilesURL)
-                    .bodyJson(names)
-                    .execute()
-                    .returnContent()
-                    .asJson();
-                break;
-            } catch (IOException | InterruptedException e) {
-                if (retriesLeft == 0) {
-                    throw new RuntimeException(e);
-                }
-
-                log.log(Level.WARNING, "Failed to query profile service -- retrying...", e);
-                try {
-                    Thread.sleep(retryDelay);
-                } catch (InterruptedException ex) {
-                    throw new RuntimeException(ex);
-                }
-            }
+        return HttpUtil.await(queryByNameAsync(names));
+    }
 
-            retryDelay *= 2;
-            retriesLeft--;
+    /**
+     * Perform a non-blocking query for profiles by name without partitioning the queries.
+     *
+     * @param names an iterable of names
+     * @return a future completed with a list of results
+     */
+    protected CompletableFuture<ImmutableList<Profile>> queryByNameAsync(Iterable<String> names) {
+        JsonArray body = new JsonArray();
+        for (String name : names) {
+            body.add(name);
         }
 
-        if (result instanceof Iterable) {
-            for (Object entry : (Iterable) result) {
-                Profile profile = decodeProfileResult(entry);
-                if (profile != null) {
-                    profiles.add(profile);
-                }
-            }
-        }
+        return HttpUtil.retryAsync(
+                () -> HttpUtil.transform(HttpUtil.requestAsync(builder -> builder
+                                .uri(profilesURI)
+                                .header("Content-Type", "application/json")
+                                .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+                                .build(), ProfileJsonReader.profilesHandler()),
+                        response -> HttpUtil.expectStatus(response, 200).body()),
+                maxRetries, retryDelay,
+                e -> log.log(Level.WARNING, "Failed to query profile service -- retrying...", e));
+    }
 
-        return ImmutableList.copyOf(profiles);
+    /**
+     * Perform a non-blocking query for a profile by uuid.
+     *
+     * @param uuid the uuid
+     * @return a future completed with the profile, otherwise {@code null}
+     */
+    protected CompletableFuture<@Nullable Profile> queryByUuidAsync(UUID uuid) {
+        return HttpUtil.retryAsync(
+                () -> HttpUtil.transform(HttpUtil.requestAsync(builder -> builder
+                                .uri(nameHistoryUriCreator.apply(uuid))
+                                .GET()
+                                .build(), ProfileJsonReader.profileHandler()),
+                        response -> HttpUtil.expectStatus(response, 200, 204).body()),
+                maxRetries, retryDelay,
+                e -> log.log(Level.WARNING, "Failed to query name history service -- retrying...", e));
     }
 
     /**
@@ -262,49 +290,7 @@ public class HttpRepositoryService implements ProfileService {
 //     * @throws InterruptedException thrown on interruption
      */
     protected ImmutableList<Profile> queryByUuid(Iterable<UUID> uuids) {
-        List<Profile> profiles = new ArrayList<>();
-
-        Object result;
-
-        int retriesLeft = maxRetries;
-        long retryDelay = this.retryDelay;
-
-        for (UUID uuid : uuids) {
-            while (true) {
-                try {
-                    result = HttpRequests
-                        .get(nameHistoryUrlCreator.apply(uuid))
-                        .execute()
-                        .returnContent()
-                        .asJson();
-
-                    if (result instanceof Map map) {
-                        Object rawName = map.get("name");
-                        if (rawName != null) {
-                            profiles.add(new Profile(uuid, String.valueOf(rawName), System.currentTimeMillis()));
-                        }
-                    }
-
-                    break;
-                } catch (IOException | InterruptedException e) {
-                    if (retriesLeft == 0) {
-                        throw new RuntimeException(e);
-                    }
-
-                    log.log(Level.WARNING, "Failed to query name history service -- retrying...", e);
-                    try {
-                        Thread.sleep(retryDelay);
-                    } catch (InterruptedException ex) {
-                        throw new RuntimeException(ex);
-                    }
-                }
-
-                retryDelay *= 2;
-                retriesLeft--;
-            }
-        }
-
-        return ImmutableList.copyOf(profiles);
+        return HttpUtil.await(findAllByUuidAsync(uuids));
     }
 
 }
@@ -25,39 +25,70 @@ import org.enginehub.squirrelid.Profile;
 import org.jspecify.annotations.Nullable;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * Resolves profiles with several parallel threads using another resolver.
+ *
+ * <p>Instances created with {@link #withVirtualThreads(ProfileService, int)}
+ * run every job on its own virtual thread, with a limit on the number of
+ * jobs that may query the resolver at the same time. Executors created by
+ * this class are shut down by {@link #close()}.</p>
  */
-public class ParallelProfileService implements ProfileService {
+public class ParallelProfileService implements ProfileService, AutoCloseable {
+
+    private static final Logger log = Logger.getLogger(ParallelProfileService.class.getCanonicalName());
 
     private final ProfileService resolver;
     private final ExecutorService executorService;
+    private final boolean ownsExecutor;
+    @Nullable
+    private final Semaphore permits;
     private int profilesPerJob = 100;
 
+    private ParallelProfileService(ProfileService resolver, ExecutorService executorService,
+                                   boolean ownsExecutor, @Nullable Semaphore permits) {
+        checkNotNull(resolver);
+        checkNotNull(executorService);
+
+        this.resolver = resolver;
+        this.executorService = executorService;
+        this.ownsExecutor = ownsExecutor;
+        this.permits = permits;
+    }
+
     /**
      * Create a new parallel resolver.
      *
+     * <p>The executor service is not shut down by {@link #close()}.</p>
+     *
      * @param resolver the resolver to use
      * @param executorService the executor service to schedule jobs in
      */
     public ParallelProfileService(ProfileService resolver, ExecutorService executorService) {
-        checkNotNull(resolver);
-        checkNotNull(executorService);
-
-        this.resolver = resolver;
-        this.executorService = executorService;
+        this(resolver, executorService, false, null);
     }
 
     /**
@@ -67,7 +98,68 @@ public class ParallelProfileService implements ProfileService {
      * @param numThreads the number of threads to resolve profiles in
      */
     public ParallelProfileService(ProfileService resolver, int numThreads) {
-        this(resolver, Executors.newFixedThreadPool(numThreads));
+        this(resolver, Executors.newFixedThreadPool(numThreads), true, null);
+    }
+
+    /**
+     * Create a new parallel resolver that runs each job on a new virtual thread.
+     *
+     * <p>Up to {@code maxConcurrency} jobs query the resolver at once, and
+     * the rest wait for a permit without holding a platform thread. On Java
+     * versions without virtual threads, a fixed pool of
+     * {@code maxConcurrency} platform threads is used instead, so the rest
+     * wait in its queue.</p>
+     *
+     * @param resolver the resolver to use
+     * @param maxConcurrency the maximum number of jobs to run at the same time
+     * @return a new parallel resolver
+     */
+    public static ParallelProfileService withVirtualThreads(ProfileService resolver, int maxConcurrency) {
+        checkArgument(maxConcurrency >= 1, "maxConcurrency must be >= 1");
+        ExecutorService executor = tryNewVirtualThreadExecutor();
+        if (executor == null) {
+            // Waiting for a permit would hold a platform thread per job
+            return new ParallelProfileService(resolver, Executors.newFixedThreadPool(maxConcurrency), true, null);
+        }
+        return new ParallelProfileService(resolver, executor, true, new Semaphore(maxConcurrency));
+    }
+
+    /**
+     * Create an executor that starts a new virtual thread for each task,
+     * falling back to a cached thread pool if virtual threads are not available.
+     *
+     * @return a new executor service
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        return newVirtualThreadExecutor(Executors.defaultThreadFactory());
+    }
+
+    /**
+     * Create an executor that starts a new virtual thread for each task,
+     * falling back to a cached thread pool if virtual threads are not available.
+     *
+     * @param fallbackFactory creates the threads of the pool used without virtual threads
+     * @return a new executor service
+     */
+    static ExecutorService newVirtualThreadExecutor(ThreadFactory fallbackFactory) {
+        ExecutorService executor = tryNewVirtualThreadExecutor();
+        return executor != null ? executor : Executors.newCachedThreadPool(fallbackFactory);
+    }
+
+    /**
+     * Create an executor that starts a new virtual thread for each task.
+     *
+     * @return a new executor service, or {@code null} if virtual threads are not available
+     */
+    @Nullable
+    private static ExecutorService tryNewVirtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.log(Level.FINE, "Virtual threads are not available, using platform threads instead", e);
+            return null;
+        }
     }
 
     /**
@@ -103,6 +195,29 @@ public class ParallelProfileService implements ProfileService {
         return Math.min(profilesPerJob, resolver.getIdealRequestLimit());
     }
 
+    /**
+     * Wrap a job so that it waits for a permit before it runs, if the
+     * number of concurrent jobs is limited.
+     *
+     * @param job the job
+     * @param <T> the result type
+     * @return the wrapped job
+     */
+    private <T> Callable<T> limited(Callable<T> job) {
+        Semaphore permits = this.permits;
+        if (permits == null) {
+            return job;
+        }
+        return () -> {
+            permits.acquire();
+            try {
+                return job.call();
+            } finally {
+                permits.release();
+            }
+        };
+    }
+
     @Nullable @Override
     public Profile findByName(String name) {
         return resolver.findByName(name);
@@ -110,56 +225,35 @@ public class ParallelProfileService implements ProfileService {
 
     @Override
     public ImmutableList<Profile> findAllByName(Iterable<String> names) {
-        CompletionService<List<Profile>> completion = new ExecutorCompletionService<>(executorService);
-        int count = 0;
-        for (final List<String> partition : Iterables.partition(names, getEffectiveProfilesPerJob())) {
-            count++;
-            completion.submit(() -> resolver.findAllByName(partition));
-        }
-
         Builder<Profile> builder = ImmutableList.builder();
-        for (int i = 0; i < count; i++) {
-            try {
-                builder.addAll(completion.take().get());
-            } catch (ExecutionException | InterruptedException e) {
-                if (e.getCause() instanceof IOException) {
-                    throw new RuntimeException(e.getCause());
-                } else {
-                    throw new RuntimeException("Error occurred during the operation", e);
-                }
-            }
-        }
+        runJobs(names, resolver::findAllByName, builder::addAll, null);
         return builder.build();
     }
 
     @Override
     public void findAllByName(Iterable<String> names, final Predicate<Profile> consumer) {
-        CompletionService<Object> completion = new ExecutorCompletionService<>(executorService);
-        int count = 0;
-        for (final List<String> partition : Iterables.partition(names, getEffectiveProfilesPerJob())) {
-            count++;
-            completion.submit(() -> {
-                resolver.findAllByName(partition, consumer);
-                return null;
-            });
-        }
-
-        Throwable throwable = null;
-        for (int i = 0; i < count; i++) {
-            try {
-                completion.take().get();
-            } catch (ExecutionException | InterruptedException e) {
-                throwable = e.getCause();
-            }
-        }
+        runJobs(names, partition -> {
+            resolver.findAllByName(partition, consumer);
+            return null;
+        }, result -> { }, null);
+    }
 
-        if (throwable != null) {
-            if (throwable instanceof IOException) {
-                throw new RuntimeException(throwable);
-            } else {
-                throw new RuntimeException("Error occurred during the operation", throwable);
-            }
-        }
+    /**
+     * Find the profiles for the given names, continuing with the other
+     * jobs if one of them fails.
+     *
+     * <p>If the calling thread is interrupted, the jobs that have not
+     * finished yet are cancelled and reported as failed.</p>
+     *
+     * @param names an iterable of names
+     * @return the found profiles along with the failed jobs
+     */
+    public PartialResult<String> findAllByNameBestEffort(Iterable<String> names) {
+        Builder<Profile> builder = ImmutableList.builder();
+        ImmutableList.Builder<PartialResult.Failure<String>> failures = ImmutableList.builder();
+        runJobs(names, resolver::findAllByName, builder::addAll,
+                (partition, cause) -> failures.add(new PartialResult.Failure<>(ImmutableList.copyOf(partition), cause)));
+        return new PartialResult<>(builder.build(), failures.build());
     }
 
     @Nullable @Override
@@ -169,55 +263,106 @@ public class ParallelProfileService implements ProfileService {
 
     @Override
     public ImmutableList<Profile> findAllByUuid(Iterable<UUID> uuids) {
-        CompletionService<List<Profile>> completion = new ExecutorCompletionService<>(executorService);
-        int count = 0;
-        for (final List<UUID> partition : Iterables.partition(uuids, getEffectiveProfilesPerJob())) {
-            count++;
-            completion.submit(() -> resolver.findAllByUuid(partition));
-        }
-
         Builder<Profile> builder = ImmutableList.builder();
-        for (int i = 0; i < count; i++) {
-            try {
-                builder.addAll(completion.take().get());
-            } catch (ExecutionException | InterruptedException e) {
-                if (e.getCause() instanceof IOException) {
-                    throw new RuntimeException(e.getCause());
-                } else {
-                    throw new RuntimeException("Error occurred during the operation", e);
-                }
-            }
-        }
+        runJobs(uuids, resolver::findAllByUuid, builder::addAll, null);
         return builder.build();
     }
 
     @Override
     public void findAllByUuid(Iterable<UUID> uuids, Predicate<Profile> consumer) {
-        CompletionService<Object> completion = new ExecutorCompletionService<>(executorService);
-        int count = 0;
-        for (final List<UUID> partition : Iterables.partition(uuids, getEffectiveProfilesPerJob())) {
-            count++;
-            completion.submit(() -> {
-                resolver.findAllByUuid(partition, consumer);
-                return null;
-            });
+        runJobs(uuids, partition -> {
+            resolver.findAllByUuid(partition, consumer);
+            return null;
+        }, result -> { }, null);
+    }
+
+    /**
+     * Find the profiles for the given UUIDs, continuing with the other
+     * jobs if one of them fails.
+     *
+     * <p>If the calling thread is interrupted, the jobs that have not
+     * finished yet are cancelled and reported as failed.</p>
+     *
+     * @param uuids an iterable of UUIDs
+     * @return the found profiles along with the failed jobs
+     */
+    public PartialResult<UUID> findAllByUuidBestEffort(Iterable<UUID> uuids) {
+        Builder<Profile> builder = ImmutableList.builder();
+        ImmutableList.Builder<PartialResult.Failure<UUID>> failures = ImmutableList.builder();
+        runJobs(uuids, resolver::findAllByUuid, builder::addAll,
+                (partition, cause) -> failures.add(new PartialResult.Failure<>(ImmutableList.copyOf(partition), cause)));
+        return new PartialResult<>(builder.build(), failures.build());
+    }
+
+    /**
+     * Split the keys into jobs, run them and wait for all of them to finish.
+     *
+     * <p>Results and failures are handed to the callbacks on the calling
+     * thread. Without a failure callback, the first failed job cancels the
+     * others and its error is thrown. Jobs that are still running when
+     * this method returns or throws, such as when the calling thread is
+     * interrupted, are always cancelled.</p>
+     *
+     * @param keys the keys
+     * @param job the function that runs one job
+     * @param onResult called with the result of every successful job
+     * @param onFailure called with the keys and error of every failed job, or {@code null} to fail fast
+     * @param <K> the type of key
+     * @param <R> the type of result
+     */
+    private <K, R> void runJobs(Iterable<K> keys, Function<List<K>, R> job, Consumer<R> onResult,
+                                @Nullable BiConsumer<List<K>, Throwable> onFailure) {
+        CompletionService<R> completion = new ExecutorCompletionService<>(executorService);
+        Map<Future<R>, List<K>> pending = new HashMap<>();
+        for (final List<K> partition : Iterables.partition(keys, getEffectiveProfilesPerJob())) {
+            pending.put(completion.submit(limited(() -> job.apply(partition))), partition);
         }
 
-        Throwable throwable = null;
-        for (int i = 0; i < count; i++) {
-            try {
-                completion.take().get();
-            } catch (ExecutionException | InterruptedException e) {
-                throwable = e.getCause();
+        try {
+            while (!pending.isEmpty()) {
+                Future<R> future = completion.take();
+                List<K> partition = pending.remove(future);
+                try {
+                    onResult.accept(future.get());
+                } catch (ExecutionException e) {
+                    if (onFailure == null) {
+                        throw wrap(e.getCause());
+                    }
+                    onFailure.accept(partition, e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (onFailure == null) {
+                throw new RuntimeException("Interrupted while waiting for the operation", e);
+            }
+            for (List<K> partition : pending.values()) {
+                onFailure.accept(partition, e);
+            }
+        } finally {
+            for (Future<R> future : pending.keySet()) {
+                future.cancel(true);
             }
         }
+    }
 
-        if (throwable != null) {
-            if (throwable instanceof IOException) {
-                throw new RuntimeException(throwable);
-            } else {
-                throw new RuntimeException("Error occurred during the operation", throwable);
-            }
+    private static RuntimeException wrap(Throwable throwable) {
+        if (throwable instanceof IOException) {
+            return new RuntimeException(throwable);
+        } else {
+            return new RuntimeException("Error occurred during the operation", throwable);
+        }
+    }
+
+    /**
+     * Shut down the executor service if it was created by this instance.
+     *
+     * <p>Jobs that have already been submitted are allowed to finish.</p>
+     */
+    @Override
+    public void close() {
+        if (ownsExecutor) {
+            executorService.shutdown();
         }
     }
 
@@ -0,0 +1,90 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.resolver;
+
+import com.google.common.collect.ImmutableList;
+import org.enginehub.squirrelid.Profile;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The result of a bulk lookup that keeps going when some of its jobs fail.
+ *
+ * @param profiles the profiles that were found
+ * @param failures the jobs that failed
+ * @param <K> the type of key that was looked up, such as a name or UUID
+ */
+public record PartialResult<K>(ImmutableList<Profile> profiles, ImmutableList<Failure<K>> failures) {
+
+    /**
+     * Create a new instance.
+     *
+     * @param profiles the profiles that were found
+     * @param failures the jobs that failed
+     */
+    public PartialResult {
+        checkNotNull(profiles);
+        checkNotNull(failures);
+    }
+
+    /**
+     * Return whether every job completed successfully.
+     *
+     * @return true if no job failed
+     */
+    public boolean isComplete() {
+        return failures.isEmpty();
+    }
+
+    /**
+     * Get the keys of every failed job, such as to try them again later.
+     *
+     * @return a list of keys
+     */
+    public ImmutableList<K> failedKeys() {
+        ImmutableList.Builder<K> builder = ImmutableList.builder();
+        for (Failure<K> failure : failures) {
+            builder.addAll(failure.keys());
+        }
+        return builder.build();
+    }
+
+    /**
+     * A job that failed.
+     *
+     * @param keys the keys that the job was looking up
+     * @param cause the error
+     * @param <K> the type of key
+     */
+    public record Failure<K>(ImmutableList<K> keys, Throwable cause) {
+
+        /**
+         * Create a new instance.
+         *
+         * @param keys the keys that the job was looking up
+         * @param cause the error
+         */
+        public Failure {
+            checkNotNull(keys);
+            checkNotNull(cause);
+        }
+
+    }
+
+}
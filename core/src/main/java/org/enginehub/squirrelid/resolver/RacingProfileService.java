@@ -0,0 +1,392 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.resolver;
+
+import com.google.common.collect.ImmutableList;
+import org.enginehub.squirrelid.Profile;
+import org.jspecify.annotations.Nullable;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Sends lookups to a primary resolver and, if it has not answered after a
+ * while, to a secondary resolver as well, returning whichever answers first.
+ *
+ * <p>The time to wait before hedging adapts to the primary resolver: it is
+ * a quantile (the 95th percentile by default) of its recent latencies.
+ * The losing lookup is cancelled. If either resolver fails, the answer of
+ * the other one is used instead.</p>
+ *
+ * <p>Bulk lookups with a consumer are raced like the other bulk lookups.
+ * Profiles are handed to the consumer as either resolver finds them, one
+ * at a time and at most once per UUID, until the lookup returns.</p>
+ */
+public class RacingProfileService implements ProfileService, AutoCloseable {
+
+    private static final int MIN_SAMPLES = 20;
+
+    private final ProfileService primary;
+    private final ProfileService secondary;
+    private final ExecutorService executorService;
+    private final boolean ownsExecutor;
+    private final LatencyWindow latencies = new LatencyWindow(200);
+    private double hedgeQuantile = 0.95;
+    private long initialHedgeDelay = TimeUnit.MILLISECONDS.toNanos(250);
+    private long minHedgeDelay = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private RacingProfileService(ProfileService primary, ProfileService secondary,
+                                 ExecutorService executorService, boolean ownsExecutor) {
+        checkNotNull(primary);
+        checkNotNull(secondary);
+        checkNotNull(executorService);
+
+        this.primary = primary;
+        this.secondary = secondary;
+        this.executorService = executorService;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * <p>The executor service is not shut down by {@link #close()}.</p>
+     *
+     * @param primary the resolver to query first
+     * @param secondary the resolver to query when the primary is slow
+     * @param executorService the executor service to run lookups in
+     */
+    public RacingProfileService(ProfileService primary, ProfileService secondary, ExecutorService executorService) {
+        this(primary, secondary, executorService, false);
+    }
+
+    /**
+     * Create a new instance that runs every lookup on a new virtual thread.
+     *
+     * @param primary the resolver to query first
+     * @param secondary the resolver to query when the primary is slow
+     */
+    public RacingProfileService(ProfileService primary, ProfileService secondary) {
+        this(primary, secondary, ParallelProfileService.newVirtualThreadExecutor(), true);
+    }
+
+    /**
+     * Get the quantile of the primary's recent latencies to wait for
+     * before also querying the secondary.
+     *
+     * @return the quantile, between 0 and 1
+     */
+    public double getHedgeQuantile() {
+        return hedgeQuantile;
+    }
+
+    /**
+     * Set the quantile of the primary's recent latencies to wait for
+     * before also querying the secondary.
+     *
+     * @param hedgeQuantile the quantile, between 0 and 1
+     */
+    public void setHedgeQuantile(double hedgeQuantile) {
+        checkArgument(hedgeQuantile > 0 && hedgeQuantile <= 1, "hedgeQuantile must be in (0, 1]");
+        this.hedgeQuantile = hedgeQuantile;
+    }
+
+    /**
+     * Get the time to wait before hedging while too few latencies
+     * of the primary have been seen.
+     *
+     * @return the delay
+     */
+    public Duration getInitialHedgeDelay() {
+        return Duration.ofNanos(initialHedgeDelay);
+    }
+
+    /**
+     * Set the time to wait before hedging while too few latencies
+     * of the primary have been seen.
+     *
+     * @param initialHedgeDelay the delay
+     */
+    public void setInitialHedgeDelay(Duration initialHedgeDelay) {
+        checkNotNull(initialHedgeDelay);
+        checkArgument(!initialHedgeDelay.isNegative(), "initialHedgeDelay must not be negative");
+        this.initialHedgeDelay = initialHedgeDelay.toNanos();
+    }
+
+    /**
+     * Get the shortest time to wait before hedging, no matter how
+     * fast the primary has been.
+     *
+     * @return the delay
+     */
+    public Duration getMinHedgeDelay() {
+        return Duration.ofNanos(minHedgeDelay);
+    }
+
+    /**
+     * Set the shortest time to wait before hedging, no matter how
+     * fast the primary has been.
+     *
+     * @param minHedgeDelay the delay
+     */
+    public void setMinHedgeDelay(Duration minHedgeDelay) {
+        checkNotNull(minHedgeDelay);
+        checkArgument(!minHedgeDelay.isNegative(), "minHedgeDelay must not be negative");
+        this.minHedgeDelay = minHedgeDelay.toNanos();
+    }
+
+    /**
+     * Get the time that lookups currently wait for the primary before
+     * also querying the secondary.
+     *
+     * @return the delay
+     */
+    public Duration getHedgeDelay() {
+        return Duration.ofNanos(hedgeDelay());
+    }
+
+    private long hedgeDelay() {
+        long quantile = latencies.quantile(hedgeQuantile, MIN_SAMPLES);
+        return Math.max(minHedgeDelay, quantile < 0 ? initialHedgeDelay : quantile);
+    }
+
+    @Override
+    public int getIdealRequestLimit() {
+        return Math.min(primary.getIdealRequestLimit(), secondary.getIdealRequestLimit());
+    }
+
+    @Nullable @Override
+    public Profile findByName(String name) {
+        return race(service -> service.findByName(name));
+    }
+
+    @Override
+    public ImmutableList<Profile> findAllByName(Iterable<String> names) {
+        ImmutableList<String> list = ImmutableList.copyOf(names);
+        return race(service -> service.findAllByName(list));
+    }
+
+    @Override
+    public void findAllByName(Iterable<String> names, Predicate<Profile> consumer) {
+        ImmutableList<String> list = ImmutableList.copyOf(names);
+        try (DistinctConsumer distinct = new DistinctConsumer(consumer)) {
+            race(service -> {
+                service.findAllByName(list, distinct);
+                return null;
+            });
+        }
+    }
+
+    @Nullable @Override
+    public Profile findByUuid(UUID uuid) {
+        return race(service -> service.findByUuid(uuid));
+    }
+
+    @Override
+    public ImmutableList<Profile> findAllByUuid(Iterable<UUID> uuids) {
+        ImmutableList<UUID> list = ImmutableList.copyOf(uuids);
+        return race(service -> service.findAllByUuid(list));
+    }
+
+    @Override
+    public void findAllByUuid(Iterable<UUID> uuids, Predicate<Profile> consumer) {
+        ImmutableList<UUID> list = ImmutableList.copyOf(uuids);
+        try (DistinctConsumer distinct = new DistinctConsumer(consumer)) {
+            race(service -> {
+                service.findAllByUuid(list, distinct);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Run the query on the primary, hedging it with the secondary if the
+     * primary is slow or fails, and return the first answer.
+     *
+     * @param query the query
+     * @param <T> the type of answer
+     * @return the answer
+     */
+    private <T> T race(Function<ProfileService, T> query) {
+        CompletionService<T> completion = new ExecutorCompletionService<>(executorService);
+        AtomicBoolean finished = new AtomicBoolean();
+        Future<T> first = completion.submit(() -> {
+            long start = System.nanoTime();
+            try {
+                T result = query.apply(primary);
+                latencies.add(System.nanoTime() - start);
+                return result;
+            } catch (RuntimeException | Error e) {
+                // Lookups cut short by the secondary still count, or slow ones would never be seen,
+                // but fast failures would make the primary look faster than it is
+                if (finished.get()) {
+                    latencies.add(System.nanoTime() - start);
+                }
+                throw e;
+            }
+        });
+        Future<T> second = null;
+
+        try {
+            Future<T> done = completion.poll(hedgeDelay(), TimeUnit.NANOSECONDS);
+            if (done == null) {
+                second = completion.submit(() -> query.apply(secondary));
+                done = completion.take();
+            }
+
+            try {
+                return done.get();
+            } catch (ExecutionException e) {
+                if (second == null) {
+                    second = completion.submit(() -> query.apply(secondary));
+                }
+                try {
+                    return completion.take().get();
+                } catch (ExecutionException e2) {
+                    if (e.getCause() != e2.getCause()) {
+                        e.getCause().addSuppressed(e2.getCause());
+                    }
+                    throw wrap(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the operation", e);
+        } finally {
+            finished.set(true);
+            first.cancel(true);
+            if (second != null) {
+                second.cancel(true);
+            }
+        }
+    }
+
+    private static RuntimeException wrap(Throwable throwable) {
+        if (throwable instanceof RuntimeException) {
+            return (RuntimeException) throwable;
+        } else if (throwable instanceof IOException) {
+            return new RuntimeException(throwable);
+        } else {
+            return new RuntimeException("Error occurred during the operation", throwable);
+        }
+    }
+
+    /**
+     * Shut down the executor service if it was created by this instance.
+     */
+    @Override
+    public void close() {
+        if (ownsExecutor) {
+            executorService.shutdown();
+        }
+    }
+
+    /**
+     * A ring buffer of the most recent latencies.
+     *
+     * <p>The quantile is only computed again after {@link #RECOMPUTE_INTERVAL}
+     * new samples, so that most lookups do not have to sort the buffer.</p>
+     */
+    private static final class LatencyWindow {
+        private static final int RECOMPUTE_INTERVAL = 20;
+
+        private final long[] samples;
+        private int next;
+        private int size;
+        private int added;
+        private double cachedQuantile = Double.NaN;
+        private long cachedValue;
+
+        private LatencyWindow(int capacity) {
+            this.samples = new long[capacity];
+        }
+
+        synchronized void add(long nanos) {
+            samples[next] = nanos;
+            next = (next + 1) % samples.length;
+            size = Math.min(size + 1, samples.length);
+            added++;
+        }
+
+        /**
+         * Get the given quantile of the recorded latencies.
+         *
+         * @param quantile the quantile
+         * @param minSamples the number of samples needed
+         * @return the latency in nanoseconds, or -1 if there are too few samples
+         */
+        synchronized long quantile(double quantile, int minSamples) {
+            if (size < minSamples) {
+                return -1;
+            }
+            if (quantile != cachedQuantile || added >= RECOMPUTE_INTERVAL) {
+                long[] sorted = Arrays.copyOf(samples, size);
+                Arrays.sort(sorted);
+                cachedValue = sorted[Math.min(sorted.length - 1, (int) Math.ceil(quantile * sorted.length) - 1)];
+                cachedQuantile = quantile;
+                added = 0;
+            }
+            return cachedValue;
+        }
+    }
+
+    /**
+     * Hands profiles from both resolvers to a consumer one at a time,
+     * skipping UUIDs that were already handed over, until closed.
+     */
+    private static final class DistinctConsumer implements Predicate<Profile>, AutoCloseable {
+        private final Predicate<Profile> consumer;
+        private final Set<UUID> seen = new HashSet<>();
+        private boolean closed;
+
+        private DistinctConsumer(Predicate<Profile> consumer) {
+            this.consumer = consumer;
+        }
+
+        @Override
+        public synchronized boolean test(Profile profile) {
+            if (!closed && seen.add(profile.uniqueId())) {
+                consumer.test(profile);
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+        }
+    }
+
+}
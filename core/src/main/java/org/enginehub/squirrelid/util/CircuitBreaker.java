@@ -0,0 +1,274 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.util;
+
+import java.time.Duration;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Stops calls to an upstream service that keeps failing or is too slow.
+ *
+ * <p>The breaker starts out {@link State#CLOSED closed} and records the
+ * outcome of the most recent calls. Once enough of them failed or were
+ * slow, it {@link State#OPEN opens} and rejects every call for a while.
+ * After that, it lets a few trial calls through while
+ * {@link State#HALF_OPEN half-open}: if they all go well, the breaker
+ * closes again, otherwise it opens again.</p>
+ *
+ * <p>Callers ask for permission with {@link #tryAcquire()} and then report
+ * the outcome with {@link #onSuccess(long)} or {@link #onError(long)}, or
+ * give the permission back with {@link #onCancelled()}.</p>
+ */
+public class CircuitBreaker {
+
+    /**
+     * The state of a circuit breaker.
+     */
+    public enum State {
+        /**
+         * Calls are permitted and their outcomes are recorded.
+         */
+        CLOSED,
+        /**
+         * Calls are rejected.
+         */
+        OPEN,
+        /**
+         * A limited number of trial calls are permitted.
+         */
+        HALF_OPEN
+    }
+
+    private final boolean[] failed;
+    private final boolean[] slow;
+    private int minimumCalls = 10;
+    private double failureRateThreshold = 0.5;
+    private double slowCallRateThreshold = 1;
+    private long slowCallDuration = Duration.ofSeconds(5).toNanos();
+    private long openDuration = Duration.ofSeconds(30).toNanos();
+    private int halfOpenCalls = 3;
+
+    private State state = State.CLOSED;
+    private int next;
+    private int size;
+    private int failures;
+    private int slowCalls;
+    private long openedAt;
+    private int trialsStarted;
+    private int trialsSucceeded;
+
+    /**
+     * Create a new instance.
+     *
+     * @param windowSize the number of most recent calls to consider
+     */
+    public CircuitBreaker(int windowSize) {
+        checkArgument(windowSize >= 1, "windowSize must be >= 1");
+        this.failed = new boolean[windowSize];
+        this.slow = new boolean[windowSize];
+    }
+
+    /**
+     * Create a new instance that considers the 20 most recent calls.
+     */
+    public CircuitBreaker() {
+        this(20);
+    }
+
+    /**
+     * Set the number of calls that must have been recorded before
+     * the breaker may open.
+     *
+     * @param minimumCalls the number of calls
+     */
+    public synchronized void setMinimumCalls(int minimumCalls) {
+        checkArgument(minimumCalls >= 1, "minimumCalls must be >= 1");
+        this.minimumCalls = minimumCalls;
+    }
+
+    /**
+     * Set the fraction of failed calls at which the breaker opens.
+     *
+     * @param failureRateThreshold the fraction, between 0 and 1
+     */
+    public synchronized void setFailureRateThreshold(double failureRateThreshold) {
+        checkArgument(failureRateThreshold > 0 && failureRateThreshold <= 1, "failureRateThreshold must be in (0, 1]");
+        this.failureRateThreshold = failureRateThreshold;
+    }
+
+    /**
+     * Set the fraction of slow calls at which the breaker opens.
+     *
+     * @param slowCallRateThreshold the fraction, between 0 and 1
+     */
+    public synchronized void setSlowCallRateThreshold(double slowCallRateThreshold) {
+        checkArgument(slowCallRateThreshold > 0 && slowCallRateThreshold <= 1, "slowCallRateThreshold must be in (0, 1]");
+        this.slowCallRateThreshold = slowCallRateThreshold;
+    }
+
+    /**
+     * Set the duration after which a call is considered slow.
+     *
+     * @param slowCallDuration the duration
+     */
+    public synchronized void setSlowCallDuration(Duration slowCallDuration) {
+        checkNotNull(slowCallDuration);
+        this.slowCallDuration = slowCallDuration.toNanos();
+    }
+
+    /**
+     * Set how long the breaker stays open before allowing trial calls.
+     *
+     * @param openDuration the duration
+     */
+    public synchronized void setOpenDuration(Duration openDuration) {
+        checkNotNull(openDuration);
+        checkArgument(!openDuration.isNegative(), "openDuration must not be negative");
+        this.openDuration = openDuration.toNanos();
+    }
+
+    /**
+     * Set the number of trial calls that must succeed while half-open
+     * before the breaker closes.
+     *
+     * @param halfOpenCalls the number of calls
+     */
+    public synchronized void setHalfOpenCalls(int halfOpenCalls) {
+        checkArgument(halfOpenCalls >= 1, "halfOpenCalls must be >= 1");
+        this.halfOpenCalls = halfOpenCalls;
+    }
+
+    /**
+     * Get the current state.
+     *
+     * @return the state
+     */
+    public synchronized State getState() {
+        if (state == State.OPEN && System.nanoTime() - openedAt >= openDuration) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    /**
+     * Ask for permission to make a call.
+     *
+     * <p>If permission is given, the outcome of the call must be reported
+     * with {@link #onSuccess(long)} or {@link #onError(long)}, or
+     * {@link #onCancelled()} if the call was abandoned.</p>
+     *
+     * @return true if the call may be made
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openedAt < openDuration) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            trialsStarted = 0;
+            trialsSucceeded = 0;
+        }
+
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (trialsStarted < halfOpenCalls) {
+            trialsStarted++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Record a call that completed normally.
+     *
+     * @param durationNanos how long the call took, in nanoseconds
+     */
+    public synchronized void onSuccess(long durationNanos) {
+        record(false, durationNanos >= slowCallDuration);
+    }
+
+    /**
+     * Record a call that failed.
+     *
+     * @param durationNanos how long the call took, in nanoseconds
+     */
+    public synchronized void onError(long durationNanos) {
+        record(true, durationNanos >= slowCallDuration);
+    }
+
+    /**
+     * Give back the permission for a call that was abandoned before it
+     * completed, such as when the caller was interrupted, without
+     * recording an outcome.
+     */
+    public synchronized void onCancelled() {
+        if (state == State.HALF_OPEN && trialsStarted > trialsSucceeded) {
+            // Let another trial call through in its place
+            trialsStarted--;
+        }
+    }
+
+    private void record(boolean isFailure, boolean isSlow) {
+        if (state == State.HALF_OPEN) {
+            if (isFailure || isSlow) {
+                open();
+            } else if (++trialsSucceeded >= halfOpenCalls) {
+                close();
+            }
+            return;
+        } else if (state == State.OPEN) {
+            // A call that started before the breaker opened
+            return;
+        }
+
+        if (size == failed.length) {
+            failures -= failed[next] ? 1 : 0;
+            slowCalls -= slow[next] ? 1 : 0;
+        } else {
+            size++;
+        }
+        failed[next] = isFailure;
+        slow[next] = isSlow;
+        failures += isFailure ? 1 : 0;
+        slowCalls += isSlow ? 1 : 0;
+        next = (next + 1) % failed.length;
+
+        if (size >= Math.min(minimumCalls, failed.length)
+                && (failures >= failureRateThreshold * size || slowCalls >= slowCallRateThreshold * size)) {
+            open();
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.nanoTime();
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        next = 0;
+        size = 0;
+        failures = 0;
+        slowCalls = 0;
+    }
+
+}
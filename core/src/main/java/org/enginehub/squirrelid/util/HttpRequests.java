@@ -18,10 +18,13 @@
  */
 package org.enginehub.squirrelid.util;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.DataOutputStream;
@@ -29,7 +32,10 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.Reader;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URI;
@@ -38,6 +44,7 @@ import java.net.URL;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -52,6 +59,9 @@ public class HttpRequests implements Closeable {
     private static final Logger log = Logger.getLogger(HttpRequests.class.getCanonicalName());
     private static final int READ_TIMEOUT = 1000 * 60 * 10;
     private static final int READ_BUFFER_SIZE = 1024 * 8;
+    private static final int MAX_PRESIZED_LENGTH = 1024 * 1024 * 8;
+    // Reused by every request on the same thread to avoid a new chunk per response
+    private static final ThreadLocal<byte[]> READ_BUFFER = ThreadLocal.withInitial(() -> new byte[READ_BUFFER_SIZE]);
 
     private final Map<String, String> headers = new HashMap<>();
     private final String method;
@@ -207,12 +217,15 @@ public class HttpRequests implements Closeable {
     /**
      * Execute the request.
      *
+     * <p>The request first waits for a permit from the {@link RateLimiter}
+     * of its host, for up to {@link RateLimiters#getMaxWait()}.</p>
+     *
      * <p>
      * After execution, {@link #close()} should be called.
      * </p>
      *
      * @return this object
-     * @throws java.io.IOException on I/O error
+     * @throws java.io.IOException on I/O error, if no permit was handed out in time or if interrupted
      */
     public HttpRequests execute() throws IOException {
         boolean successful = false;
@@ -222,6 +235,14 @@ public class HttpRequests implements Closeable {
                 throw new IllegalArgumentException("Connection already executed");
             }
 
+            RateLimiter limiter = RateLimiters.forHost(url.getHost());
+            try {
+                RateLimiters.acquire(limiter, url.getHost());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the rate limit");
+            }
+
             conn = (HttpURLConnection) reformat(url).openConnection();
 
             if (body != null) {
@@ -248,7 +269,12 @@ public class HttpRequests implements Closeable {
                 out.close();
             }
 
-            inputStream = conn.getResponseCode() == HttpURLConnection.HTTP_OK
+            int responseCode = conn.getResponseCode();
+            if (responseCode == RateLimiters.TOO_MANY_REQUESTS) {
+                limiter.pause(RateLimiters.parseRetryAfter(conn.getHeaderField("Retry-After")));
+            }
+
+            inputStream = responseCode < HttpURLConnection.HTTP_BAD_REQUEST
                     ? conn.getInputStream()
                     : conn.getErrorStream();
 
@@ -318,18 +344,59 @@ public class HttpRequests implements Closeable {
         }
 
         try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            int b;
-            while ((b = inputStream.read()) != -1) {
+            int contentLength = conn.getContentLength();
+            ResponseBuffer buffer = new ResponseBuffer(contentLength > 0 ? contentLength : READ_BUFFER_SIZE);
+            byte[] chunk = READ_BUFFER.get();
+            int len;
+            while ((len = inputStream.read(chunk, 0, chunk.length)) != -1) {
                 checkInterrupted();
-                bos.write(b);
+                buffer.write(chunk, 0, len);
             }
-            return new BufferedResponse(bos.toByteArray());
+            return new BufferedResponse(buffer.array(), buffer.size());
         } finally {
             close();
         }
     }
 
+    /**
+     * Return a reader that streams the response body without buffering
+     * all of it in memory.
+     *
+     * <p>Closing the reader closes the connection.</p>
+     *
+     * @return a reader of the response body
+     */
+    public Reader returnReader() {
+        if (inputStream == null) {
+            throw new IllegalArgumentException("No input stream available");
+        }
+
+        return new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8), READ_BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    HttpRequests.this.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Parse the response body as JSON straight from the response stream.
+     *
+     * @return the parsed JSON
+     * @throws java.io.IOException on I/O error or invalid JSON
+     */
+    public JsonElement returnJson() throws IOException {
+        try (Reader reader = returnReader()) {
+            return JsonParser.parseReader(reader);
+        } catch (JsonParseException e) {
+            throw new IOException("Failed to parse response from " + url, e);
+        }
+    }
+
     /**
      * Save the result to a file.
      *
@@ -364,14 +431,10 @@ public class HttpRequests implements Closeable {
      * @throws InterruptedException on interruption
      */
     public HttpRequests saveContent(OutputStream out) throws IOException, InterruptedException {
-        BufferedInputStream bis;
-
         try {
-            bis = new BufferedInputStream(inputStream);
-
-            byte[] data = new byte[READ_BUFFER_SIZE];
+            byte[] data = READ_BUFFER.get();
             int len;
-            while ((len = bis.read(data, 0, READ_BUFFER_SIZE)) >= 0) {
+            while ((len = inputStream.read(data, 0, data.length)) >= 0) {
                 out.write(data, 0, len);
                 checkInterrupted();
             }
@@ -441,9 +504,11 @@ public class HttpRequests implements Closeable {
      */
     public static class BufferedResponse {
         private final byte[] data;
+        private final int length;
 
-        private BufferedResponse(byte[] data) {
+        private BufferedResponse(byte[] data, int length) {
             this.data = data;
+            this.length = length;
         }
 
         /**
@@ -452,7 +517,25 @@ public class HttpRequests implements Closeable {
          * @return the data
          */
         public byte[] asBytes() {
-            return data;
+            return length == data.length ? data : Arrays.copyOf(data, length);
+        }
+
+        /**
+         * Return the result as a stream, without copying it.
+         *
+         * @return the data as a stream
+         */
+        public InputStream asInputStream() {
+            return new ByteArrayInputStream(data, 0, length);
+        }
+
+        /**
+         * Return the result as a reader, without copying it.
+         *
+         * @return the data as a reader
+         */
+        public Reader asReader() {
+            return new InputStreamReader(asInputStream(), StandardCharsets.UTF_8);
         }
 
         /**
@@ -463,7 +546,7 @@ public class HttpRequests implements Closeable {
          * @throws java.io.IOException on I/O error
          */
         public String asString(String encoding) throws IOException {
-            return new String(data, encoding);
+            return new String(data, 0, length, encoding);
         }
 
         /**
@@ -474,7 +557,11 @@ public class HttpRequests implements Closeable {
          * @throws java.io.IOException on I/O error
          */
         public Object asJson() throws IOException {
-            return JsonParser.parseString(asString("UTF-8"));
+            try {
+                return JsonParser.parseReader(asReader());
+            } catch (JsonParseException e) {
+                throw new IOException("Failed to parse response", e);
+            }
         }
 
         /**
@@ -513,10 +600,24 @@ public class HttpRequests implements Closeable {
          * @throws InterruptedException on interruption
          */
         public BufferedResponse saveContent(OutputStream out) throws IOException, InterruptedException {
-            out.write(data);
+            out.write(data, 0, length);
 
             return this;
         }
     }
 
+    /**
+     * A {@link ByteArrayOutputStream} that hands out its internal array
+     * instead of a copy.
+     */
+    private static final class ResponseBuffer extends ByteArrayOutputStream {
+        private ResponseBuffer(int size) {
+            super(Math.min(size, MAX_PRESIZED_LENGTH));
+        }
+
+        private byte[] array() {
+            return buf;
+        }
+    }
+
 }
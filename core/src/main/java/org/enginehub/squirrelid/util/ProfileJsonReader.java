@@ -0,0 +1,190 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.util;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.enginehub.squirrelid.Profile;
+import org.jspecify.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads profiles from JSON responses of the form
+ * {@code {"id": "<uuid>", "name": "<name>", ...}}.
+ *
+ * <p>The {@code id} and {@code name} fields are pulled straight out of the
+ * token stream and every other field is skipped, so no intermediate
+ * {@code String} of the body or JSON tree is ever built.</p>
+ *
+ * <p>The body handlers collect the body into a byte array before reading
+ * it. Reading from {@link BodySubscribers#ofInputStream()} instead would
+ * block a thread of the HTTP client until the whole body has arrived,
+ * which can stall the client if its executor is small, and profile
+ * responses are only a few kilobytes at most.</p>
+ */
+public final class ProfileJsonReader {
+
+    private static final Logger log = Logger.getLogger(ProfileJsonReader.class.getCanonicalName());
+
+    private ProfileJsonReader() {
+    }
+
+    /**
+     * Read a single profile object.
+     *
+     * @param reader the reader
+     * @return the profile, or {@code null} if the input is not a valid profile
+     * @throws IOException thrown on I/O error or malformed JSON
+     */
+    @Nullable
+    public static Profile readProfile(Reader reader) throws IOException {
+        return readProfile(new JsonReader(reader), System.currentTimeMillis());
+    }
+
+    /**
+     * Read an array of profile objects.
+     *
+     * <p>Entries that are not valid profiles are skipped.</p>
+     *
+     * @param reader the reader
+     * @return a list of profiles, which is empty if the input is not an array
+     * @throws IOException thrown on I/O error or malformed JSON
+     */
+    public static ImmutableList<Profile> readProfiles(Reader reader) throws IOException {
+        JsonReader json = new JsonReader(reader);
+        ImmutableList.Builder<Profile> builder = ImmutableList.builder();
+
+        if (json.peek() != JsonToken.BEGIN_ARRAY) {
+            return builder.build();
+        }
+
+        long now = System.currentTimeMillis();
+        json.beginArray();
+        while (json.hasNext()) {
+            Profile profile = readProfile(json, now);
+            if (profile != null) {
+                builder.add(profile);
+            }
+        }
+        json.endArray();
+
+        return builder.build();
+    }
+
+    /**
+     * Get a body handler that decodes a single profile object.
+     *
+     * <p>An empty body is decoded as {@code null}. The bodies of error
+     * responses are discarded.</p>
+     *
+     * @return a body handler
+     */
+    public static BodyHandler<@Nullable Profile> profileHandler() {
+        return info -> {
+            if (info.statusCode() >= 300) {
+                return BodySubscribers.replacing(null);
+            }
+            return BodySubscribers.mapping(BodySubscribers.ofByteArray(), body -> {
+                if (body.length == 0) {
+                    return null;
+                }
+                try {
+                    return readProfile(reader(body));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        };
+    }
+
+    /**
+     * Get a body handler that decodes an array of profile objects.
+     *
+     * <p>The bodies of error responses are discarded.</p>
+     *
+     * @return a body handler
+     */
+    public static BodyHandler<ImmutableList<Profile>> profilesHandler() {
+        return info -> {
+            if (info.statusCode() >= 300) {
+                return BodySubscribers.replacing(ImmutableList.of());
+            }
+            return BodySubscribers.mapping(BodySubscribers.ofByteArray(), body -> {
+                if (body.length == 0) {
+                    return ImmutableList.of();
+                }
+                try {
+                    return readProfiles(reader(body));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        };
+    }
+
+    private static Reader reader(byte[] body) {
+        return new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8);
+    }
+
+    @Nullable
+    private static Profile readProfile(JsonReader json, long timeCached) throws IOException {
+        if (json.peek() != JsonToken.BEGIN_OBJECT) {
+            json.skipValue();
+            return null;
+        }
+
+        UUID uuid = null;
+        String name = null;
+
+        json.beginObject();
+        while (json.hasNext()) {
+            String field = json.nextName();
+            if (field.equals("id") && json.peek() == JsonToken.STRING) {
+                try {
+                    uuid = UUIDs.parse(json.nextString());
+                } catch (IllegalArgumentException e) {
+                    log.log(Level.WARNING, "Got invalid value from UUID lookup service", e);
+                }
+            } else if (field.equals("name") && json.peek() == JsonToken.STRING) {
+                name = json.nextString();
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+
+        if (uuid != null && name != null) {
+            return new Profile(uuid, name, timeCached);
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.util;
+
+import org.enginehub.squirrelid.Profile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Reads and writes snapshots of profiles in a compact binary format, so
+ * that in-memory caches can be filled again quickly after a restart.
+ *
+ * <p>A snapshot is written to a temporary file, which is forced to the
+ * storage device and then replaces the snapshot, so an existing snapshot
+ * is never left half written, even if the machine crashes.</p>
+ */
+public final class ProfileSnapshots {
+
+    private static final int MAGIC = 0x53515053; // "SQPS"
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private ProfileSnapshots() {
+    }
+
+    /**
+     * Write the given profiles to a snapshot file.
+     *
+     * @param file the file to write
+     * @param profiles the profiles
+     * @return the number of profiles written
+     * @throws IOException thrown if the file could not be written
+     */
+    public static int write(File file, Iterable<Profile> profiles) throws IOException {
+        checkNotNull(file);
+        checkNotNull(profiles);
+
+        Path path = file.toPath().toAbsolutePath();
+        Path temp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        int count = 0;
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                for (Profile profile : profiles) {
+                    out.writeBoolean(true);
+                    out.writeLong(profile.uniqueId().getMostSignificantBits());
+                    out.writeLong(profile.uniqueId().getLeastSignificantBits());
+                    out.writeLong(profile.timeCached());
+                    out.writeUTF(profile.name());
+                    count++;
+                }
+                out.writeBoolean(false);
+                out.flush();
+                // Otherwise the rename may reach the disk before the data does
+                channel.force(true);
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return count;
+    }
+
+    /**
+     * Read the profiles in a snapshot file, one at a time.
+     *
+     * @param file the file to read
+     * @param consumer called with each profile
+     * @return the number of profiles read
+     * @throws IOException thrown if the file could not be read or is not a complete snapshot
+     */
+    public static int read(File file, Consumer<Profile> consumer) throws IOException {
+        checkNotNull(file);
+        checkNotNull(consumer);
+
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file.toPath()), BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not a profile snapshot");
+            }
+            while (in.readBoolean()) {
+                UUID uuid = new UUID(in.readLong(), in.readLong());
+                long timeCached = in.readLong();
+                consumer.accept(new Profile(uuid, in.readUTF(), timeCached));
+                count++;
+            }
+        }
+        return count;
+    }
+
+}
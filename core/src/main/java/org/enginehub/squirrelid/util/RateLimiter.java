@@ -0,0 +1,88 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.util;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Limits the rate of requests sent to an upstream service.
+ *
+ * @see RateLimiters
+ */
+public interface RateLimiter {
+
+    /**
+     * Acquire a permit to send one request.
+     *
+     * <p>This method never blocks. If no permit is available, the caller is
+     * queued and the returned future is completed once one is. Cancelling
+     * the future gives up the place in the queue.</p>
+     *
+     * @return a future completed when the request may be sent
+     */
+    CompletableFuture<Void> acquire();
+
+    /**
+     * Acquire a permit to send one request, blocking for up to the given
+     * timeout until one is available.
+     *
+     * <p>If no permit was handed out by the timeout, or the thread is
+     * interrupted, the caller gives up its place in the queue. If the
+     * thread is interrupted just as a permit is handed out, the permit is
+     * kept and the interrupt status is set again.</p>
+     *
+     * @param timeout the longest time to wait
+     * @return true if a permit was acquired, false if the timeout passed first
+     * @throws InterruptedException thrown if the thread was interrupted while waiting
+     */
+    default boolean tryAcquire(Duration timeout) throws InterruptedException {
+        CompletableFuture<Void> future = acquire();
+        try {
+            future.get(timeout.toNanos(), TimeUnit.NANOSECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            // The permit may have been handed out just now, in which case it is ours
+            return !future.cancel(false);
+        } catch (InterruptedException e) {
+            if (!future.cancel(false)) {
+                // Handed out just now, so do not waste it
+                Thread.currentThread().interrupt();
+                return true;
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to acquire a permit", e.getCause());
+        }
+    }
+
+    /**
+     * Stop handing out permits for the given duration, such as after the
+     * upstream responded with {@code 429 Too Many Requests}.
+     *
+     * <p>Pausing while already paused only ever extends the pause.</p>
+     *
+     * @param duration the duration
+     */
+    void pause(Duration duration);
+
+}
@@ -0,0 +1,149 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.util;
+
+import org.jspecify.annotations.Nullable;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Holds the {@link RateLimiter} used for each upstream host.
+ *
+ * <p>Mojang's API hosts are limited to 600 requests per 10 minutes out of
+ * the box. Every other host gets a limiter without a quota, which only
+ * comes into play once the host responds with {@code 429 Too Many Requests}.</p>
+ */
+public final class RateLimiters {
+
+    /**
+     * The HTTP status code for "Too Many Requests".
+     */
+    public static final int TOO_MANY_REQUESTS = 429;
+
+    private static final Duration DEFAULT_RETRY_AFTER = Duration.ofSeconds(5);
+    private static final ConcurrentMap<String, RateLimiter> limiters = new ConcurrentHashMap<>();
+    private static volatile Duration maxWait = Duration.ofMinutes(1);
+
+    static {
+        register("api.mojang.com", new TokenBucketRateLimiter(600, Duration.ofMinutes(10)));
+        register("sessionserver.mojang.com", new TokenBucketRateLimiter(600, Duration.ofMinutes(10)));
+    }
+
+    private RateLimiters() {
+    }
+
+    /**
+     * Set the rate limiter to use for the given host.
+     *
+     * @param host the host name
+     * @param limiter the rate limiter
+     */
+    public static void register(String host, RateLimiter limiter) {
+        checkNotNull(host);
+        checkNotNull(limiter);
+        limiters.put(host.toLowerCase(Locale.ROOT), limiter);
+    }
+
+    /**
+     * Get the rate limiter for the given host.
+     *
+     * @param host the host name
+     * @return the rate limiter
+     */
+    public static RateLimiter forHost(String host) {
+        checkNotNull(host);
+        return limiters.computeIfAbsent(host.toLowerCase(Locale.ROOT),
+                h -> new TokenBucketRateLimiter(Integer.MAX_VALUE, Duration.ofSeconds(1)));
+    }
+
+    /**
+     * Get the longest time that blocking requests wait for a permit.
+     *
+     * @return the duration
+     */
+    public static Duration getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * Set the longest time that blocking requests wait for a permit before
+     * they fail.
+     *
+     * @param maxWait the duration
+     */
+    public static void setMaxWait(Duration maxWait) {
+        checkNotNull(maxWait);
+        checkArgument(!maxWait.isNegative(), "maxWait must not be negative");
+        RateLimiters.maxWait = maxWait;
+    }
+
+    /**
+     * Block until the given limiter hands out a permit, for up to
+     * {@link #getMaxWait()}.
+     *
+     * @param limiter the limiter
+     * @param host the host that the limiter is for
+     * @throws IOException thrown if no permit was handed out in time
+     * @throws InterruptedException thrown if the thread was interrupted while waiting
+     */
+    public static void acquire(RateLimiter limiter, String host) throws IOException, InterruptedException {
+        Duration timeout = maxWait;
+        if (!limiter.tryAcquire(timeout)) {
+            throw new IOException("Rate limit of " + host + " did not allow a request within " + timeout);
+        }
+    }
+
+    /**
+     * Parse the value of a {@code Retry-After} header, which is either a
+     * number of seconds or an HTTP date.
+     *
+     * @param value the header value, or {@code null} if it was missing
+     * @return the duration to wait, which is a few seconds if the header was missing or invalid
+     */
+    public static Duration parseRetryAfter(@Nullable String value) {
+        if (value == null || value.isBlank()) {
+            return DEFAULT_RETRY_AFTER;
+        }
+
+        try {
+            return Duration.ofSeconds(Math.max(0, Long.parseLong(value.trim())));
+        } catch (NumberFormatException ignored) {
+            // Not a number of seconds, try a date instead
+        }
+
+        try {
+            ZonedDateTime date = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+            Duration duration = Duration.between(ZonedDateTime.now(date.getZone()), date);
+            return duration.isNegative() ? Duration.ZERO : duration;
+        } catch (DateTimeParseException e) {
+            return DEFAULT_RETRY_AFTER;
+        }
+    }
+
+}
@@ -0,0 +1,205 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.util;
+
+import com.google.common.base.Ticker;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ObjLongConsumer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A {@link RateLimiter} that hands out up to {@code permits} permits per
+ * {@code period}, refilling continuously.
+ *
+ * <p>Callers that cannot get a permit right away are queued in order and
+ * released by a timer, so no thread is held while waiting.</p>
+ */
+public class TokenBucketRateLimiter implements RateLimiter {
+
+    private final Ticker ticker;
+    private final ObjLongConsumer<Runnable> scheduler;
+    private final double capacity;
+    private final double tokensPerNano;
+    private final Deque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+    private double tokens;
+    private long lastRefill;
+    private long pausedUntil;
+    private boolean releaseScheduled;
+
+    /**
+     * Create a new instance.
+     *
+     * @param permits the number of permits per period, which is also the burst size
+     * @param period the period
+     */
+    public TokenBucketRateLimiter(int permits, Duration period) {
+        this(permits, period, Ticker.systemTicker(),
+                (task, delay) -> CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS).execute(task));
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param permits the number of permits per period, which is also the burst size
+     * @param period the period
+     * @param ticker the source of time
+     * @param scheduler runs a task after a delay in nanoseconds
+     */
+    TokenBucketRateLimiter(int permits, Duration period, Ticker ticker, ObjLongConsumer<Runnable> scheduler) {
+        checkArgument(permits >= 1, "permits must be >= 1");
+        checkNotNull(period);
+        checkArgument(!period.isNegative() && !period.isZero(), "period must be positive");
+        checkNotNull(ticker);
+        checkNotNull(scheduler);
+
+        this.ticker = ticker;
+        this.scheduler = scheduler;
+        this.capacity = permits;
+        this.tokensPerNano = permits / (double) period.toNanos();
+        this.tokens = permits;
+        this.lastRefill = ticker.read();
+        this.pausedUntil = lastRefill;
+    }
+
+    @Override
+    public CompletableFuture<Void> acquire() {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+
+        synchronized (this) {
+            long now = ticker.read();
+            refill(now);
+            removeCancelled();
+
+            if (waiters.isEmpty() && now - pausedUntil >= 0 && tokens >= 1) {
+                tokens--;
+                return CompletableFuture.completedFuture(null);
+            }
+
+            waiters.add(future);
+            scheduleRelease(now);
+        }
+
+        return future;
+    }
+
+    @Override
+    public void pause(Duration duration) {
+        checkNotNull(duration);
+
+        synchronized (this) {
+            long now = ticker.read();
+            long until = now + duration.toNanos();
+            if (until - pausedUntil > 0) {
+                pausedUntil = until;
+            }
+            // Permits saved up before the pause would just cause another burst
+            refill(now);
+            tokens = Math.min(tokens, 1);
+        }
+    }
+
+    /**
+     * Get the number of callers waiting for a permit.
+     *
+     * @return the number of waiting callers
+     */
+    public synchronized int getQueueLength() {
+        removeCancelled();
+        return waiters.size();
+    }
+
+    /**
+     * Remove the callers at the head of the queue that gave up waiting.
+     */
+    private void removeCancelled() {
+        while (!waiters.isEmpty() && waiters.peek().isCancelled()) {
+            waiters.poll();
+        }
+    }
+
+    private void release() {
+        List<CompletableFuture<Void>> released = new ArrayList<>();
+
+        synchronized (this) {
+            releaseScheduled = false;
+            long now = ticker.read();
+            refill(now);
+
+            if (now - pausedUntil >= 0) {
+                while (!waiters.isEmpty() && tokens >= 1) {
+                    CompletableFuture<Void> waiter = waiters.poll();
+                    if (!waiter.isCancelled()) {
+                        tokens--;
+                        released.add(waiter);
+                    }
+                }
+            }
+
+            if (!waiters.isEmpty()) {
+                scheduleRelease(now);
+            }
+        }
+
+        // Complete outside the lock as callers may run dependent stages inline
+        int unused = 0;
+        for (CompletableFuture<Void> future : released) {
+            if (!future.complete(null)) {
+                // The caller gave up after it was picked, so the token is still free
+                unused++;
+            }
+        }
+
+        if (unused > 0) {
+            synchronized (this) {
+                long now = ticker.read();
+                refill(now);
+                tokens = Math.min(capacity, tokens + unused);
+                removeCancelled();
+                if (!waiters.isEmpty()) {
+                    scheduleRelease(now);
+                }
+            }
+        }
+    }
+
+    private void scheduleRelease(long now) {
+        if (releaseScheduled) {
+            return;
+        }
+        releaseScheduled = true;
+
+        long delay = Math.max(pausedUntil - now, (long) Math.ceil((1 - tokens) / tokensPerNano));
+        scheduler.accept(this::release, Math.max(delay, 0));
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+
+}
@@ -18,6 +18,7 @@
  */
 package org.enginehub.squirrelid.util;
 
+import java.util.UUID;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -68,4 +69,54 @@ public final class UUIDs {
         }
         return uuid;
     }
+
+    /**
+     * Parse a UUID, with or without dashes.
+     *
+     * <p>Unlike going through {@link #addDashes(String)} and
+     * {@link java.util.UUID#fromString(String)}, the hex digits are read
+     * straight into the bits of the UUID without any intermediate strings.</p>
+     *
+     * @param uuid the UUID
+     * @return the parsed UUID
+     * @throws IllegalArgumentException thrown if the given input is not actually a UUID
+     */
+    public static UUID parse(CharSequence uuid) {
+        long mostSigBits;
+        long leastSigBits;
+
+        if (uuid.length() == 32) {
+            mostSigBits = parseHex(uuid, 0, 16);
+            leastSigBits = parseHex(uuid, 16, 32);
+        } else if (uuid.length() == 36
+                && uuid.charAt(8) == '-' && uuid.charAt(13) == '-'
+                && uuid.charAt(18) == '-' && uuid.charAt(23) == '-') {
+            mostSigBits = parseHex(uuid, 0, 8) << 32 | parseHex(uuid, 9, 13) << 16 | parseHex(uuid, 14, 18);
+            leastSigBits = parseHex(uuid, 19, 23) << 48 | parseHex(uuid, 24, 36);
+        } else {
+            throw new IllegalArgumentException("Invalid UUID format");
+        }
+
+        return new UUID(mostSigBits, leastSigBits);
+    }
+
+    private static long parseHex(CharSequence input, int start, int end) {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            value = value << 4 | hexDigit(input.charAt(i));
+        }
+        return value;
+    }
+
+    private static int hexDigit(char c) {
+        // Character.digit() would also accept non-ASCII digits
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        throw new IllegalArgumentException("Invalid UUID format");
+    }
 }
@@ -0,0 +1,98 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dev.mizule.squirrelid.core.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class HttpUtilTest {
+
+    @Test
+    public void testAwaitInterrupted() {
+        CompletableFuture<String> future = new CompletableFuture<>();
+
+        Thread.currentThread().interrupt();
+        RuntimeException e = assertThrows(RuntimeException.class, () -> HttpUtil.await(future));
+        assertThat(e.getCause(), instanceOf(InterruptedException.class));
+        assertThat(Thread.interrupted(), equalTo(true));
+        assertThat(future.isCancelled(), equalTo(true));
+    }
+
+    @Test
+    public void testAwaitUnwraps() {
+        IOException ioException = new IOException("io");
+        RuntimeException e = assertThrows(RuntimeException.class, () -> HttpUtil.await(CompletableFuture.failedFuture(ioException)));
+        assertThat(e.getCause(), sameInstance(ioException));
+
+        IllegalStateException stateException = new IllegalStateException("state");
+        e = assertThrows(RuntimeException.class, () -> HttpUtil.await(CompletableFuture.failedFuture(stateException)));
+        assertThat(e, sameInstance(stateException));
+    }
+
+    @Test
+    public void testRetryCancelled() {
+        List<CompletableFuture<String>> attempts = new ArrayList<>();
+        CompletableFuture<String> result = HttpUtil.retryAsync(() -> {
+            CompletableFuture<String> attempt = new CompletableFuture<>();
+            attempts.add(attempt);
+            return attempt;
+        }, 5, 0, e -> {
+            throw new AssertionError("Retried after cancellation", e);
+        });
+
+        result.cancel(true);
+        assertThat(attempts.size(), equalTo(1));
+        assertThat(attempts.get(0).isCancelled(), equalTo(true));
+    }
+
+    @Test
+    public void testTransformCancelled() {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        HttpUtil.transform(future, String::length).cancel(true);
+        assertThat(future.isCancelled(), equalTo(true));
+    }
+
+    @Test
+    public void testMapConcurrentlyFailure() {
+        List<CompletableFuture<String>> operations = new ArrayList<>();
+        CompletableFuture<List<String>> result = HttpUtil.mapConcurrently(List.of("a", "b", "c", "d"), 3, input -> {
+            CompletableFuture<String> operation = new CompletableFuture<>();
+            operations.add(operation);
+            return operation;
+        });
+
+        operations.get(0).completeExceptionally(new IOException("io"));
+        assertThat(result.isCompletedExceptionally(), equalTo(true));
+        // The other operations in flight are cancelled and no more are started
+        assertThat(operations.size(), equalTo(3));
+        assertThat(operations.get(1).isCancelled(), equalTo(true));
+        assertThat(operations.get(2).isCancelled(), equalTo(true));
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.cache;
+
+import org.enginehub.squirrelid.Profile;
+import org.enginehub.squirrelid.util.ExtraMatchers;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasEntry;
+
+/**
+ * Tests that every in-memory cache that can find profiles by name must pass.
+ */
+public abstract class AbstractProfileCacheTest {
+
+    /**
+     * Create an empty cache to test.
+     *
+     * @return a new cache
+     */
+    protected abstract ProfileCache createCache() throws Exception;
+
+    @Test
+    public void testNames() throws Exception {
+        UUID testId1 = UUID.randomUUID();
+        UUID testId2 = UUID.randomUUID();
+        final long time = System.currentTimeMillis();
+
+        ProfileCache cache = createCache();
+        cache.putAll(Arrays.asList(
+                new Profile(testId1, "Test1", time),
+                new Profile(testId2, "test2", time)));
+
+        assertThat(cache.getIfPresent(testId1).name(), equalTo("Test1"));
+        assertThat(cache.getIfPresent("TEST1"), equalTo(new Profile(testId1, "Test1", time)));
+        assertThat(cache.getIfPresent("TEST1").name(), equalTo("Test1"));
+        assertThat(cache.getIfPresent("TEST1").timeCached(), equalTo(time));
+        assertThat(
+                cache.allPresent(Arrays.asList("test1", "Test2", "test3")),
+                allOf(
+                        ExtraMatchers.<String, Profile>hasSize(2),
+                        hasEntry("test1", new Profile(testId1, "Test1", time)),
+                        hasEntry("Test2", new Profile(testId2, "test2", time))));
+
+        // Renamed
+        cache.put(new Profile(testId1, "test1_2", time));
+        assertThat(cache.getIfPresent("test1"), equalTo(null));
+        assertThat(cache.getIfPresent("test1_2"), equalTo(new Profile(testId1, "test1_2", time)));
+        assertThat(cache.getIfPresent(testId1).name(), equalTo("test1_2"));
+
+        // Name taken by another profile
+        cache.put(new Profile(testId1, "test2", time));
+        assertThat(cache.getIfPresent("test2").uniqueId(), equalTo(testId1));
+        assertThat(cache.getIfPresent("test1_2"), equalTo(null));
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.cache;
+
+import org.enginehub.squirrelid.Profile;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.notNullValue;
+
+public class CaffeineProfileCacheTest extends AbstractProfileCacheTest {
+
+    @Override
+    protected ProfileCache createCache() {
+        return new CaffeineProfileCache();
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        UUID testId = UUID.randomUUID();
+
+        CaffeineProfileCache cache = new CaffeineProfileCache(1024 * 1024, Duration.ofMinutes(1));
+        cache.put(new Profile(testId, "test", System.currentTimeMillis() - Duration.ofMinutes(2).toMillis()));
+
+        assertThat(cache.getIfPresent(testId), equalTo(null));
+        assertThat(cache.getIfPresent("test"), equalTo(null));
+
+        cache.put(new Profile(testId, "test", System.currentTimeMillis()));
+
+        assertThat(cache.getIfPresent(testId), notNullValue());
+        assertThat(cache.getIfPresent("test"), notNullValue());
+    }
+
+    @Test
+    public void testMissingExpiry() throws Exception {
+        UUID testId = UUID.randomUUID();
+
+        CaffeineProfileCache cache = new CaffeineProfileCache(1024 * 1024, Duration.ofDays(30), Duration.ofMillis(50));
+        cache.putMissing(testId);
+        cache.putMissing("Test");
+
+        assertThat(cache.getMissingSince(testId), notNullValue());
+        assertThat(cache.getMissingSince("test"), notNullValue());
+
+        Thread.sleep(200);
+
+        assertThat(cache.getMissingSince(testId), equalTo(null));
+        assertThat(cache.getMissingSince("test"), equalTo(null));
+    }
+
+    @Test
+    public void testConcurrentPuts() throws Exception {
+        UUID testId = UUID.randomUUID();
+        CaffeineProfileCache cache = new CaffeineProfileCache();
+
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 10000; j++) {
+                    // Alternates between an expired and a fresh profile of the same name
+                    long time = j % 2 == 0 ? 0 : System.currentTimeMillis();
+                    cache.put(new Profile(testId, "test", time));
+                    cache.getIfPresent("test");
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        cache.put(new Profile(testId, "test", System.currentTimeMillis()));
+        assertThat(cache.getIfPresent("test"), notNullValue());
+    }
+
+    @Test
+    public void testBounded() throws Exception {
+        CaffeineProfileCache cache = new CaffeineProfileCache(16 * 1024, Duration.ofDays(1));
+        for (int i = 0; i < 10000; i++) {
+            cache.put(new Profile(UUID.randomUUID(), "test" + i, System.currentTimeMillis()));
+        }
+
+        assertThat(cache.size(), lessThan(1000L));
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.cache;
+
+import org.enginehub.squirrelid.Profile;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class CompactProfileCacheTest extends AbstractProfileCacheTest {
+
+    @Override
+    protected ProfileCache createCache() {
+        return new CompactProfileCache();
+    }
+
+    @Test
+    public void testSize() throws Exception {
+        UUID testId1 = UUID.randomUUID();
+        final long time = System.currentTimeMillis();
+
+        CompactProfileCache cache = new CompactProfileCache();
+        cache.putAll(Arrays.asList(
+                new Profile(testId1, "Test1", time),
+                new Profile(UUID.randomUUID(), "test2", time)));
+        cache.put(new Profile(testId1, "test1_2", time));
+
+        assertThat(cache.size(), equalTo(2));
+    }
+
+    @Test
+    public void testExpectedSizeLimit() throws Exception {
+        assertThrows(IllegalArgumentException.class, () -> new CompactProfileCache(CompactProfileCache.MAX_SIZE + 1));
+        assertThrows(IllegalArgumentException.class, () -> new CompactProfileCache(Integer.MAX_VALUE));
+        assertThrows(IllegalArgumentException.class, () -> new CompactProfileCache(-1));
+    }
+
+    @Test
+    public void testAgainstMaps() throws Exception {
+        Random random = new Random(42);
+        List<UUID> uuids = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            uuids.add(new UUID(random.nextLong(), random.nextLong()));
+        }
+
+        Map<UUID, Profile> profiles = new HashMap<>();
+        Map<String, UUID> owners = new HashMap<>();
+        CompactProfileCache cache = new CompactProfileCache(0);
+
+        for (int i = 0; i < 50000; i++) {
+            UUID uuid = uuids.get(random.nextInt(uuids.size()));
+            String name = (random.nextBoolean() ? "Player" : "player") + random.nextInt(3000);
+            Profile profile = new Profile(uuid, name, i);
+
+            Profile previous = profiles.put(uuid, profile);
+            if (previous != null) {
+                owners.remove(previous.name().toLowerCase(Locale.US), uuid);
+            }
+            owners.put(name.toLowerCase(Locale.US), uuid);
+            cache.put(profile);
+        }
+
+        assertThat(cache.size(), equalTo(profiles.size()));
+        for (UUID uuid : uuids) {
+            Profile expected = profiles.get(uuid);
+            Profile actual = cache.getIfPresent(uuid);
+            assertThat(actual, equalTo(expected));
+            if (expected != null) {
+                assertThat(actual.name(), equalTo(expected.name()));
+                assertThat(actual.timeCached(), equalTo(expected.timeCached()));
+            }
+        }
+        for (int i = 0; i < 3000; i++) {
+            Profile actual = cache.getIfPresent("PLAYER" + i);
+            UUID expected = owners.get("player" + i);
+            assertThat(actual == null ? null : actual.uniqueId(), equalTo(expected));
+        }
+    }
+
+}
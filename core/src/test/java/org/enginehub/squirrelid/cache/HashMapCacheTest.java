@@ -23,7 +23,9 @@ import org.enginehub.squirrelid.Profile;
 import org.enginehub.squirrelid.util.ExtraMatchers;
 import org.hamcrest.MatcherAssert;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.UUID;
 
@@ -31,8 +33,14 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.allOf;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.notNullValue;
 
-public class HashMapCacheTest {
+public class HashMapCacheTest extends AbstractProfileCacheTest {
+
+    @Override
+    protected ProfileCache createCache() {
+        return new HashMapCache();
+    }
 
     @Test
     public void testDatabase() throws Exception {
@@ -103,4 +111,128 @@ public class HashMapCacheTest {
                 equalTo(null));
     }
 
+    @Test
+    public void testMissing() throws Exception {
+        UUID testId = UUID.randomUUID();
+
+        HashMapCache cache = new HashMapCache();
+
+        assertThat(cache.getMissingSince(testId), equalTo(null));
+        assertThat(cache.getMissingSince("test"), equalTo(null));
+
+        cache.putMissing(testId);
+        cache.putMissing("Test");
+
+        assertThat(cache.getMissingSince(testId), notNullValue());
+        assertThat(cache.getMissingSince("test"), notNullValue());
+
+        cache.put(new Profile(testId, "TEST", System.currentTimeMillis()));
+
+        assertThat(cache.getMissingSince(testId), equalTo(null));
+        assertThat(cache.getMissingSince("test"), equalTo(null));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        UUID testId1 = UUID.randomUUID();
+        UUID testId2 = UUID.randomUUID();
+        UUID testId3 = UUID.randomUUID();
+        final long time = System.currentTimeMillis();
+
+        HashMapCache cache = new HashMapCache(2);
+        cache.put(new Profile(testId1, "test1", time));
+        cache.put(new Profile(testId2, "test2", time));
+        cache.getIfPresent(testId1);
+        cache.put(new Profile(testId3, "test3", time));
+
+        assertThat(cache.size(), equalTo(2));
+        assertThat(cache.getIfPresent(testId2), equalTo(null));
+        assertThat(cache.getIfPresent("test2"), equalTo(null));
+        assertThat(cache.getIfPresent("test1"), notNullValue());
+        assertThat(cache.getIfPresent("test3"), notNullValue());
+    }
+
+    @Test
+    public void testEvictionKeepsIndex() throws Exception {
+        final long time = System.currentTimeMillis();
+
+        HashMapCache cache = new HashMapCache(100);
+        UUID hot = UUID.randomUUID();
+        cache.put(new Profile(hot, "hot", time));
+        for (int i = 0; i < 1000; i++) {
+            cache.getIfPresent(hot);
+            cache.put(new Profile(UUID.randomUUID(), "test" + i, time));
+            cache.putMissing("missing" + i);
+        }
+
+        assertThat(cache.size(), equalTo(100));
+        // Used between every put, so never evicted
+        assertThat(cache.getIfPresent("hot"), notNullValue());
+        assertThat(cache.getIfPresent("test999"), notNullValue());
+        assertThat(cache.getIfPresent("test0"), equalTo(null));
+        assertThat(cache.getMissingSince("missing999"), notNullValue());
+        assertThat(cache.getMissingSince("missing0"), equalTo(null));
+    }
+
+    @Test
+    public void testSnapshot(@TempDir File folder) throws Exception {
+        UUID testId1 = UUID.randomUUID();
+        UUID testId2 = UUID.randomUUID();
+        final long time = System.currentTimeMillis();
+        File file = new File(folder, "snapshot.bin");
+
+        HashMapCache cache = new HashMapCache();
+        cache.putAll(Arrays.asList(
+                new Profile(testId1, "Test1", time),
+                new Profile(testId2, "test2", time - 1000)));
+        cache.saveSnapshot(file);
+
+        HashMapCache loaded = new HashMapCache();
+        loaded.loadSnapshot(file);
+
+        assertThat(loaded.size(), equalTo(2));
+        assertThat(loaded.getIfPresent("test1").name(), equalTo("Test1"));
+        assertThat(loaded.getIfPresent(testId2).timeCached(), equalTo(time - 1000));
+    }
+
+    @Test
+    public void testSnapshotEvictionOrder(@TempDir File folder) throws Exception {
+        final long time = System.currentTimeMillis();
+        File file = new File(folder, "snapshot.bin");
+
+        HashMapCache cache = new HashMapCache(3);
+        for (int i = 0; i < 3; i++) {
+            cache.put(new Profile(UUID.randomUUID(), "test" + i, time));
+        }
+        cache.getIfPresent("test0");
+        cache.saveSnapshot(file);
+
+        // The recently used profile is written last, so a smaller cache keeps it
+        HashMapCache loaded = new HashMapCache(2);
+        loaded.loadSnapshot(file);
+
+        assertThat(loaded.size(), equalTo(2));
+        assertThat(loaded.getIfPresent("test0"), notNullValue());
+        assertThat(loaded.getIfPresent("test2"), notNullValue());
+        assertThat(loaded.getIfPresent("test1"), equalTo(null));
+    }
+
+    @Test
+    public void testLargeSnapshot(@TempDir File folder) throws Exception {
+        final long time = System.currentTimeMillis();
+        File file = new File(folder, "snapshot.bin");
+
+        HashMapCache cache = new HashMapCache();
+        for (int i = 0; i < 2500; i++) {
+            cache.put(new Profile(UUID.randomUUID(), "test" + i, time));
+        }
+        cache.saveSnapshot(file);
+
+        HashMapCache loaded = new HashMapCache();
+        loaded.loadSnapshot(file);
+
+        assertThat(loaded.size(), equalTo(2500));
+        assertThat(loaded.getIfPresent("test2499"), notNullValue());
+    }
+
 }
@@ -0,0 +1,139 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.cache;
+
+import org.enginehub.squirrelid.Profile;
+import org.enginehub.squirrelid.util.ExtraMatchers;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class MappedFileCacheTest extends AbstractProfileCacheTest {
+
+    @TempDir
+    public File folder;
+
+    @Override
+    protected ProfileCache createCache() throws IOException {
+        return new MappedFileCache(new File(folder, "names.bin"));
+    }
+
+    @Test
+    public void testDatabase() throws Exception {
+        UUID testId1 = UUID.randomUUID();
+        UUID testId2 = UUID.randomUUID();
+        UUID testId3 = UUID.randomUUID();
+        File file = new File(folder, "profiles.bin");
+        final long time = System.currentTimeMillis();
+
+        try (MappedFileCache cache = new MappedFileCache(file)) {
+            cache.putAll(Arrays.asList(
+                    new Profile(testId1, "test1", time),
+                    new Profile(testId2, "Test2", time)));
+            cache.put(new Profile(testId1, "test1_2", time));
+
+            assertThat(
+                    cache.getAllPresent(Arrays.asList(testId1, testId2, testId3)),
+                    allOf(
+                            ExtraMatchers.<UUID, Profile>hasSize(2),
+                            hasEntry(testId1, new Profile(testId1, "test1_2", time)),
+                            hasEntry(testId2, new Profile(testId2, "Test2", time))));
+            assertThat(cache.getIfPresent(testId1).name(), equalTo("test1_2"));
+            assertThat(cache.getIfPresent("test1"), equalTo(null));
+            assertThat(cache.getIfPresent("TEST2"), equalTo(new Profile(testId2, "Test2", time)));
+        }
+
+        try (MappedFileCache cache = new MappedFileCache(file)) {
+            assertThat(cache.getRecordCount(), equalTo(3));
+            assertThat(cache.getIfPresent(testId1).name(), equalTo("test1_2"));
+            assertThat(cache.getIfPresent(testId2).timeCached(), equalTo(time));
+            assertThat(cache.getIfPresent("test1_2"), equalTo(new Profile(testId1, "test1_2", time)));
+        }
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        File file = new File(folder, "profiles.bin");
+        List<UUID> uuids = new ArrayList<>();
+
+        try (MappedFileCache cache = new MappedFileCache(file)) {
+            for (int i = 0; i < 3000; i++) {
+                uuids.add(UUID.randomUUID());
+                cache.put(new Profile(uuids.get(i), "test" + i, i));
+            }
+            for (int i = 0; i < 3000; i++) {
+                cache.put(new Profile(uuids.get(i), "renamed" + i, i));
+            }
+            assertThat(cache.getRecordCount(), equalTo(6000));
+
+            cache.compact();
+
+            assertThat(cache.getRecordCount(), equalTo(3000));
+            for (int i = 0; i < 3000; i++) {
+                assertThat(cache.getIfPresent(uuids.get(i)).name(), equalTo("renamed" + i));
+                assertThat(cache.getIfPresent("RENAMED" + i).uniqueId(), equalTo(uuids.get(i)));
+                assertThat(cache.getIfPresent("test" + i), equalTo(null));
+            }
+        }
+
+        try (MappedFileCache cache = new MappedFileCache(file)) {
+            assertThat(cache.getRecordCount(), equalTo(3000));
+            assertThat(cache.getIfPresent(uuids.get(1234)).name(), equalTo("renamed1234"));
+        }
+    }
+
+    @Test
+    public void testCompactFailure() throws Exception {
+        File file = new File(folder, "profiles.bin");
+        UUID testId1 = UUID.randomUUID();
+        UUID testId2 = UUID.randomUUID();
+        final long time = System.currentTimeMillis();
+
+        // Stands in the way of the compacted file
+        File blocker = new File(folder, "profiles.bin.compact");
+        Files.createDirectories(blocker.toPath().resolve("child"));
+
+        try (MappedFileCache cache = new MappedFileCache(file)) {
+            cache.put(new Profile(testId1, "test1", time));
+            cache.put(new Profile(testId1, "test1_2", time));
+
+            assertThrows(IOException.class, cache::compact);
+
+            // The old file is still in use
+            assertThat(cache.getRecordCount(), equalTo(2));
+            assertThat(cache.getIfPresent("test1_2").uniqueId(), equalTo(testId1));
+            cache.put(new Profile(testId2, "test2", time));
+            assertThat(cache.getIfPresent(testId2).name(), equalTo("test2"));
+        }
+    }
+
+}
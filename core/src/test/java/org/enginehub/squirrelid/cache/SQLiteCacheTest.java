@@ -18,25 +18,42 @@
  */
 package org.enginehub.squirrelid.cache;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import org.enginehub.squirrelid.Profile;
 import org.enginehub.squirrelid.util.ExtraMatchers;
 import org.hamcrest.MatcherAssert;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.allOf;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 import static org.hamcrest.Matchers.hasEntry;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class SQLiteCacheTest {
 
-
-    public TemporaryFolder folder = new TemporaryFolder();
+    @TempDir
+    public File folder;
 
     @Test
     public void testDatabase() throws Exception {
@@ -46,7 +63,7 @@ public class SQLiteCacheTest {
         UUID testId4 = UUID.randomUUID();
         UUID testId5 = UUID.randomUUID();
 
-        File file = folder.newFile();
+        File file = new File(folder, "cache.sqlite");
 
         final long time = System.currentTimeMillis();
 
@@ -172,4 +189,199 @@ public class SQLiteCacheTest {
                 equalTo(null));
     }
 
+    @Test
+    public void testGetAllPresentPartitions() throws Exception {
+        final long time = System.currentTimeMillis();
+        // Spans several statements, the last of which is padded
+        List<Profile> profiles = new ArrayList<>();
+        List<UUID> uuids = new ArrayList<>();
+        for (int i = 0; i < 1300; i++) {
+            UUID uuid = UUID.randomUUID();
+            uuids.add(uuid);
+            if (i % 2 == 0) {
+                profiles.add(new Profile(uuid, "test" + i, time));
+            }
+        }
+
+        try (SQLiteCache cache = new SQLiteCache(new File(folder, "cache.sqlite"))) {
+            cache.putAll(profiles);
+
+            ImmutableMap<UUID, Profile> results = cache.getAllPresent(uuids);
+            assertThat(results, ExtraMatchers.hasSize(profiles.size()));
+            for (Profile profile : profiles) {
+                assertThat(results, hasEntry(profile.uniqueId(), profile));
+            }
+        }
+    }
+
+    @Test
+    public void testAllPresentPartitions() throws Exception {
+        final long time = System.currentTimeMillis();
+        List<Profile> profiles = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 1300; i++) {
+            String name = "Test" + i;
+            // Asked for in another case than the one stored
+            names.add(name.toUpperCase(Locale.US));
+            if (i % 3 != 0) {
+                profiles.add(new Profile(UUID.randomUUID(), name, time));
+            }
+        }
+
+        try (SQLiteCache cache = new SQLiteCache(new File(folder, "cache.sqlite"))) {
+            cache.putAll(profiles);
+
+            ImmutableMap<String, Profile> results = cache.allPresent(names);
+            assertThat(results, ExtraMatchers.hasSize(profiles.size()));
+            for (Profile profile : profiles) {
+                assertThat(results, hasEntry(profile.name().toUpperCase(Locale.US), profile));
+            }
+
+            assertThat(cache.getIfPresent("test1"), equalTo(profiles.get(0)));
+            assertThat(cache.getIfPresent("test0"), equalTo(null));
+        }
+    }
+
+    @Test
+    public void testTimeCached() throws Exception {
+        final long time = System.currentTimeMillis() - 60 * 60 * 1000;
+        Profile profile = new Profile(UUID.randomUUID(), "test1", time);
+        File file = new File(folder, "cache.sqlite");
+
+        try (SQLiteCache cache = new SQLiteCache(file)) {
+            cache.put(profile);
+
+            assertThat(cache.getIfPresent(profile.uniqueId()).timeCached(), equalTo(time));
+            assertThat(cache.getIfPresent("TEST1").timeCached(), equalTo(time));
+        }
+
+        try (SQLiteCache cache = new SQLiteCache(file)) {
+            assertThat(cache.getIfPresent(profile.uniqueId()).timeCached(), equalTo(time));
+        }
+    }
+
+    @Test
+    public void testUpgradeTable() throws Exception {
+        UUID uuid = UUID.randomUUID();
+        File file = new File(folder, "cache.sqlite");
+
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+             Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE uuid_cache (uuid CHAR(36) PRIMARY KEY NOT NULL, name CHAR(32) NOT NULL)");
+            stmt.executeUpdate("INSERT INTO uuid_cache (uuid, name) VALUES ('" + uuid + "', 'test1')");
+        }
+
+        final long time = System.currentTimeMillis();
+
+        try (SQLiteCache cache = new SQLiteCache(file)) {
+            assertThat(cache.getIfPresent(uuid).timeCached(), greaterThanOrEqualTo(time));
+        }
+    }
+
+    @Test
+    public void testBatchRollback() throws Exception {
+        final long time = System.currentTimeMillis();
+        Profile existing = new Profile(UUID.randomUUID(), "test1", time);
+        Profile profile = new Profile(UUID.randomUUID(), "test2", time);
+
+        try (SQLiteCache cache = new SQLiteCache(new File(folder, "cache.sqlite"))) {
+            cache.put(existing);
+
+            Iterable<Profile> failing = () -> new Iterator<>() {
+                private int count;
+
+                @Override
+                public boolean hasNext() {
+                    return true;
+                }
+
+                @Override
+                public Profile next() {
+                    if (count++ == 0) {
+                        return profile;
+                    }
+                    throw new IllegalStateException("Failed midway");
+                }
+            };
+
+            assertThrows(IllegalStateException.class, () -> cache.putAll(failing));
+
+            assertThat(cache.getIfPresent(profile.uniqueId()), equalTo(null));
+            assertThat(cache.getIfPresent(existing.uniqueId()), equalTo(existing));
+
+            // The next batch does not carry over anything from the failed one
+            cache.putAll(Lists.newArrayList(existing));
+            assertThat(cache.getIfPresent(profile.uniqueId()), equalTo(null));
+        }
+    }
+
+    @Test
+    @Timeout(30)
+    public void testReadsDuringPutAll() throws Exception {
+        final long time = System.currentTimeMillis();
+        Profile existing = new Profile(UUID.randomUUID(), "test1", time);
+        Profile profile = new Profile(UUID.randomUUID(), "test2", time);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try (SQLiteCache cache = new SQLiteCache(new File(folder, "cache.sqlite"))) {
+            cache.put(existing);
+
+            Iterable<Profile> blocking = () -> new Iterator<>() {
+                private boolean done;
+
+                @Override
+                public boolean hasNext() {
+                    return !done;
+                }
+
+                @Override
+                public Profile next() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    done = true;
+                    return profile;
+                }
+            };
+
+            Future<?> write = executor.submit(() -> cache.putAll(blocking));
+            try {
+                started.await();
+
+                // The writer is held up in the middle of its batch
+                assertThat(cache.getIfPresent(existing.uniqueId()), equalTo(existing));
+                assertThat(cache.getIfPresent("TEST1"), equalTo(existing));
+                assertThat(cache.getIfPresent(profile.uniqueId()), equalTo(null));
+            } finally {
+                release.countDown();
+            }
+
+            write.get();
+            assertThat(cache.getIfPresent(profile.uniqueId()), equalTo(profile));
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    @Timeout(30)
+    public void testClosed() throws Exception {
+        Profile profile = new Profile(UUID.randomUUID(), "test1", System.currentTimeMillis());
+        SQLiteCache cache = new SQLiteCache(new File(folder, "cache.sqlite"), 1);
+        cache.put(profile);
+        cache.close();
+
+        // Fails right away instead of waiting for a connection
+        assertThat(cache.getIfPresent(profile.uniqueId()), equalTo(null));
+        assertThat(cache.getIfPresent("test1"), equalTo(null));
+        cache.put(new Profile(UUID.randomUUID(), "test2", System.currentTimeMillis()));
+        cache.putMissing(UUID.randomUUID());
+    }
+
 }
@@ -0,0 +1,253 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.cache;
+
+import org.enginehub.squirrelid.Profile;
+import org.enginehub.squirrelid.util.ExtraMatchers;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.notNullValue;
+
+public class TieredProfileCacheTest {
+
+    @TempDir
+    public File folder;
+
+    @Test
+    public void testPromotion() throws Exception {
+        UUID testId1 = UUID.randomUUID();
+        UUID testId2 = UUID.randomUUID();
+        long time = System.currentTimeMillis();
+
+        CaffeineProfileCache first = new CaffeineProfileCache();
+        CaffeineProfileCache second = new CaffeineProfileCache();
+        second.putAll(Arrays.asList(
+                new Profile(testId1, "test1", time),
+                new Profile(testId2, "test2", time)));
+        first.put(new Profile(testId1, "test1", time));
+
+        TieredProfileCache cache = new TieredProfileCache(first, second);
+
+        assertThat(first.getIfPresent(testId2), equalTo(null));
+        assertThat(
+                cache.getAllPresent(Arrays.asList(testId1, testId2, UUID.randomUUID())),
+                allOf(
+                        ExtraMatchers.<UUID, Profile>hasSize(2),
+                        hasEntry(testId1, new Profile(testId1, "test1", time)),
+                        hasEntry(testId2, new Profile(testId2, "test2", time))));
+        assertThat(first.getIfPresent(testId2), notNullValue());
+        assertThat(first.getIfPresent(testId2).timeCached(), equalTo(time));
+
+        UUID testId3 = UUID.randomUUID();
+        second.put(new Profile(testId3, "Test3", time));
+
+        assertThat(cache.getIfPresent("test3"), equalTo(new Profile(testId3, "Test3", time)));
+        assertThat(first.getIfPresent("TEST3"), notNullValue());
+    }
+
+    @Test
+    public void testWriteBehind() throws Exception {
+        UUID testId1 = UUID.randomUUID();
+        UUID testId2 = UUID.randomUUID();
+        long time = System.currentTimeMillis();
+
+        CaffeineProfileCache first = new CaffeineProfileCache();
+        CaffeineProfileCache second = new CaffeineProfileCache();
+        List<Runnable> tasks = new ArrayList<>();
+
+        TieredProfileCache cache = new TieredProfileCache(first, second);
+        cache.setWriteBehindExecutor(tasks::add);
+
+        cache.put(new Profile(testId1, "test1", time));
+        cache.put(new Profile(testId2, "test2", time));
+
+        assertThat(cache.getIfPresent(testId1), notNullValue());
+        assertThat(second.getIfPresent(testId1), equalTo(null));
+        assertThat(tasks.size(), equalTo(1));
+
+        tasks.get(0).run();
+
+        assertThat(second.getIfPresent(testId1), notNullValue());
+        assertThat(second.getIfPresent(testId2), notNullValue());
+
+        cache.setWriteBehindExecutor(null);
+        UUID testId3 = UUID.randomUUID();
+        cache.put(new Profile(testId3, "test3", time));
+
+        assertThat(second.getIfPresent(testId3), notNullValue());
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        UUID testId1 = UUID.randomUUID();
+        UUID testId2 = UUID.randomUUID();
+        long time = System.currentTimeMillis();
+
+        CaffeineProfileCache second = new CaffeineProfileCache();
+        List<Runnable> tasks = new ArrayList<>();
+
+        TieredProfileCache cache = new TieredProfileCache(new CaffeineProfileCache(), second);
+        cache.setWriteBehindExecutor(tasks::add);
+
+        cache.put(new Profile(testId1, "test1", time));
+        assertThat(second.getIfPresent(testId1), equalTo(null));
+
+        cache.close();
+        assertThat(second.getIfPresent(testId1), notNullValue());
+
+        cache.put(new Profile(testId2, "test2", time));
+        assertThat(second.getIfPresent(testId2), notNullValue());
+    }
+
+    @Test
+    public void testMaxPending() throws Exception {
+        long time = System.currentTimeMillis();
+
+        CaffeineProfileCache second = new CaffeineProfileCache();
+        List<Runnable> tasks = new ArrayList<>();
+
+        TieredProfileCache cache = new TieredProfileCache(new CaffeineProfileCache(), second);
+        cache.setWriteBehindExecutor(tasks::add);
+        cache.setMaxPending(2);
+
+        List<UUID> uuids = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            UUID uuid = UUID.randomUUID();
+            uuids.add(uuid);
+            cache.put(new Profile(uuid, "test" + i, time));
+        }
+
+        // The third put went over the limit and wrote the queue itself
+        assertThat(second.getAllPresent(uuids), ExtraMatchers.<UUID, Profile>hasSize(3));
+        assertThat(tasks.size(), equalTo(1));
+    }
+
+    @Test
+    public void testFlushOrder() throws Exception {
+        UUID testId = UUID.randomUUID();
+        long time = System.currentTimeMillis();
+        Profile older = new Profile(testId, "test1", time - 1000);
+        Profile newer = new Profile(testId, "test2", time);
+
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean blocked = new AtomicBoolean();
+        HashMapCache second = new HashMapCache() {
+            @Override
+            public void putAll(Iterable<Profile> profiles) {
+                if (!blocked.getAndSet(true)) {
+                    entered.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                super.putAll(profiles);
+            }
+        };
+        List<Runnable> tasks = new ArrayList<>();
+
+        TieredProfileCache cache = new TieredProfileCache(new CaffeineProfileCache(), second);
+        cache.setWriteBehindExecutor(tasks::add);
+
+        cache.put(older);
+        Thread background = new Thread(tasks.get(0));
+        background.start();
+        entered.await();
+
+        // Flushed while the older batch is still being written
+        cache.put(newer);
+        Thread caller = new Thread(cache::flush);
+        caller.start();
+        caller.join(200);
+
+        release.countDown();
+        background.join();
+        caller.join();
+
+        // Profiles with the same UUID are equal, so compare the names
+        assertThat(second.getIfPresent(testId).name(), equalTo(newer.name()));
+    }
+
+    @Test
+    public void testReadsIterableOnce() throws Exception {
+        UUID testId1 = UUID.randomUUID();
+        UUID testId2 = UUID.randomUUID();
+        long time = System.currentTimeMillis();
+
+        CaffeineProfileCache first = new CaffeineProfileCache();
+        CaffeineProfileCache second = new CaffeineProfileCache();
+        first.put(new Profile(testId1, "test1", time));
+        second.put(new Profile(testId2, "test2", time));
+
+        TieredProfileCache cache = new TieredProfileCache(first, second);
+
+        assertThat(
+                cache.getAllPresent(once(Arrays.asList(testId1, testId2))),
+                ExtraMatchers.<UUID, Profile>hasSize(2));
+        assertThat(
+                cache.allPresent(once(Arrays.asList("test1", "test2"))),
+                ExtraMatchers.<String, Profile>hasSize(2));
+    }
+
+    @Test
+    public void testPromotionFromSQLite() throws Exception {
+        UUID testId = UUID.randomUUID();
+        long time = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
+
+        try (SQLiteCache second = new SQLiteCache(new File(folder, "cache.sqlite"))) {
+            second.put(new Profile(testId, "Test", time));
+
+            CaffeineProfileCache first = new CaffeineProfileCache();
+            TieredProfileCache cache = new TieredProfileCache(first, second);
+
+            assertThat(cache.getIfPresent("test").timeCached(), equalTo(time));
+            assertThat(first.getIfPresent(testId).timeCached(), equalTo(time));
+        }
+    }
+
+    /**
+     * Wrap a list in an iterable that can only be iterated once.
+     */
+    private static <T> Iterable<T> once(List<T> list) {
+        AtomicBoolean used = new AtomicBoolean();
+        return () -> {
+            if (used.getAndSet(true)) {
+                throw new IllegalStateException("Already iterated");
+            }
+            return list.iterator();
+        };
+    }
+
+}
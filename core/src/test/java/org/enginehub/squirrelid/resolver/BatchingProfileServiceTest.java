@@ -0,0 +1,109 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.resolver;
+
+import org.enginehub.squirrelid.Profile;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+public class BatchingProfileServiceTest {
+
+    private final TestProfileService resolver = new TestProfileService();
+
+    private List<Future<Profile>> lookUp(BatchingProfileService service, ExecutorService executor, int count)
+            throws InterruptedException {
+        CountDownLatch ready = new CountDownLatch(count);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Profile>> futures = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String name = "Test" + i;
+            futures.add(executor.submit(() -> {
+                ready.countDown();
+                start.await();
+                return service.findByName(name);
+            }));
+        }
+        ready.await();
+        start.countDown();
+        return futures;
+    }
+
+    @Test
+    public void testWindow() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            resolver.add(new Profile(UUID.randomUUID(), "test" + i, 0));
+        }
+        BatchingProfileService service = new BatchingProfileService(resolver, Duration.ofSeconds(1));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        try {
+            List<Future<Profile>> futures = lookUp(service, executor, 8);
+            for (int i = 0; i < 8; i++) {
+                Profile profile = futures.get(i).get();
+                assertThat(profile == null ? null : profile.name(), equalTo(i < 5 ? "test" + i : null));
+            }
+            assertThat(resolver.calls.get(), equalTo(1));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFullBatch() throws Exception {
+        resolver.idealRequestLimit = 4;
+        BatchingProfileService service = new BatchingProfileService(resolver, Duration.ofMinutes(1));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        try {
+            // Full batches are sent without waiting for the window
+            assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+                for (Future<Profile> future : lookUp(service, executor, 8)) {
+                    assertThat(future.get(), nullValue());
+                }
+            });
+            assertThat(resolver.calls.get(), equalTo(2));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        resolver.failure = new IllegalStateException("down");
+        BatchingProfileService service = new BatchingProfileService(resolver, Duration.ZERO);
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> service.findByName("test"));
+        assertThat(e.getMessage(), equalTo("down"));
+    }
+
+}
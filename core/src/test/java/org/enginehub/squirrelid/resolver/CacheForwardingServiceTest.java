@@ -18,25 +18,40 @@
  */
 package org.enginehub.squirrelid.resolver;
 
+import com.google.common.collect.ImmutableMap;
 import org.enginehub.squirrelid.Profile;
 import org.enginehub.squirrelid.cache.HashMapCache;
 import org.enginehub.squirrelid.cache.ProfileCache;
+import org.enginehub.squirrelid.cache.SQLiteCache;
 import org.enginehub.squirrelid.util.ExtraMatchers;
 import org.hamcrest.Matchers;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.allOf;
 import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.Assert.assertThrows;
 
 public class CacheForwardingServiceTest {
 
     final long time = System.currentTimeMillis();
+    final long expired = time - TimeUnit.HOURS.toMillis(7);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
 
     @Test
     public void testFindAllByName() throws Exception {
@@ -102,4 +117,272 @@ public class CacheForwardingServiceTest {
             equalTo(null));
     }
 
+    @Test
+    public void testFindAllByNameQueriesCacheOnce() {
+        CountingCache cache = new CountingCache();
+        TestProfileService delegate = new TestProfileService();
+        CacheForwardingService resolver = new CacheForwardingService(delegate, cache);
+
+        Profile alice = new Profile(UUID.randomUUID(), "Alice", time);
+        Profile bob = new Profile(UUID.randomUUID(), "Bob", time);
+        Profile carol = new Profile(UUID.randomUUID(), "Carol", time);
+        Profile eve = new Profile(UUID.randomUUID(), "Eve", time);
+        cache.putAll(Arrays.asList(alice, bob, new Profile(eve.uniqueId(), "Eve", expired)));
+        delegate.add(carol).add(eve);
+
+        assertThat(
+                resolver.findAllByName(Arrays.asList("Alice", "alice", "BOB", "Carol", "Dave", "Eve")),
+                allOf(
+                        Matchers.<Profile>hasSize(4),
+                        containsInAnyOrder(alice, bob, carol, eve)));
+
+        assertThat(cache.allPresentCalls.get(), equalTo(1));
+        assertThat(delegate.calls.get(), equalTo(1));
+        assertThat(cache.getIfPresent("carol"), equalTo(carol));
+        assertThat(cache.getIfPresent("eve").timeCached(), equalTo(time));
+    }
+
+    @Test
+    public void testFindAllByUuidQueriesCacheOnce() {
+        CountingCache cache = new CountingCache();
+        TestProfileService delegate = new TestProfileService();
+        CacheForwardingService resolver = new CacheForwardingService(delegate, cache);
+
+        Profile alice = new Profile(UUID.randomUUID(), "Alice", time);
+        Profile bob = new Profile(UUID.randomUUID(), "Bob", time);
+        Profile carol = new Profile(UUID.randomUUID(), "Carol", time);
+        cache.putAll(Arrays.asList(alice, bob));
+        delegate.add(carol);
+
+        assertThat(
+                resolver.findAllByUuid(Arrays.asList(alice.uniqueId(), bob.uniqueId(), carol.uniqueId(), UUID.randomUUID())),
+                allOf(
+                        Matchers.<Profile>hasSize(3),
+                        containsInAnyOrder(alice, bob, carol)));
+
+        assertThat(cache.getAllPresentCalls.get(), equalTo(1));
+        assertThat(delegate.calls.get(), equalTo(1));
+        assertThat(cache.getIfPresent(carol.uniqueId()), equalTo(carol));
+    }
+
+    @Test
+    public void testFindAllByNameMissing() {
+        HashMapCache cache = new HashMapCache();
+        TestProfileService delegate = new TestProfileService();
+        CacheForwardingService resolver = new CacheForwardingService(delegate, cache);
+
+        Profile alice = new Profile(UUID.randomUUID(), "Alice", time);
+        delegate.add(alice);
+
+        assertThat(resolver.findAllByName(Arrays.asList("alice", "Nobody")), containsInAnyOrder(alice));
+        assertThat(delegate.calls.get(), equalTo(1));
+        assertThat(cache.getMissingSince("nobody"), notNullValue());
+
+        // Neither is asked for again
+        assertThat(resolver.findAllByName(Arrays.asList("Alice", "nobody")), containsInAnyOrder(alice));
+        List<Profile> found = new ArrayList<>();
+        resolver.findAllByName(Arrays.asList("Alice", "Nobody"), found::add);
+        assertThat(found, containsInAnyOrder(alice));
+        assertThat(resolver.findByName("Nobody"), equalTo(null));
+        assertThat(delegate.calls.get(), equalTo(1));
+    }
+
+    @Test
+    public void testFindAllByUuidMissing() {
+        HashMapCache cache = new HashMapCache();
+        TestProfileService delegate = new TestProfileService();
+        CacheForwardingService resolver = new CacheForwardingService(delegate, cache);
+
+        Profile alice = new Profile(UUID.randomUUID(), "Alice", time);
+        UUID nobody = UUID.randomUUID();
+        delegate.add(alice);
+
+        List<Profile> found = new ArrayList<>();
+        resolver.findAllByUuid(Arrays.asList(alice.uniqueId(), nobody), found::add);
+        assertThat(found, containsInAnyOrder(alice));
+        assertThat(delegate.calls.get(), equalTo(1));
+        assertThat(cache.getMissingSince(nobody), notNullValue());
+
+        assertThat(resolver.findAllByUuid(Arrays.asList(alice.uniqueId(), nobody)), containsInAnyOrder(alice));
+        assertThat(resolver.findByUuid(nobody), equalTo(null));
+        assertThat(delegate.calls.get(), equalTo(1));
+    }
+
+    @Test
+    public void testSoftCacheTime() {
+        HashMapCache cache = new HashMapCache();
+        TestProfileService delegate = new TestProfileService();
+        CacheForwardingService resolver = new CacheForwardingService(delegate, cache);
+        resolver.setSoftCacheTime(Duration.ofHours(1));
+        resolver.setRefreshExecutor(Runnable::run);
+
+        long old = time - TimeUnit.HOURS.toMillis(2);
+        Profile fresh = new Profile(UUID.randomUUID(), "Alice", time);
+        Profile stale = new Profile(fresh.uniqueId(), "Alice", old);
+        cache.put(stale);
+        delegate.add(fresh);
+
+        // Served from the cache, and refreshed on the side
+        assertThat(resolver.findByUuid(fresh.uniqueId()).timeCached(), equalTo(old));
+        assertThat(delegate.calls.get(), equalTo(1));
+        assertThat(cache.getIfPresent(fresh.uniqueId()).timeCached(), equalTo(time));
+
+        // Fresh again, so not refreshed
+        assertThat(resolver.findByName("alice").timeCached(), equalTo(time));
+        assertThat(delegate.calls.get(), equalTo(1));
+    }
+
+    @Test
+    public void testSoftCacheTimeDefaultExecutor() throws Exception {
+        HashMapCache cache = new HashMapCache();
+        TestProfileService delegate = new TestProfileService();
+        CacheForwardingService resolver = new CacheForwardingService(delegate, cache);
+        resolver.setSoftCacheTime(Duration.ofHours(1));
+
+        long old = time - TimeUnit.HOURS.toMillis(2);
+        Profile fresh = new Profile(UUID.randomUUID(), "Alice", time);
+        cache.put(new Profile(fresh.uniqueId(), "Alice", old));
+        delegate.add(fresh);
+
+        assertThat(resolver.findByName("Alice").timeCached(), equalTo(old));
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (cache.getIfPresent(fresh.uniqueId()).timeCached() != time && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(cache.getIfPresent(fresh.uniqueId()).timeCached(), equalTo(time));
+        assertThat(delegate.calls.get(), equalTo(1));
+    }
+
+    @Test
+    public void testLookupWithinBudget() {
+        HashMapCache cache = new HashMapCache();
+        TestProfileService delegate = new TestProfileService();
+        CacheForwardingService resolver = new CacheForwardingService(delegate, cache);
+
+        Profile fresh = new Profile(UUID.randomUUID(), "Alice", time);
+        cache.put(new Profile(fresh.uniqueId(), "Alice", expired));
+        delegate.add(fresh);
+
+        LookupResult result = resolver.lookupByUuid(fresh.uniqueId(), Duration.ofSeconds(10));
+        assertThat(result.stale(), equalTo(false));
+        assertThat(result.profile().timeCached(), equalTo(time));
+        assertThat(resolver.getStaleServedCount(), equalTo(0L));
+    }
+
+    @Test
+    public void testLookupBudgetExpired() throws Exception {
+        HashMapCache cache = new HashMapCache();
+        TestProfileService delegate = new TestProfileService();
+        CacheForwardingService resolver = new CacheForwardingService(delegate, cache);
+        delegate.delayMillis = 500;
+
+        Profile fresh = new Profile(UUID.randomUUID(), "Alice", time);
+        cache.put(new Profile(fresh.uniqueId(), "Alice", expired));
+        delegate.add(fresh);
+
+        LookupResult result = resolver.lookupByName("alice", Duration.ofMillis(10));
+        assertThat(result.stale(), equalTo(true));
+        assertThat(result.profile().timeCached(), equalTo(expired));
+        assertThat(resolver.getStaleServedCount(), equalTo(1L));
+
+        // The lookup carries on and is cached
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (cache.getIfPresent(fresh.uniqueId()).timeCached() != time && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(cache.getIfPresent(fresh.uniqueId()).timeCached(), equalTo(time));
+        assertThat(delegate.calls.get(), equalTo(1));
+    }
+
+    @Test
+    public void testLookupBudgetExpiredNothingCached() {
+        TestProfileService delegate = new TestProfileService();
+        CacheForwardingService resolver = new CacheForwardingService(delegate, new HashMapCache());
+        delegate.delayMillis = 500;
+
+        assertThrows(RuntimeException.class, () -> resolver.lookupByUuid(UUID.randomUUID(), Duration.ofMillis(10)));
+        assertThat(resolver.getStaleServedCount(), equalTo(0L));
+    }
+
+    @Test
+    public void testLookupError() {
+        HashMapCache cache = new HashMapCache();
+        TestProfileService delegate = new TestProfileService();
+        CacheForwardingService resolver = new CacheForwardingService(delegate, cache);
+        delegate.failure = new IllegalStateException("Resolver is down");
+
+        Profile stale = new Profile(UUID.randomUUID(), "Alice", expired);
+        cache.put(stale);
+
+        LookupResult result = resolver.lookupByUuid(stale.uniqueId(), Duration.ofSeconds(10));
+        assertThat(result.stale(), equalTo(true));
+        assertThat(result.profile().timeCached(), equalTo(expired));
+
+        IllegalStateException e = assertThrows(IllegalStateException.class,
+                () -> resolver.lookupByUuid(UUID.randomUUID(), Duration.ofSeconds(10)));
+        assertThat(e, equalTo(delegate.failure));
+    }
+
+    @Test
+    public void testStaleIfError() {
+        HashMapCache cache = new HashMapCache();
+        TestProfileService delegate = new TestProfileService();
+        CacheForwardingService resolver = new CacheForwardingService(delegate, cache);
+        delegate.failure = new IllegalStateException("Resolver is down");
+
+        Profile stale = new Profile(UUID.randomUUID(), "Alice", expired);
+        cache.put(stale);
+
+        assertThrows(IllegalStateException.class, () -> resolver.findByUuid(stale.uniqueId()));
+        assertThat(resolver.getStaleServedCount(), equalTo(0L));
+
+        resolver.setStaleIfError(true);
+        assertThat(resolver.findByUuid(stale.uniqueId()).timeCached(), equalTo(expired));
+        assertThat(resolver.findByName("ALICE").timeCached(), equalTo(expired));
+        assertThat(resolver.getStaleServedCount(), equalTo(2L));
+    }
+
+    @Test
+    public void testLookupErrorSQLite() throws Exception {
+        TestProfileService delegate = new TestProfileService();
+        delegate.failure = new IllegalStateException("Resolver is down");
+
+        try (SQLiteCache cache = new SQLiteCache(folder.newFile())) {
+            CacheForwardingService resolver = new CacheForwardingService(delegate, cache);
+            Profile fresh = new Profile(UUID.randomUUID(), "Alice", time);
+            Profile stale = new Profile(UUID.randomUUID(), "Bob", expired);
+            cache.putAll(Arrays.asList(fresh, stale));
+
+            LookupResult result = resolver.lookupByName("alice", Duration.ofSeconds(10));
+            assertThat(result.stale(), equalTo(false));
+            assertThat(result.profile(), equalTo(fresh));
+
+            result = resolver.lookupByName("bob", Duration.ofSeconds(10));
+            assertThat(result.stale(), equalTo(true));
+            assertThat(result.profile(), equalTo(stale));
+            assertThat(delegate.calls.get(), equalTo(1));
+        }
+    }
+
+    /**
+     * Counts the bulk lookups made on the cache.
+     */
+    private static class CountingCache extends HashMapCache {
+        final AtomicInteger allPresentCalls = new AtomicInteger();
+        final AtomicInteger getAllPresentCalls = new AtomicInteger();
+
+        @Override
+        public ImmutableMap<String, Profile> allPresent(Iterable<String> names) {
+            allPresentCalls.incrementAndGet();
+            return super.allPresent(names);
+        }
+
+        @Override
+        public ImmutableMap<UUID, Profile> getAllPresent(Iterable<UUID> uuids) {
+            getAllPresentCalls.incrementAndGet();
+            return super.getAllPresent(uuids);
+        }
+    }
+
 }
@@ -18,18 +18,31 @@
  */
 package org.enginehub.squirrelid.resolver;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.enginehub.squirrelid.Profile;
+import org.enginehub.squirrelid.util.CircuitBreaker;
 import org.hamcrest.MatcherAssert;
 import org.hamcrest.Matchers;
 import org.junit.Test;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThrows;
 
 public class CombinedProfileServiceTest {
 
@@ -113,4 +126,131 @@ public class CombinedProfileServiceTest {
                 containsInAnyOrder(notchProfile)));
     }
 
+    @Test
+    public void testCircuitBreakerError() throws Exception {
+        TestProfileService failing = new TestProfileService() {
+            @Override
+            public Profile findByName(String name) {
+                super.findByName(name);
+                throw new AssertionError("broken");
+            }
+        };
+        CircuitBreaker breaker = new CircuitBreaker(1);
+        breaker.setMinimumCalls(1);
+        breaker.setHalfOpenCalls(1);
+        breaker.setOpenDuration(Duration.ZERO);
+        ProfileService resolver = CombinedProfileService.withCircuitBreakers(ImmutableList.of(failing), () -> breaker);
+
+        // Open the breaker so that every following call is a trial call
+        failing.failure = new IllegalStateException("down");
+        assertThrows(RuntimeException.class, () -> resolver.findByName("test"));
+        failing.failure = null;
+
+        // The trial permit must be given back after an error, or the next call is rejected
+        for (int i = 0; i < 3; i++) {
+            AssertionError e = assertThrows(AssertionError.class, () -> resolver.findByName("test"));
+            assertThat(e.getMessage(), equalTo("broken"));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testSpeculative() throws Exception {
+        TestProfileService slow = new TestProfileService();
+        TestProfileService fast = new TestProfileService();
+        Profile profile = new Profile(UUID.randomUUID(), "test", time);
+        slow.delayMillis = 60000;
+        fast.add(profile);
+        CombinedProfileService resolver = new CombinedProfileService(slow, fast);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        resolver.setSpeculativeExecutor(executor);
+        resolver.setSpeculativeDelay(Duration.ofMillis(10));
+
+        try {
+            assertThat(resolver.findAllByName(ImmutableList.of("test")), contains(profile));
+            // The slow service is cancelled once everything was found
+            while (slow.interrupted.get() < 1) {
+                Thread.sleep(10);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testSpeculativeCancelledNotFailure() throws Exception {
+        TestProfileService slow = new TestProfileService();
+        TestProfileService fast = new TestProfileService();
+        Profile profile = new Profile(UUID.randomUUID(), "test", time);
+        slow.delayMillis = 60000;
+        fast.add(profile);
+        CombinedProfileService resolver = CombinedProfileService.withCircuitBreakers(ImmutableList.of(slow, fast), () -> {
+            CircuitBreaker breaker = new CircuitBreaker(1);
+            breaker.setMinimumCalls(1);
+            return breaker;
+        });
+        ExecutorService executor = Executors.newCachedThreadPool();
+        resolver.setSpeculativeExecutor(executor);
+        resolver.setSpeculativeDelay(Duration.ofMillis(10));
+
+        try {
+            assertThat(resolver.findAllByName(ImmutableList.of("test")), contains(profile));
+            while (slow.interrupted.get() < 1) {
+                Thread.sleep(10);
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+
+        // Losing the race is not a failure of the slow service
+        assertThat(resolver.getCircuitBreaker(0).getState(), equalTo(CircuitBreaker.State.CLOSED));
+        assertThat(resolver.getCircuitBreaker(1).getState(), equalTo(CircuitBreaker.State.CLOSED));
+    }
+
+    @Test
+    public void testSpeculativeConsumer() throws Exception {
+        TestProfileService first = new TestProfileService();
+        TestProfileService second = new TestProfileService();
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            names.add("test" + i);
+            // Both services have every profile, so both call the consumer at the same time
+            Profile profile = new Profile(UUID.randomUUID(), "test" + i, time);
+            first.add(profile);
+            second.add(profile);
+        }
+        first.delayMillis = 100;
+        CombinedProfileService resolver = new CombinedProfileService(first, second);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        resolver.setSpeculativeExecutor(executor);
+        resolver.setSpeculativeDelay(Duration.ofMillis(10));
+
+        AtomicInteger inConsumer = new AtomicInteger();
+        AtomicInteger overlapping = new AtomicInteger();
+        Set<String> found = ConcurrentHashMap.newKeySet();
+        AtomicInteger calls = new AtomicInteger();
+        try {
+            resolver.findAllByName(names, profile -> {
+                if (inConsumer.incrementAndGet() > 1) {
+                    overlapping.incrementAndGet();
+                }
+                calls.incrementAndGet();
+                found.add(profile.name());
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                inConsumer.decrementAndGet();
+                return true;
+            });
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(overlapping.get(), equalTo(0));
+        assertThat(calls.get(), equalTo(20));
+        assertThat(found, Matchers.<String>hasSize(20));
+    }
+
 }
@@ -21,8 +21,11 @@ package org.enginehub.squirrelid.resolver;
 import com.google.common.collect.Lists;
 import org.enginehub.squirrelid.Profile;
 import org.hamcrest.Matchers;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.UUID;
 
@@ -35,6 +38,9 @@ public class HashMapServiceTest {
 
     final long time = System.currentTimeMillis();
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void testFindAllByName() throws Exception {
         HashMapService resolver = new HashMapService();
@@ -130,4 +136,33 @@ public class HashMapServiceTest {
                 containsInAnyOrder(notchProfile, jebProfile)));
     }
 
+    @Test
+    public void testSnapshot() throws Exception {
+        HashMapService resolver = new HashMapService();
+        File file = new File(folder.getRoot(), "snapshot.bin");
+
+        UUID notchUuid = UUID.fromString("069a79f4-44e9-4726-a5be-fca90e38aaf5");
+        UUID jebUuid = UUID.fromString("853c80ef-3c37-49fd-aa49-938b674adae6");
+        resolver.put(new Profile(notchUuid, "Notch", time));
+        resolver.put(new Profile(jebUuid, "jeb_", time));
+        resolver.saveSnapshot(file);
+
+        HashMapService loaded = new HashMapService();
+        loaded.loadSnapshot(file);
+
+        assertThat(loaded.findByName("notch").uniqueId(), equalTo(notchUuid));
+        assertThat(loaded.findByUuid(jebUuid).name(), equalTo("jeb_"));
+        assertThat(
+                loaded.findAllByUuid(Arrays.asList(notchUuid, jebUuid)),
+                Matchers.hasSize(2));
+
+        // Replaces the old snapshot
+        resolver.put(new Profile(UUID.randomUUID(), "Dinnerbone", time));
+        resolver.saveSnapshot(file);
+        loaded.loadSnapshot(file);
+
+        assertThat(loaded.findByName("Dinnerbone"), Matchers.notNullValue());
+        assertThat(folder.getRoot().list().length, equalTo(1));
+    }
+
 }
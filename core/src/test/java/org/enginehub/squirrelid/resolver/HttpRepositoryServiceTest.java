@@ -23,13 +23,19 @@ import org.enginehub.squirrelid.Profile;
 import org.hamcrest.Matchers;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.allOf;
 import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 
 public class HttpRepositoryServiceTest {
 
@@ -102,4 +108,29 @@ public class HttpRepositoryServiceTest {
             resolver.findByUuid(me4502Uuid),
             equalTo(me4502Profile));
     }
+
+    @Test
+    public void testMaxConcurrentRequests() throws Exception {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        HttpRepositoryService resolver = new HttpRepositoryService(HttpRepositoryService.MINECRAFT_AGENT) {
+            @Override
+            protected CompletableFuture<Profile> queryByUuidAsync(UUID uuid) {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                return CompletableFuture.supplyAsync(() -> {
+                    inFlight.decrementAndGet();
+                    return new Profile(uuid, "test", time);
+                }, CompletableFuture.delayedExecutor(5, TimeUnit.MILLISECONDS));
+            }
+        };
+        resolver.setMaxConcurrentRequests(4);
+
+        List<UUID> uuids = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            uuids.add(UUID.randomUUID());
+        }
+
+        assertThat(resolver.findAllByUuid(uuids), Matchers.<Profile>hasSize(50));
+        assertThat(maxInFlight.get(), lessThanOrEqualTo(4));
+    }
 }
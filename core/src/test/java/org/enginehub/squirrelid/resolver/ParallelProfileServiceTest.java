@@ -0,0 +1,147 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.resolver;
+
+import com.google.common.collect.ImmutableList;
+import org.enginehub.squirrelid.Profile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ParallelProfileServiceTest {
+
+    private final TestProfileService resolver = new TestProfileService();
+
+    private List<String> names(int count) {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            names.add("test" + i);
+        }
+        return names;
+    }
+
+    @Test
+    public void testFindAllByName() {
+        for (String name : names(250)) {
+            resolver.add(new Profile(UUID.randomUUID(), name, 0));
+        }
+
+        try (ParallelProfileService service = new ParallelProfileService(resolver, 4)) {
+            assertThat(service.findAllByName(names(300)), hasSize(250));
+            assertThat(resolver.calls.get(), equalTo(3));
+        }
+    }
+
+    @Test
+    public void testFailure() {
+        resolver.failure = new IllegalStateException("down");
+
+        try (ParallelProfileService service = new ParallelProfileService(resolver, 4)) {
+            RuntimeException e = assertThrows(RuntimeException.class, () -> service.findAllByName(names(10)));
+            assertThat(e.getCause(), instanceOf(IllegalStateException.class));
+        }
+    }
+
+    @Test
+    public void testBestEffort() {
+        for (String name : names(6)) {
+            resolver.add(new Profile(UUID.randomUUID(), name, 0));
+        }
+        resolver.failingNames.add("test3");
+
+        try (ParallelProfileService service = new ParallelProfileService(resolver, 4)) {
+            service.setProfilesPerJob(2);
+            PartialResult<String> result = service.findAllByNameBestEffort(names(6));
+
+            assertThat(result.isComplete(), equalTo(false));
+            assertThat(result.profiles(), hasSize(4));
+            assertThat(result.failedKeys(), contains("test2", "test3"));
+            assertThat(result.failures().get(0).cause(), instanceOf(IllegalStateException.class));
+        }
+    }
+
+    @Test
+    public void testVirtualThreadsMaxConcurrency() {
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        TestProfileService resolver = new TestProfileService() {
+            @Override
+            public ImmutableList<Profile> findAllByName(Iterable<String> names) {
+                threads.add(Thread.currentThread());
+                return super.findAllByName(names);
+            }
+        };
+        resolver.delayMillis = 5;
+
+        try (ParallelProfileService service = ParallelProfileService.withVirtualThreads(resolver, 2)) {
+            service.setProfilesPerJob(1);
+            service.findAllByName(names(20));
+        }
+
+        assertThat(resolver.calls.get(), equalTo(20));
+        assertThat(resolver.maxInFlight.get(), lessThanOrEqualTo(2));
+        if (Runtime.version().feature() < 21) {
+            // Platform threads are not started for jobs that cannot run yet
+            assertThat(threads.size(), lessThanOrEqualTo(2));
+        }
+    }
+
+    @Test
+    @Timeout(10)
+    public void testInterrupted() throws Exception {
+        resolver.delayMillis = 60000;
+        Thread caller = Thread.currentThread();
+        Thread interrupter = new Thread(() -> {
+            while (resolver.inFlight.get() < 2) {
+                Thread.onSpinWait();
+            }
+            caller.interrupt();
+        });
+
+        try (ParallelProfileService service = new ParallelProfileService(resolver, 2)) {
+            service.setProfilesPerJob(1);
+            interrupter.start();
+
+            PartialResult<String> result = service.findAllByNameBestEffort(names(2));
+            assertThat(Thread.interrupted(), equalTo(true));
+            assertThat(result.failedKeys(), hasSize(2));
+            assertThat(result.failures().get(0).cause(), instanceOf(InterruptedException.class));
+
+            // The running jobs were interrupted instead of being left to finish
+            while (resolver.interrupted.get() < 2) {
+                Thread.sleep(10);
+            }
+        } finally {
+            interrupter.join();
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.resolver;
+
+import org.enginehub.squirrelid.Profile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class RacingProfileServiceTest {
+
+    private final TestProfileService primary = new TestProfileService();
+    private final TestProfileService secondary = new TestProfileService();
+    private final Profile fromPrimary = new Profile(UUID.randomUUID(), "test", 0);
+    private final Profile fromSecondary = new Profile(UUID.randomUUID(), "test", 0);
+
+    private RacingProfileService create() {
+        primary.add(fromPrimary);
+        secondary.add(fromSecondary);
+        RacingProfileService service = new RacingProfileService(primary, secondary);
+        service.setInitialHedgeDelay(Duration.ofMillis(50));
+        service.setMinHedgeDelay(Duration.ZERO);
+        return service;
+    }
+
+    @Test
+    public void testPrimary() {
+        try (RacingProfileService service = create()) {
+            assertThat(service.findByName("test"), equalTo(fromPrimary));
+            assertThat(secondary.calls.get(), equalTo(0));
+        }
+    }
+
+    @Test
+    @Timeout(10)
+    public void testHedge() throws Exception {
+        primary.delayMillis = 60000;
+
+        try (RacingProfileService service = create()) {
+            assertThat(service.findByName("test"), equalTo(fromSecondary));
+
+            // The slow lookup is interrupted instead of being left to finish
+            while (primary.interrupted.get() < 1) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    @Test
+    public void testPrimaryFailure() {
+        primary.failure = new IllegalStateException("down");
+
+        try (RacingProfileService service = create()) {
+            assertThat(service.findByName("test"), equalTo(fromSecondary));
+        }
+    }
+
+    @Test
+    public void testSameFailure() {
+        IllegalStateException failure = new IllegalStateException("down");
+        primary.failure = failure;
+        secondary.failure = failure;
+
+        try (RacingProfileService service = create()) {
+            IllegalStateException e = assertThrows(IllegalStateException.class, () -> service.findByName("test"));
+            assertThat(e, sameInstance(failure));
+        }
+    }
+
+    @Test
+    public void testHedgeDelay() {
+        try (RacingProfileService service = create()) {
+            // Failures are not latencies of the primary
+            primary.failure = new IllegalStateException("down");
+            for (int i = 0; i < 50; i++) {
+                service.findByName("test");
+            }
+            assertThat(service.getHedgeDelay(), equalTo(Duration.ofMillis(50)));
+
+            primary.failure = null;
+            for (int i = 0; i < 50; i++) {
+                service.findByName("test");
+            }
+            assertThat(service.getHedgeDelay(), lessThan(Duration.ofMillis(50)));
+        }
+    }
+
+    @Test
+    public void testConsumer() {
+        primary.failure = new IllegalStateException("down");
+        Profile other = new Profile(UUID.randomUUID(), "other", 0);
+        secondary.add(other);
+
+        try (RacingProfileService service = create()) {
+            List<Profile> profiles = new ArrayList<>();
+            service.findAllByName(List.of("test", "other"), profile -> {
+                profiles.add(profile);
+                // The result is ignored, as it is by every other resolver
+                return false;
+            });
+            assertThat(profiles, containsInAnyOrder(fromSecondary, other));
+        }
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.resolver;
+
+import com.google.common.collect.ImmutableList;
+import org.enginehub.squirrelid.Profile;
+import org.jspecify.annotations.Nullable;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * A resolver for tests that counts its calls and can be made slow or
+ * made to fail.
+ */
+class TestProfileService implements ProfileService {
+
+    private final Map<String, Profile> byName = new ConcurrentHashMap<>();
+    private final Map<UUID, Profile> byUuid = new ConcurrentHashMap<>();
+    final Set<String> failingNames = ConcurrentHashMap.newKeySet();
+    final AtomicInteger calls = new AtomicInteger();
+    final AtomicInteger interrupted = new AtomicInteger();
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+    volatile int idealRequestLimit = 100;
+    volatile long delayMillis;
+    volatile @Nullable RuntimeException failure;
+
+    TestProfileService add(Profile profile) {
+        byName.put(profile.name().toLowerCase(Locale.US), profile);
+        byUuid.put(profile.uniqueId(), profile);
+        return this;
+    }
+
+    /**
+     * Count the call, wait for the delay and throw the failure, if any.
+     */
+    private void call() {
+        calls.incrementAndGet();
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        try {
+            if (delayMillis > 0) {
+                Thread.sleep(delayMillis);
+            }
+        } catch (InterruptedException e) {
+            interrupted.incrementAndGet();
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted", e);
+        } finally {
+            inFlight.decrementAndGet();
+        }
+        RuntimeException failure = this.failure;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public int getIdealRequestLimit() {
+        return idealRequestLimit;
+    }
+
+    @Override
+    public @Nullable Profile findByName(String name) {
+        call();
+        return byName.get(name.toLowerCase(Locale.US));
+    }
+
+    @Override
+    public ImmutableList<Profile> findAllByName(Iterable<String> names) {
+        call();
+        ImmutableList.Builder<Profile> builder = ImmutableList.builder();
+        for (String name : names) {
+            if (failingNames.contains(name)) {
+                throw new IllegalStateException("Failed to look up " + name);
+            }
+            Profile profile = byName.get(name.toLowerCase(Locale.US));
+            if (profile != null) {
+                builder.add(profile);
+            }
+        }
+        return builder.build();
+    }
+
+    @Override
+    public void findAllByName(Iterable<String> names, Predicate<Profile> consumer) {
+        for (Profile profile : findAllByName(names)) {
+            consumer.test(profile);
+        }
+    }
+
+    @Override
+    public @Nullable Profile findByUuid(UUID uuid) {
+        call();
+        return byUuid.get(uuid);
+    }
+
+    @Override
+    public ImmutableList<Profile> findAllByUuid(Iterable<UUID> uuids) {
+        call();
+        ImmutableList.Builder<Profile> builder = ImmutableList.builder();
+        for (UUID uuid : uuids) {
+            Profile profile = byUuid.get(uuid);
+            if (profile != null) {
+                builder.add(profile);
+            }
+        }
+        return builder.build();
+    }
+
+    @Override
+    public void findAllByUuid(Iterable<UUID> uuids, Predicate<Profile> consumer) {
+        for (Profile profile : findAllByUuid(uuids)) {
+            consumer.test(profile);
+        }
+    }
+
+}
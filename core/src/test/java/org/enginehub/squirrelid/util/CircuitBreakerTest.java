@@ -0,0 +1,103 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void testOpensOnFailures() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(10);
+        breaker.setMinimumCalls(4);
+
+        breaker.onSuccess(0);
+        breaker.onError(0);
+        breaker.onSuccess(0);
+        assertThat(breaker.getState(), equalTo(CircuitBreaker.State.CLOSED));
+
+        breaker.onError(0);
+        assertThat(breaker.getState(), equalTo(CircuitBreaker.State.OPEN));
+        assertThat(breaker.tryAcquire(), is(false));
+    }
+
+    @Test
+    public void testOpensOnSlowCalls() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(10);
+        breaker.setMinimumCalls(2);
+        breaker.setSlowCallRateThreshold(0.5);
+        breaker.setSlowCallDuration(Duration.ofMillis(100));
+
+        breaker.onSuccess(Duration.ofMillis(10).toNanos());
+        breaker.onSuccess(Duration.ofMillis(200).toNanos());
+        assertThat(breaker.getState(), equalTo(CircuitBreaker.State.OPEN));
+    }
+
+    @Test
+    public void testHalfOpen() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(10);
+        breaker.setMinimumCalls(1);
+        breaker.setHalfOpenCalls(2);
+        breaker.setOpenDuration(Duration.ZERO);
+
+        breaker.onError(0);
+        assertThat(breaker.getState(), equalTo(CircuitBreaker.State.HALF_OPEN));
+        assertThat(breaker.tryAcquire(), is(true));
+        assertThat(breaker.tryAcquire(), is(true));
+        assertThat(breaker.tryAcquire(), is(false));
+
+        breaker.onSuccess(0);
+        breaker.onError(0);
+        assertThat(breaker.tryAcquire(), is(true));
+        breaker.onSuccess(0);
+        assertThat(breaker.tryAcquire(), is(true));
+        breaker.onSuccess(0);
+        assertThat(breaker.getState(), equalTo(CircuitBreaker.State.CLOSED));
+    }
+
+    @Test
+    public void testCancelled() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(10);
+        breaker.setMinimumCalls(1);
+        breaker.setHalfOpenCalls(1);
+        breaker.setOpenDuration(Duration.ZERO);
+
+        breaker.onError(0);
+        assertThat(breaker.tryAcquire(), is(true));
+        assertThat(breaker.tryAcquire(), is(false));
+
+        // An abandoned trial call gives its permit back without reopening the breaker
+        breaker.onCancelled();
+        assertThat(breaker.getState(), equalTo(CircuitBreaker.State.HALF_OPEN));
+        assertThat(breaker.tryAcquire(), is(true));
+        breaker.onSuccess(0);
+        assertThat(breaker.getState(), equalTo(CircuitBreaker.State.CLOSED));
+
+        // Nothing is recorded while closed either
+        breaker.onCancelled();
+        assertThat(breaker.getState(), equalTo(CircuitBreaker.State.CLOSED));
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.util;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class HttpRequestsTest {
+
+    private HttpServer server;
+    private URL url;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        JsonArray array = new JsonArray();
+        for (int i = 0; i < 10000; i++) {
+            array.add("name" + i);
+        }
+        byte[] body = array.toString().getBytes(StandardCharsets.UTF_8);
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            // Chunked, so nothing can be sized up front
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        url = new URL("http", server.getAddress().getHostString(), server.getAddress().getPort(), "/");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testReturnJson() throws Exception {
+        JsonElement json = HttpRequests.get(url).execute().expectResponseCode(200).returnJson();
+        assertThat(json.getAsJsonArray().size(), equalTo(10000));
+        assertThat(json.getAsJsonArray().get(9999).getAsString(), equalTo("name9999"));
+    }
+
+    @Test
+    public void testReturnReader() throws Exception {
+        long length = 0;
+        try (Reader reader = HttpRequests.get(url).execute().returnReader()) {
+            char[] buffer = new char[1024];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                length += read;
+            }
+        }
+
+        HttpRequests.BufferedResponse response = HttpRequests.get(url).execute().returnContent();
+        assertThat(length, equalTo((long) response.asString("UTF-8").length()));
+        assertThat(((JsonElement) response.asJson()).getAsJsonArray().size(), equalTo(10000));
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * SquirrelID, a UUID library for Minecraft
+ * Copyright (C) sk89q <http://www.sk89q.com>
+ * Copyright (C) SquirrelID team and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enginehub.squirrelid.util;
+
+import com.google.common.base.Ticker;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class RateLimitersTest {
+
+    @Test
+    public void testParseRetryAfter() throws Exception {
+        assertThat(RateLimiters.parseRetryAfter("12"), equalTo(Duration.ofSeconds(12)));
+        assertThat(RateLimiters.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT"), equalTo(Duration.ZERO));
+        assertThat(RateLimiters.parseRetryAfter(null), equalTo(Duration.ofSeconds(5)));
+        assertThat(RateLimiters.parseRetryAfter("soon"), equalTo(Duration.ofSeconds(5)));
+    }
+
+    @Test
+    public void testForHost() throws Exception {
+        assertThat(RateLimiters.forHost("Example.com"), sameInstance(RateLimiters.forHost("example.com")));
+    }
+
+    @Test
+    public void testPause() throws Exception {
+        FakeTicker ticker = new FakeTicker();
+        List<Runnable> scheduled = new ArrayList<>();
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(10, Duration.ofSeconds(1), ticker,
+                (task, delay) -> scheduled.add(task));
+        limiter.pause(Duration.ofMillis(200));
+
+        CompletableFuture<Void> future = limiter.acquire();
+        assertThat(limiter.getQueueLength(), equalTo(1));
+
+        ticker.advance(Duration.ofMillis(150));
+        scheduled.remove(0).run();
+        assertThat(future.isDone(), equalTo(false));
+
+        ticker.advance(Duration.ofMillis(50));
+        scheduled.remove(0).run();
+        assertThat(future.isDone(), equalTo(true));
+        assertThat(limiter.getQueueLength(), equalTo(0));
+    }
+
+    @Test
+    public void testRefill() throws Exception {
+        FakeTicker ticker = new FakeTicker();
+        List<Runnable> scheduled = new ArrayList<>();
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(2, Duration.ofSeconds(1), ticker,
+                (task, delay) -> scheduled.add(task));
+
+        assertThat(limiter.acquire().isDone(), equalTo(true));
+        assertThat(limiter.acquire().isDone(), equalTo(true));
+        CompletableFuture<Void> third = limiter.acquire();
+        CompletableFuture<Void> fourth = limiter.acquire();
+        assertThat(third.isDone(), equalTo(false));
+
+        // Giving up frees the place in the queue for the next caller
+        third.cancel(false);
+        ticker.advance(Duration.ofMillis(500));
+        scheduled.remove(0).run();
+        assertThat(fourth.isDone(), equalTo(true));
+        assertThat(limiter.getQueueLength(), equalTo(0));
+    }
+
+    @Test
+    public void testCancelledWhileReleased() throws Exception {
+        FakeTicker ticker = new FakeTicker();
+        List<Runnable> scheduled = new ArrayList<>();
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(2, Duration.ofSeconds(1), ticker,
+                (task, delay) -> scheduled.add(task));
+
+        assertThat(limiter.acquire().isDone(), equalTo(true));
+        assertThat(limiter.acquire().isDone(), equalTo(true));
+        CompletableFuture<Void> first = limiter.acquire();
+        CompletableFuture<Void> second = limiter.acquire();
+
+        // The second caller gives up after both were picked but before it was completed
+        first.thenRun(() -> second.cancel(false));
+        ticker.advance(Duration.ofSeconds(1));
+        scheduled.remove(0).run();
+        assertThat(first.isDone(), equalTo(true));
+        assertThat(second.isCancelled(), equalTo(true));
+
+        // Its token goes to the next caller
+        assertThat(limiter.acquire().isDone(), equalTo(true));
+    }
+
+    @Test
+    public void testTryAcquire() throws Exception {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(1, Duration.ofDays(1), new FakeTicker(),
+                (task, delay) -> { });
+
+        assertThat(limiter.tryAcquire(Duration.ZERO), equalTo(true));
+        assertThat(limiter.tryAcquire(Duration.ofMillis(10)), equalTo(false));
+        assertThat(limiter.getQueueLength(), equalTo(0));
+
+        Thread.currentThread().interrupt();
+        assertThrows(InterruptedException.class, () -> limiter.tryAcquire(Duration.ofDays(1)));
+        assertThat(limiter.getQueueLength(), equalTo(0));
+    }
+
+    private static final class FakeTicker extends Ticker {
+        private long nanos;
+
+        void advance(Duration duration) {
+            nanos += duration.toNanos();
+        }
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+    }
+
+}
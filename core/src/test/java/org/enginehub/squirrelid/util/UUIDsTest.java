@@ -20,6 +20,8 @@ package org.enginehub.squirrelid.util;
 
 import org.junit.Test;
 
+import java.util.UUID;
+
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.MatcherAssert.assertThat;
 
@@ -37,4 +39,23 @@ public class UUIDsTest {
         assertThat(UUIDs.stripDashes("a8fb55e584384bbc8d08633cce6078f8"), equalTo("a8fb55e584384bbc8d08633cce6078f8"));
     }
 
+    @Test
+    public void testParse() throws Exception {
+        UUID expected = UUID.fromString("a8fb55e5-8438-4bbc-8d08-633cce6078f8");
+        assertThat(UUIDs.parse("a8fb55e5-8438-4bbc-8d08-633cce6078f8"), equalTo(expected));
+        assertThat(UUIDs.parse("a8fb55e584384bbc8d08633cce6078f8"), equalTo(expected));
+        assertThat(UUIDs.parse("A8FB55E584384BBC8D08633CCE6078F8"), equalTo(expected));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseInvalid() throws Exception {
+        UUIDs.parse("a8fb55e584384bbc8d08633cce6078fx");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseNonAsciiDigit() throws Exception {
+        // Arabic-Indic digit one, which Character.digit() accepts
+        UUIDs.parse("a8fb55e584384bbc8d08633cce6078f\u0661");
+    }
+
 }